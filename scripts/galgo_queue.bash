@@ -0,0 +1,8 @@
+#!/bin/bash
+
+# Move to the current working directory
+cd $CWD
+
+# Run the lines FIRST-LAST of the params file, claiming them from the shared 
+# work queue in QUEUE, so any number of nodes can be launched on the same range
+java -cp $FILE org.albacete.simd.experiments.daemonExperiment $FIRST $LAST $PARAMS $JOBS 0 4 $QUEUE
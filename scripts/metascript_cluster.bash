@@ -2,6 +2,8 @@
 
 FILE="$HOME/mAnDE2/target/mAnDE-3.0-jar-with-dependencies.jar"
 SCRIPT="$HOME/mAnDE2/scripts/galgo.bash"
+SCRIPT_QUEUE="$HOME/mAnDE2/scripts/galgo_queue.bash"
+QUEUE="$HOME/mAnDE2/results/queue/"
 
 PARAMS_FOLDER="$HOME/mAnDE2/res/params/";
 
@@ -12,6 +14,9 @@ PARAMS2="${PARAMS_FOLDER}hyperparams2.txt";
 
 qsub -N others -J 0-3347 -v CWD="$PWD",PARAMS="$PARAMS2",FILE="$FILE" -l select=1:ncpus=8:mem=31gb:cluster=galgo2 "$SCRIPT"
 
+# Work queue: each of the 20 nodes claims lines of the range until all of them are done
+#qsub -N others -J 0-19 -v CWD="$PWD",PARAMS="$PARAMS2",FILE="$FILE",FIRST=0,LAST=3347,JOBS=2,QUEUE="$QUEUE" -l select=1:ncpus=8:mem=31gb:cluster=galgo2 "$SCRIPT_QUEUE"
+
 #qsub -N mAnDE -J 10000-19999 -v CWD="$PWD",PARAMS="$PARAMS",FILE="$FILE" -l select=1:ncpus=8:mem=31gb:cluster=galgo2 "$SCRIPT"
 #qsub -N mAnDE -J 20000-29999 -v CWD="$PWD",PARAMS="$PARAMS",FILE="$FILE" -l select=1:ncpus=8:mem=31gb:cluster=galgo2 "$SCRIPT"
 #qsub -N mAnDE -J 30000-32735 -v CWD="$PWD",PARAMS="$PARAMS",FILE="$FILE" -l select=1:ncpus=8:mem=31gb:cluster=galgo2 "$SCRIPT"
\ No newline at end of file
@@ -0,0 +1,84 @@
+package clasesTest;
+
+import java.util.Arrays;
+import org.albacete.simd.mAnDE.mAnDE;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Checks that the partition-and-merge training of DistributedTraining gives
+ * the same mAnDE as buildClassifier on the whole dataset. The structure is
+ * learnt on the whole dataset, each shard is counted on a serialized copy
+ * of it, as the workers do, and the partial models are aggregated. Exits with
+ * 1 if any distribution or the threshold of the cascade differs.
+ *
+ * Arguments: dataset.arff [shards]
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class checkDistributedTraining {
+
+    private static final double TOLERANCE = 1e-12;
+
+    public static void main(String[] args) throws Exception {
+        Instances data = new DataSource(args[0]).getDataSet();
+        data.setClassIndex(data.numAttributes() - 1);
+        int numShards = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+        boolean ok = check(new String[0], data, numShards);
+        ok &= check(new String[]{"-N", "2"}, data, numShards);
+        ok &= check(new String[]{"-cascade", "0.95"}, data, numShards);
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String[] options, Instances data, int numShards) throws Exception {
+        mAnDE single = new mAnDE();
+        single.setOptions(options.clone());
+        single.buildClassifier(new Instances(data));
+
+        // STRUCTURE
+        mAnDE template = new mAnDE();
+        template.setOptions(options.clone());
+        template.buildStructure(new Instances(data));
+
+        // COUNTS of each shard, one instance out of numShards
+        mAnDE merged = null;
+        for (int s = 0; s < numShards; s++) {
+            Instances shard = new Instances(data, 0);
+            for (int i = s; i < data.numInstances(); i += numShards) {
+                shard.add(data.instance(i));
+            }
+            mAnDE partial = (mAnDE) new SerializedObject(template).getObject();
+            partial.buildCounts(shard);
+            partial = (mAnDE) new SerializedObject(partial).getObject();
+            if (merged == null) {
+                merged = partial;
+            } else {
+                merged.aggregate(partial);
+            }
+        }
+        merged.finalizeAggregation();
+
+        double maxDiff = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] p = single.distributionForInstance(data.instance(i));
+            double[] q = merged.distributionForInstance(data.instance(i));
+            for (int c = 0; c < p.length; c++) {
+                maxDiff = Math.max(maxDiff, Math.abs(p[c] - q[c]));
+            }
+        }
+
+        boolean ok = maxDiff <= TOLERANCE
+                && single.getmSPnDEs().keySet().equals(merged.getmSPnDEs().keySet())
+                && single.getCascadeThreshold() == merged.getCascadeThreshold();
+        System.out.printf("%s: %d shards, %d mSPnDEs, cascade threshold %g / %g, max difference %g -> %s%n",
+                Arrays.toString(options), numShards, merged.getmSPnDEs().size(),
+                single.getCascadeThreshold(), merged.getCascadeThreshold(), maxDiff, ok ? "OK" : "DIFFERENT");
+        return ok;
+    }
+}
@@ -0,0 +1,84 @@
+package clasesTest;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.albacete.simd.experiments.FastCrossValidation;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.bayes.AveragedNDependenceEstimators.A1DE;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.evaluation.NominalPrediction;
+import weka.classifiers.evaluation.Prediction;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Checks that the count-subtraction cross-validation of FastCrossValidation
+ * gives the same predictions as Evaluation.crossValidateModel for NB and
+ * A1DE. The numeric attributes of the dataset are discretised first, as the
+ * counts need nominal data. Exits with 1 if any prediction differs.
+ *
+ * Arguments: dataset.arff [folds] [seed]
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class checkFastCrossValidation {
+
+    private static final double TOLERANCE = 1e-9;
+
+    public static void main(String[] args) throws Exception {
+        Instances data = new DataSource(args[0]).getDataSet();
+        data.setClassIndex(data.numAttributes() - 1);
+        int folds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int seed = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+
+        // NOMINAL DATA
+        Discretize discretize = new Discretize();
+        discretize.setInputFormat(data);
+        data = Filter.useFilter(data, discretize);
+
+        boolean ok = check(new NaiveBayes(), data, folds, seed);
+        ok &= check(new A1DE(), data, folds, seed);
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(Classifier clas, Instances data, int folds, int seed) throws Exception {
+        String name = clas.getClass().getSimpleName();
+        if (!FastCrossValidation.isSupported(clas, data)) {
+            System.out.println(name + ": not supported by FastCrossValidation");
+            return false;
+        }
+
+        Evaluation normal = new Evaluation(data);
+        normal.crossValidateModel(AbstractClassifier.makeCopy(clas), data, folds, new Random(seed));
+        Evaluation fast = FastCrossValidation.crossValidateModel(clas, data, folds, new Random(seed));
+
+        ArrayList<Prediction> expected = normal.predictions();
+        ArrayList<Prediction> actual = fast.predictions();
+        if (expected.size() != actual.size()) {
+            System.out.println(name + ": " + actual.size() + " predictions instead of " + expected.size());
+            return false;
+        }
+
+        double maxDiff = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            double[] p = ((NominalPrediction) expected.get(i)).distribution();
+            double[] q = ((NominalPrediction) actual.get(i)).distribution();
+            for (int c = 0; c < p.length; c++) {
+                maxDiff = Math.max(maxDiff, Math.abs(p[c] - q[c]));
+            }
+        }
+
+        boolean ok = maxDiff <= TOLERANCE && normal.pctCorrect() == fast.pctCorrect();
+        System.out.printf("%s: accuracy %.4f / %.4f, max difference %g -> %s%n", name,
+                normal.pctCorrect(), fast.pctCorrect(), maxDiff, ok ? "OK" : "DIFFERENT");
+        return ok;
+    }
+}
@@ -0,0 +1,86 @@
+package clasesTest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.albacete.simd.mAnDE.mAnDE;
+import org.albacete.simd.model.ModelIO;
+import org.albacete.simd.model.ProbabilityTable;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.AveragedNDependenceEstimators.A1DE;
+import weka.classifiers.bayes.AveragedNDependenceEstimators.A2DE;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Checks that the classifiers saved with ModelIO.save and read back with
+ * ModelIO.load, or with ModelIO.map, give the same distributionForInstance
+ * as the trained ones, for mAnDE, A1DE, A2DE and NaiveBayes. mAnDE is also
+ * checked with its tables frozen in each precision. Exits with 1 if any
+ * distribution differs.
+ *
+ * Arguments: dataset.arff
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class checkModelIO {
+
+    public static void main(String[] args) throws Exception {
+        Instances data = new DataSource(args[0]).getDataSet();
+        data.setClassIndex(data.numAttributes() - 1);
+
+        Path file = Files.createTempFile("model", ".mbin");
+        boolean ok = true;
+        try {
+            ok &= check(new NaiveBayes(), data, file);
+            ok &= check(new A1DE(), data, file);
+            ok &= check(new A2DE(), data, file);
+            ok &= check(new mAnDE(), data, file);
+
+            // FROZEN TABLES
+            for (ProbabilityTable.Precision precision : ProbabilityTable.Precision.values()) {
+                mAnDE frozen = new mAnDE();
+                frozen.buildClassifier(new Instances(data));
+                frozen.freeze(precision);
+                ok &= check("mAnDE " + precision, frozen, data, file);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(Classifier clas, Instances data, Path file) throws Exception {
+        clas.buildClassifier(new Instances(data));
+        return check(clas.getClass().getSimpleName(), clas, data, file);
+    }
+
+    private static boolean check(String name, Classifier clas, Instances data, Path file) throws Exception {
+        ModelIO.save(clas, file);
+        boolean ok = compare(name + " load", clas, ModelIO.load(file), data);
+        ok &= compare(name + " map", clas, ModelIO.map(file), data);
+        return ok;
+    }
+
+    /**
+     * Compares the distributions of two classifiers on every instance.
+     */
+    private static boolean compare(String name, Classifier expected, Classifier actual, Instances data) throws Exception {
+        double maxDiff = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] p = expected.distributionForInstance(data.instance(i));
+            double[] q = actual.distributionForInstance(data.instance(i));
+            for (int c = 0; c < p.length; c++) {
+                maxDiff = Math.max(maxDiff, Math.abs(p[c] - q[c]));
+            }
+        }
+
+        boolean ok = maxDiff == 0;
+        System.out.printf("%s: max difference %g -> %s%n", name, maxDiff, ok ? "OK" : "DIFFERENT");
+        return ok;
+    }
+}
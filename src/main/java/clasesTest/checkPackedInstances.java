@@ -0,0 +1,213 @@
+package clasesTest;
+
+import java.util.Random;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.data.PackedInstances;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Checks the bit-packed columns of PackedInstances and the counts of
+ * BitmapIndex against a scan of the rows of the dataset: the value of every
+ * cell, the counts N(Xi=a, y=c) of every attribute computed from the
+ * decoded blocks, and the contingency tables of the bitmap index with zero,
+ * one and two parents. The dataset is discretised, and some values are made
+ * missing so that their code is also checked. Exits with 1 if any value or
+ * count differs.
+ *
+ * Arguments: dataset.arff [fractionOfMissingValues]
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class checkPackedInstances {
+
+    public static void main(String[] args) throws Exception {
+        Instances data = new DataSource(args[0]).getDataSet();
+        data.setClassIndex(data.numAttributes() - 1);
+        double missing = (args.length > 1) ? Double.parseDouble(args[1]) : 0.05;
+
+        // NOMINAL DATA with missing values
+        Discretize discretize = new Discretize();
+        discretize.setInputFormat(data);
+        data = Filter.useFilter(data, discretize);
+        Random random = new Random(1);
+        for (Instance inst : data) {
+            for (int att = 0; att < data.numAttributes(); att++) {
+                if (att != data.classIndex() && random.nextDouble() < missing) {
+                    inst.setMissing(att);
+                }
+            }
+        }
+
+        PackedInstances packed = new PackedInstances(data);
+        boolean ok = checkValues(packed, data);
+        ok &= checkCounts(packed, data);
+        ok &= checkIndex("index of the columns", packed.index(), data, true);
+        ok &= checkIndex("index of the rows", new BitmapIndex(data, false), data, false);
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compares value and isMissing with the values of the rows.
+     */
+    private static boolean checkValues(PackedInstances packed, Instances data) {
+        long wrong = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            for (int att = 0; att < data.numAttributes(); att++) {
+                int expected = inst.isMissing(att) ? data.attribute(att).numValues() : (int) inst.value(att);
+                if (packed.value(i, att) != expected || packed.isMissing(i, att) != inst.isMissing(att)) {
+                    wrong++;
+                }
+            }
+        }
+
+        System.out.printf("values: %d instances, %d attributes, %d bytes, %d wrong -> %s%n",
+                packed.numInstances(), packed.numAttributes(), packed.sizeInBytes(), wrong, wrong == 0 ? "OK" : "DIFFERENT");
+        return wrong == 0;
+    }
+
+    /**
+     * Compares the counts of the decoded blocks, with the missing values as
+     * 0 (as the counters of mAnDE), with the counts of the rows.
+     */
+    private static boolean checkCounts(PackedInstances packed, Instances data) {
+        int classIndex = data.classIndex();
+        int classNumValues = data.classAttribute().numValues();
+        int[] values = new int[PackedInstances.BLOCK];
+        int[] classes = new int[PackedInstances.BLOCK];
+        long wrong = 0;
+
+        for (int att = 0; att < data.numAttributes(); att++) {
+            if (att == classIndex) {
+                continue;
+            }
+            long[] expected = new long[data.attribute(att).numValues() * classNumValues];
+            for (Instance inst : data) {
+                int v = inst.isMissing(att) ? 0 : (int) inst.value(att);
+                expected[v * classNumValues + (int) inst.classValue()]++;
+            }
+
+            long[] actual = new long[expected.length];
+            for (int from = 0; from < packed.numInstances(); from += PackedInstances.BLOCK) {
+                int to = Math.min(packed.numInstances(), from + PackedInstances.BLOCK);
+                packed.decode(att, from, to, values, 0);
+                packed.decode(classIndex, from, to, classes, 0);
+                for (int r = 0; r < to - from; r++) {
+                    actual[values[r] * classNumValues + classes[r]]++;
+                }
+            }
+
+            for (int k = 0; k < expected.length; k++) {
+                if (expected[k] != actual[k]) {
+                    wrong++;
+                }
+            }
+        }
+
+        System.out.printf("counts N(Xi, y): %d wrong -> %s%n", wrong, wrong == 0 ? "OK" : "DIFFERENT");
+        return wrong == 0;
+    }
+
+    /**
+     * Compares the tables of addCounts, and count on a range of instances,
+     * with the counts of the rows. Only the first attributes are combined,
+     * so that wide datasets are checked in a few seconds.
+     */
+    private static boolean checkIndex(String name, BitmapIndex index, Instances data, boolean missingAsZero) {
+        int classIndex = data.classIndex();
+        int numAttributes = Math.min(data.numAttributes(), 12);
+        long wrong = 0, tables = 0;
+
+        for (int child = 0; child < numAttributes; child++) {
+            if (child == classIndex) {
+                continue;
+            }
+            wrong += compareTable(index, new int[0], child, data, missingAsZero);
+            tables++;
+            for (int p1 = 0; p1 < numAttributes; p1++) {
+                if (p1 == classIndex || p1 == child) {
+                    continue;
+                }
+                wrong += compareTable(index, new int[]{p1}, child, data, missingAsZero);
+                tables++;
+                for (int p2 = p1 + 1; p2 < numAttributes; p2++) {
+                    if (p2 != classIndex && p2 != child) {
+                        wrong += compareTable(index, new int[]{p1, p2}, child, data, missingAsZero);
+                        tables++;
+                    }
+                }
+            }
+        }
+
+        // Range of instances that does not start or end at a word
+        int from = Math.min(data.numInstances(), 3), to = Math.max(from, data.numInstances() - 5);
+        for (int att = 0; att < numAttributes; att++) {
+            for (int code = 0; code < index.codes(att); code++) {
+                long expected = 0;
+                for (int i = from; i < to; i++) {
+                    if (code(data.instance(i), att, missingAsZero) == code) {
+                        expected++;
+                    }
+                }
+                if (index.count(new int[]{att}, new int[]{code}, from, to) != expected) {
+                    wrong++;
+                }
+            }
+        }
+
+        System.out.printf("%s: %d tables, %d wrong -> %s%n", name, tables, wrong, wrong == 0 ? "OK" : "DIFFERENT");
+        return wrong == 0;
+    }
+
+    /**
+     * @return The number of cells of the table of addCounts that differ from
+     * the counts of the rows.
+     */
+    private static long compareTable(BitmapIndex index, int[] parents, int child, Instances data, boolean missingAsZero) {
+        int classNumValues = data.classAttribute().numValues();
+        int cells = index.codes(child) * classNumValues;
+        for (int parent : parents) {
+            cells *= index.codes(parent);
+        }
+
+        double[] expected = new double[cells];
+        for (Instance inst : data) {
+            int vp = 0;
+            for (int parent : parents) {
+                vp = vp * index.codes(parent) + code(inst, parent, missingAsZero);
+            }
+            int vc = code(inst, child, missingAsZero);
+            expected[(vp * index.codes(child) + vc) * classNumValues + (int) inst.classValue()]++;
+        }
+
+        // The counts are added after an offset, as in the tables of the mSPnDEs
+        double[] actual = new double[cells + 1];
+        index.addCounts(parents, child, actual, 1);
+
+        long wrong = (actual[0] != 0) ? 1 : 0;
+        for (int k = 0; k < cells; k++) {
+            if (expected[k] != actual[k + 1]) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    /**
+     * @return The code of the value of the attribute in the bitmap index.
+     */
+    private static int code(Instance inst, int att, boolean missingAsZero) {
+        if (!inst.isMissing(att)) {
+            return (int) inst.value(att);
+        }
+        return missingAsZero ? 0 : inst.attribute(att).numValues();
+    }
+}
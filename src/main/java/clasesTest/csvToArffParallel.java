@@ -0,0 +1,329 @@
+package clasesTest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Range;
+import weka.core.Utils;
+
+/**
+ * Parallel version of csvToArff that does not load the CSV in memory.
+ *
+ * The type of each column is inferred from a sample of the first lines:
+ * numeric if every value of the sample is a number, nominal otherwise (or if
+ * it is in the range of nominal attributes given, or it is the last one, the
+ * class, as in csvToArff). Then the file is split in
+ * byte ranges aligned to the start of the lines, and each one is memory-mapped
+ * and converted to ARFF rows in parallel, collecting the labels of the nominal
+ * columns. Finally the ARFF header, with all the labels, is written followed
+ * by the rows of each range.
+ *
+ * The first line must be the header. Quoted values may contain the separator,
+ * but not line breaks.
+ *
+ * Arguments: input output [separator] [nominalAttributes] [sampleLines] [threads]
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class csvToArffParallel {
+
+    /**
+     * Size of the byte ranges converted by each task.
+     */
+    private static final long CHUNK = 64L << 20;
+
+    public static void main(String[] args) throws Exception {
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        char separator = (args.length > 2) ? unescape(args[2]) : ',';
+        String nominal = (args.length > 3 && !args[3].isEmpty()) ? args[3] + ",last" : "last";
+        int sampleLines = (args.length > 4) ? Integer.parseInt(args[4]) : 10000;
+        int threads = (args.length > 5) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        double init = System.currentTimeMillis();
+
+        // SCHEMA: names from the header and types from the sample
+        String[] names;
+        boolean[] numeric;
+        long dataStart;
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException(input + " is empty");
+            }
+            dataStart = header.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            names = split(header, separator);
+
+            Range nominalRange = new Range(nominal);
+            nominalRange.setUpper(names.length - 1);
+            numeric = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                numeric[i] = !nominalRange.isInRange(i);
+            }
+
+            String line;
+            for (int l = 0; l < sampleLines && (line = reader.readLine()) != null; l++) {
+                String[] values = split(line, separator);
+                for (int i = 0; i < names.length && i < values.length; i++) {
+                    if (numeric[i] && !isMissing(values[i]) && !isNumber(values[i])) {
+                        numeric[i] = false;
+                    }
+                }
+            }
+        }
+
+        // CHUNKS aligned to the start of the lines
+        List<Long> bounds = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            bounds.add(Math.min(dataStart, size));
+            for (long b = dataStart + CHUNK; b < size; b += CHUNK) {
+                long aligned = nextLine(channel, b);
+                if (aligned > bounds.get(bounds.size() - 1) && aligned < size) {
+                    bounds.add(aligned);
+                }
+            }
+            bounds.add(size);
+        }
+
+        // ROWS of each chunk, converted in parallel into temporary files
+        int numChunks = bounds.size() - 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Chunk>> futures = new ArrayList<>(numChunks);
+        List<Path> files = new ArrayList<>(numChunks);
+        for (int c = 0; c < numChunks; c++) {
+            long start = bounds.get(c);
+            long end = bounds.get(c + 1);
+            Path file = Files.createTempFile(output.toAbsolutePath().getParent(), "chunk", ".tmp");
+            files.add(file);
+            futures.add(executor.submit(() -> convert(input, file, start, end, separator, numeric)));
+        }
+        executor.shutdown();
+
+        List<Chunk> chunks = new ArrayList<>(numChunks);
+        try {
+            for (Future<Chunk> future : futures) {
+                chunks.add(future.get());
+            }
+
+            // HEADER with the labels of the nominal columns in order of appearance
+            ArrayList<Attribute> attributes = new ArrayList<>(names.length);
+            int numInstances = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (numeric[i]) {
+                    attributes.add(new Attribute(names[i]));
+                } else {
+                    LinkedHashSet<String> labels = new LinkedHashSet<>();
+                    for (Chunk chunk : chunks) {
+                        labels.addAll(chunk.labels.get(i));
+                    }
+                    attributes.add(new Attribute(names[i], new ArrayList<>(labels)));
+                }
+            }
+            for (Chunk chunk : chunks) {
+                numInstances += chunk.numLines;
+            }
+            String relation = input.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            Instances header = new Instances(relation, attributes, 0);
+
+            try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.write(ByteBuffer.wrap((header.toString() + "\n").getBytes(StandardCharsets.UTF_8)));
+                for (Chunk chunk : chunks) {
+                    try (FileChannel in = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+                        long position = 0;
+                        while (position < in.size()) {
+                            position += in.transferTo(position, in.size() - position, out);
+                        }
+                    }
+                }
+            }
+
+            System.out.println(numInstances + " instances, " + names.length + " attributes, "
+                    + numChunks + " chunks");
+            System.out.println(output + " written in " + (System.currentTimeMillis() - init) / 1000 + " s");
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        } finally {
+            // Temporary files of every chunk, even if another one failed and
+            // the queued ones were never run
+            executor.shutdownNow();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * ARFF rows of a byte range of the CSV.
+     */
+    private static class Chunk {
+        Path file;
+        int numLines;
+        List<LinkedHashSet<String>> labels;
+    }
+
+    /**
+     * Converts the lines of a byte range of the CSV into ARFF rows, written
+     * in the temporary file given.
+     */
+    private static Chunk convert(Path input, Path file, long start, long end,
+            char separator, boolean[] numeric) throws IOException {
+        Chunk chunk = new Chunk();
+        chunk.labels = new ArrayList<>(numeric.length);
+        for (int i = 0; i < numeric.length; i++) {
+            chunk.labels.add(new LinkedHashSet<>());
+        }
+        chunk.file = file;
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                        Files.newOutputStream(chunk.file), StandardCharsets.UTF_8), 1 << 16)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            byte[] bytes = new byte[1024];
+            StringBuilder row = new StringBuilder();
+
+            while (buffer.hasRemaining()) {
+                // Next line, without the line break
+                int length = 0;
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        break;
+                    }
+                    if (length == bytes.length) {
+                        bytes = Arrays.copyOf(bytes, 2 * length);
+                    }
+                    bytes[length++] = b;
+                }
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                if (length == 0) {
+                    continue;
+                }
+
+                String[] values = split(new String(bytes, 0, length, StandardCharsets.UTF_8), separator);
+                if (values.length != numeric.length) {
+                    throw new IOException("Line at byte " + start + " of the chunk has " + values.length
+                            + " values instead of " + numeric.length);
+                }
+
+                row.setLength(0);
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        row.append(',');
+                    }
+                    if (isMissing(values[i])) {
+                        row.append('?');
+                    } else if (numeric[i]) {
+                        if (!isNumber(values[i])) {
+                            throw new IOException("Column " + (i + 1) + " was inferred as numeric from the sample, "
+                                    + "but has the value '" + values[i] + "': use a larger sample or make it nominal");
+                        }
+                        row.append(values[i]);
+                    } else {
+                        chunk.labels.get(i).add(values[i]);
+                        row.append(Utils.quote(values[i]));
+                    }
+                }
+                writer.write(row.toString());
+                writer.newLine();
+                chunk.numLines++;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * @return The position of the first line starting at or after position.
+     */
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        // The line starts at position if the previous byte is a line break
+        long p = position - 1;
+        while (p < channel.size()) {
+            buffer.clear();
+            int read = channel.read(buffer, p);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += read;
+        }
+        return channel.size();
+    }
+
+    /**
+     * Splits a line by the separator, taking into account quoted values.
+     */
+    private static String[] split(String line, char separator) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        char quote = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == quote) {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quoted = true;
+                quote = c;
+            } else if (c == separator) {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values.toArray(new String[0]);
+    }
+
+    private static boolean isMissing(String value) {
+        return value.isEmpty() || value.equals("?");
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static char unescape(String separator) {
+        return separator.equals("\\t") ? '\t' : separator.charAt(0);
+    }
+}
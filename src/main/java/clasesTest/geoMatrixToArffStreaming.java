@@ -0,0 +1,222 @@
+package clasesTest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.albacete.simd.data.BinaryInstances;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Streaming version of geoMatrixToArff. It converts a GEO series matrix
+ * (genes x samples, tab separated) into a dataset with one instance per
+ * sample and one numeric attribute per gene, without loading the matrix.
+ *
+ * The lines starting with '!' are skipped, the first other line is the header
+ * with the names of the samples, and the first column of the rest is the name
+ * of the gene (it is not kept as an attribute, as in geoMatrixToArff).
+ *
+ * For an ARFF output, the matrix is read in blocks of rows and transposed
+ * through a memory-mapped scratch file, which is then written sample by
+ * sample. For a binary output (".bin", see BinaryInstances) each row is
+ * already a column, so it is written directly. The memory used is bounded by
+ * the size of the blocks and not by the size of the matrix.
+ *
+ * Arguments: input output [blockMB]
+ *
+ * @author Pablo Torrijos Arenas
+ */
+public class geoMatrixToArffStreaming {
+
+    /**
+     * Maximum size of the region of the scratch file mapped at once.
+     */
+    private static final long WINDOW = 256L << 20;
+
+    public static void main(String[] args) throws Exception {
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        long blockBytes = ((args.length > 2) ? Long.parseLong(args[2]) : 64) << 20;
+
+        double init = System.currentTimeMillis();
+
+        // FIRST PASS: samples and genes
+        List<String> genes = new ArrayList<>();
+        int numSamples;
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            String[] header = nextRow(reader);
+            if (header == null) {
+                throw new IOException(input + " has no header row");
+            }
+            numSamples = header.length - 1;
+
+            String[] row;
+            while ((row = nextRow(reader)) != null) {
+                genes.add(unquote(row[0]));
+            }
+        }
+        System.out.println(numSamples + " samples and " + genes.size() + " genes");
+
+        // Header: one numeric attribute per gene
+        ArrayList<Attribute> attributes = new ArrayList<>(genes.size());
+        for (String gene : genes) {
+            attributes.add(new Attribute(gene));
+        }
+        String relation = input.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Instances header = new Instances(relation, attributes, 0);
+        genes = null;
+
+        if (output.toString().endsWith(BinaryInstances.SUFFIX)) {
+            writeBinary(input, output, header, numSamples);
+        } else {
+            writeArff(input, output, header, numSamples, blockBytes);
+        }
+
+        System.out.println(output + " written in " + (System.currentTimeMillis() - init) / 1000 + " s");
+    }
+
+    /**
+     * Writes the binary format, where each row of the matrix is a column.
+     */
+    private static void writeBinary(Path input, Path output, Instances header,
+            int numSamples) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+                BinaryInstances.ColumnWriter writer = new BinaryInstances.ColumnWriter(output, header, numSamples, null)) {
+            nextRow(reader);
+
+            double[] column = new double[numSamples];
+            for (int gene = 0; gene < header.numAttributes(); gene++) {
+                parseRow(nextRow(reader), column, gene);
+                writer.writeColumn(column);
+            }
+        }
+    }
+
+    /**
+     * Writes the ARFF, transposing the matrix through a scratch file with a
+     * row of genes for each sample.
+     */
+    private static void writeArff(Path input, Path output, Instances header,
+            int numSamples, long blockBytes) throws IOException {
+        int numGenes = header.numAttributes();
+        long rowBytes = 8L * numGenes;
+        // Genes of a block, and samples of a window of the scratch file
+        int blockGenes = (int) Math.max(1, Math.min(numGenes, blockBytes / (8L * numSamples)));
+        int windowSamples = (int) Math.max(1, WINDOW / rowBytes);
+
+        Path scratch = Files.createTempFile(output.toAbsolutePath().getParent(), "transpose", ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(scratch.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            file.setLength(rowBytes * numSamples);
+
+            // SECOND PASS: transpose the blocks of genes into the scratch file
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                nextRow(reader);
+
+                double[][] block = new double[blockGenes][numSamples];
+                for (int first = 0; first < numGenes; first += blockGenes) {
+                    int size = Math.min(blockGenes, numGenes - first);
+                    for (int g = 0; g < size; g++) {
+                        parseRow(nextRow(reader), block[g], first + g);
+                    }
+
+                    for (int s0 = 0; s0 < numSamples; s0 += windowSamples) {
+                        int samples = Math.min(windowSamples, numSamples - s0);
+                        DoubleBuffer window = map(channel, s0 * rowBytes, samples * rowBytes);
+                        for (int s = 0; s < samples; s++) {
+                            window.position(s * numGenes + first);
+                            for (int g = 0; g < size; g++) {
+                                window.put(block[g][s0 + s]);
+                            }
+                        }
+                    }
+                }
+            }
+
+            // THIRD PASS: write the samples
+            try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                writer.write(header.toString());
+                writer.newLine();
+
+                StringBuilder line = new StringBuilder();
+                for (int s0 = 0; s0 < numSamples; s0 += windowSamples) {
+                    int samples = Math.min(windowSamples, numSamples - s0);
+                    DoubleBuffer window = map(channel, s0 * rowBytes, samples * rowBytes);
+                    for (int s = 0; s < samples; s++) {
+                        line.setLength(0);
+                        for (int g = 0; g < numGenes; g++) {
+                            double value = window.get(s * numGenes + g);
+                            if (g > 0) {
+                                line.append(',');
+                            }
+                            line.append(Double.isNaN(value) ? "?" : Double.toString(value));
+                        }
+                        writer.write(line.toString());
+                        writer.newLine();
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+    }
+
+    private static DoubleBuffer map(FileChannel channel, long position, long length) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+        return buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * @return The next row of the matrix split by tabs, or null at the end of
+     * the matrix.
+     */
+    private static String[] nextRow(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("!series_matrix_table_end")) {
+                return null;
+            }
+            if (!line.isEmpty() && !line.startsWith("!")) {
+                return line.split("\t", -1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the values of the samples of a row (NaN for the missing ones).
+     */
+    private static void parseRow(String[] row, double[] values, int gene) throws IOException {
+        if (row == null || row.length != values.length + 1) {
+            throw new IOException("Row of the gene " + (gene + 1) + " has "
+                    + (row == null ? 0 : row.length - 1) + " values instead of " + values.length);
+        }
+        for (int s = 0; s < values.length; s++) {
+            String token = unquote(row[s + 1]);
+            if (token.isEmpty() || token.equals("?") || token.equalsIgnoreCase("null") || token.equalsIgnoreCase("NA")) {
+                values[s] = Double.NaN;
+            } else {
+                values[s] = Double.parseDouble(token);
+            }
+        }
+    }
+
+    private static String unquote(String token) {
+        token = token.trim();
+        if (token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"")) {
+            token = token.substring(1, token.length() - 1);
+        }
+        return token;
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    BinaryInstances.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils;
+
+/**
+ * Binary columnar copy of a dataset, much faster to load than the ARFF text.
+ *
+ * Layout (little endian):
+ * <pre>
+ *   int magic, int version
+ *   int numInstances, int numAttributes, int classIndex
+ *   int headerLength, byte[headerLength]   ARFF header (UTF-8)
+ *   byte unitWeights                       1 if every weight is 1
+ *   padding to 8 bytes
+ *   [double[numInstances]]                 weights, if not unitWeights
+ *   for each attribute:
+ *     byte type, padding to 8 bytes, column block padded to 8 bytes
+ * </pre>
+ * Nominal columns whose values fit are stored as bytes or shorts (the largest
+ * code is the missing value), and the rest as doubles (NaN is missing). The
+ * columns are read one after another into a single buffer when loading, as
+ * a mapping per column would exceed the limit of mappings of the process
+ * with the tens of thousands of attributes of microarray data.
+ *
+ * The cache of "name.arff" is "name.arff.bin", and read() uses it whenever it
+ * is newer than the ARFF.
+ */
+public class BinaryInstances {
+
+    private static final int MAGIC = 0x4D414E42;
+    private static final int VERSION = 1;
+
+    private static final byte DOUBLE = 0;
+    private static final byte BYTE = 1;
+    private static final byte SHORT = 2;
+
+    /**
+     * Suffix of the cache files.
+     */
+    public static final String SUFFIX = ".bin";
+
+    private BinaryInstances() {
+    }
+
+    /**
+     * Reads a dataset, from its binary cache if there is an up-to-date one
+     * next to it, or with ConverterUtils.DataSource otherwise. The class
+     * index is not set.
+     *
+     * @param file Path of the dataset.
+     * @return The dataset.
+     * @throws Exception If the dataset cannot be read.
+     */
+    public static Instances read(String file) throws Exception {
+        File source = new File(file);
+        File cache = new File(file + SUFFIX);
+
+        if (cache.isFile() && cache.lastModified() >= source.lastModified()) {
+            try {
+                return load(cache.toPath());
+            } catch (IOException ex) {
+                System.out.println("Cannot read the cache " + cache + ", reading " + file + ": " + ex);
+            }
+        }
+
+        return new ConverterUtils.DataSource(file).getDataSet();
+    }
+
+    /**
+     * Writes the binary cache of a dataset.
+     *
+     * @param data Dataset to write. String and relational attributes are not
+     * supported.
+     * @param file Path of the cache.
+     * @throws IOException If the cache cannot be written.
+     */
+    public static void write(Instances data, Path file) throws IOException {
+        int n = data.numInstances();
+        double[] weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            weights[i] = data.instance(i).weight();
+        }
+
+        try (ColumnWriter writer = new ColumnWriter(file, data, n, weights)) {
+            double[] column = new double[n];
+            for (int att = 0; att < data.numAttributes(); att++) {
+                for (int i = 0; i < n; i++) {
+                    column[i] = data.instance(i).value(att);
+                }
+                writer.writeColumn(column);
+            }
+        }
+    }
+
+    /**
+     * Writes a binary dataset column by column, so the whole dataset never
+     * needs to be in memory. The file is written to a temporary file and
+     * moved when closed, so a reader never sees it half written.
+     */
+    public static class ColumnWriter implements Closeable {
+
+        private final Path file;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final Instances header;
+        private final int numInstances;
+        private int numColumns = 0;
+
+        /**
+         * Constructor. Writes the header of the file.
+         *
+         * @param file Path of the file.
+         * @param header Attributes and class index of the dataset (its
+         * instances are ignored). String and relational attributes are not
+         * supported.
+         * @param numInstances Number of instances of the dataset.
+         * @param weights Weights of the instances, or null if all are 1.
+         * @throws IOException If the file cannot be written.
+         */
+        public ColumnWriter(Path file, Instances header, int numInstances,
+                double[] weights) throws IOException {
+            for (int att = 0; att < header.numAttributes(); att++) {
+                if (header.attribute(att).isString() || header.attribute(att).isRelationValued()) {
+                    throw new IOException("Attribute " + header.attribute(att).name()
+                            + " is string or relational, which are not supported");
+                }
+            }
+
+            this.file = file;
+            this.header = new Instances(header, 0);
+            this.numInstances = numInstances;
+
+            boolean unitWeights = true;
+            for (int i = 0; weights != null && i < numInstances && unitWeights; i++) {
+                unitWeights = weights[i] == 1;
+            }
+
+            byte[] text = this.header.toString().getBytes(StandardCharsets.UTF_8);
+            this.tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+
+            ByteBuffer buffer = ByteBuffer.allocate(pad(24 + text.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(numInstances).putInt(header.numAttributes()).putInt(header.classIndex());
+            buffer.putInt(text.length).put(text);
+            buffer.put((byte) (unitWeights ? 1 : 0));
+            writeFully(channel, buffer);
+
+            if (!unitWeights) {
+                buffer = allocate(8 * numInstances);
+                for (int i = 0; i < numInstances; i++) {
+                    buffer.putDouble(weights[i]);
+                }
+                writeFully(channel, buffer);
+            }
+        }
+
+        /**
+         * Writes the values of the next attribute.
+         *
+         * @param values Value of the attribute in each instance (NaN is
+         * missing).
+         * @throws IOException If the file cannot be written.
+         */
+        public void writeColumn(double[] values) throws IOException {
+            if (numColumns == header.numAttributes()) {
+                throw new IOException("All the columns of " + file + " are already written");
+            }
+
+            byte type = columnType(header.attribute(numColumns++));
+            ByteBuffer buffer = allocate(8 + pad(numInstances * width(type)));
+            buffer.put(type).position(8);
+
+            for (int i = 0; i < numInstances; i++) {
+                double value = values[i];
+                switch (type) {
+                    case BYTE:
+                        buffer.put((byte) (Double.isNaN(value) ? 0xFF : (int) value));
+                        break;
+                    case SHORT:
+                        buffer.putShort((short) (Double.isNaN(value) ? 0xFFFF : (int) value));
+                        break;
+                    default:
+                        buffer.putDouble(value);
+                        break;
+                }
+            }
+            writeFully(channel, buffer);
+        }
+
+        /**
+         * Moves the file to its final path if every column was written, or
+         * deletes it otherwise. The file is readable by every user, as the
+         * datasets it caches (the temporary file is only readable by its
+         * owner).
+         *
+         * @throws IOException If the file cannot be moved.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (numColumns != header.numAttributes()) {
+                Files.deleteIfExists(tmp);
+                throw new IOException("Only " + numColumns + " of " + header.numAttributes()
+                        + " columns of " + file + " were written");
+            }
+            if (Files.getFileAttributeView(tmp, PosixFileAttributeView.class) != null) {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Loads a binary cache written by write().
+     *
+     * @param file Path of the cache.
+     * @return The dataset, with dense instances.
+     * @throws IOException If the file is not a valid cache.
+     */
+    public static Instances load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, 0);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a binary dataset of version " + VERSION);
+            }
+            int n = buffer.getInt();
+            int numAttributes = buffer.getInt();
+            int classIndex = buffer.getInt();
+            int headerLength = buffer.getInt();
+
+            buffer = ByteBuffer.allocate(headerLength + 1);
+            readFully(channel, buffer, 24);
+            Instances header = new Instances(new StringReader(
+                    new String(buffer.array(), 0, headerLength, StandardCharsets.UTF_8)));
+            boolean unitWeights = buffer.get(headerLength) == 1;
+            long position = pad(24 + headerLength + 1);
+
+            if (header.numAttributes() != numAttributes) {
+                throw new IOException(file + " has an invalid header");
+            }
+
+            // Values of each instance, filled column by column
+            double[][] values = new double[n][numAttributes];
+            double[] weights = null;
+            ByteBuffer column = null;
+            if (!unitWeights) {
+                weights = new double[n];
+                column = read(channel, column, position, 8L * n);
+                column.asDoubleBuffer().get(weights);
+                position += pad(8L * n);
+            }
+
+            ByteBuffer typeBuffer = ByteBuffer.allocate(1);
+            for (int att = 0; att < numAttributes; att++) {
+                typeBuffer.clear();
+                readFully(channel, typeBuffer, position);
+                byte type = typeBuffer.get();
+                if (type != BYTE && type != SHORT && type != DOUBLE) {
+                    throw new IOException(file + " has an invalid column type " + type);
+                }
+                column = read(channel, column, position + 8, (long) n * width(type));
+
+                switch (type) {
+                    case BYTE:
+                        for (int i = 0; i < n; i++) {
+                            int v = column.get() & 0xFF;
+                            values[i][att] = (v == 0xFF) ? Double.NaN : v;
+                        }
+                        break;
+                    case SHORT:
+                        ShortBuffer shorts = column.asShortBuffer();
+                        for (int i = 0; i < n; i++) {
+                            int v = shorts.get(i) & 0xFFFF;
+                            values[i][att] = (v == 0xFFFF) ? Double.NaN : v;
+                        }
+                        break;
+                    default:
+                        DoubleBuffer doubles = column.asDoubleBuffer();
+                        for (int i = 0; i < n; i++) {
+                            values[i][att] = doubles.get(i);
+                        }
+                        break;
+                }
+                position += 8 + pad((long) n * width(type));
+            }
+
+            Instances data = new Instances(header, n);
+            for (int i = 0; i < n; i++) {
+                data.add(new DenseInstance(unitWeights ? 1 : weights[i], values[i]));
+                values[i] = null;
+            }
+            data.setClassIndex(classIndex);
+            return data;
+        }
+    }
+
+    /**
+     * Writes the binary cache of each dataset given, next to it.
+     *
+     * @param args Paths of the datasets.
+     * @throws Exception If a dataset cannot be read or written.
+     */
+    public static void main(String[] args) throws Exception {
+        for (String file : args) {
+            double init = System.currentTimeMillis();
+            Instances data = new ConverterUtils.DataSource(file).getDataSet();
+            write(data, Paths.get(file + SUFFIX));
+            System.out.println(file + SUFFIX + " written in " + (System.currentTimeMillis() - init) / 1000 + " s");
+        }
+    }
+
+    private static byte columnType(Attribute attribute) {
+        if (attribute.isNominal() && attribute.numValues() < 0xFF) {
+            return BYTE;
+        }
+        if (attribute.isNominal() && attribute.numValues() < 0xFFFF) {
+            return SHORT;
+        }
+        return DOUBLE;
+    }
+
+    private static int width(byte type) {
+        return (type == BYTE) ? 1 : (type == SHORT) ? 2 : 8;
+    }
+
+    private static int pad(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static long pad(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private static ByteBuffer allocate(int length) {
+        return ByteBuffer.allocate(pad(length)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads length bytes at position into buffer, or into a larger one if
+     * they do not fit, so that the columns reuse the same buffer.
+     *
+     * @return The buffer with the bytes, from its position 0.
+     */
+    private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+        if (position + length > channel.size()) {
+            throw new IOException("Truncated binary dataset");
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("A column of the binary dataset is larger than 2 GB");
+        }
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear().limit((int) length);
+        readFully(channel, buffer, position);
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated binary dataset");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    PackedInstances.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.data;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Bit-packed column store of a dataset with nominal attributes, as the
+ * discretised data of mAnDE. The values of each attribute are stored in a
+ * column of longs, in lanes of 1, 2, 4, 8 or 16 bits: the smallest that fits
+ * its number of values, plus the missing value if there is any. With 2 to 10
+ * bins a value takes 1 to 4 bits instead of the 64 of a double, so that the
+ * columns of wide datasets stay in the cache while counting.
+ *
+ * The value of instance i is in the word i / lanes of the column, at the bit
+ * (i % lanes) * bits, and the missing value is stored as the code
+ * numValues(att). The counters read blocks of BLOCK instances of a column at
+ * once (see decode), or count the small tables with the bitmap index of the
+ * columns (see index).
+ */
+public final class PackedInstances {
+
+    /**
+     * Number of instances decoded at once by the counters, so that the
+     * decoded values of a few columns fit in the L1 cache.
+     */
+    public static final int BLOCK = 1024;
+
+    /**
+     * Attributes and class index of the dataset, without instances.
+     */
+    private final Instances header;
+
+    private final int numInstances;
+
+    /**
+     * Values of each attribute, packed in lanes of bits[att] bits.
+     */
+    private final long[][] columns;
+
+    /**
+     * Bits of the lanes of each attribute.
+     */
+    private final int[] bits;
+
+    /**
+     * log2 of the number of lanes per word of each attribute.
+     */
+    private final int[] laneShift;
+
+    /**
+     * Number of values of each attribute, which is the code of the missing
+     * value.
+     */
+    private final int[] numValues;
+
+    /**
+     * Whether each attribute has some missing value.
+     */
+    private final boolean[] hasMissing;
+
+    /**
+     * Weights of the instances, or null if all are 1.
+     */
+    private final double[] weights;
+
+    /**
+     * Bitmap index of the columns, built on first use (see index).
+     */
+    private volatile BitmapIndex index;
+
+    /**
+     * Constructor. Packs the values of the instances of data.
+     *
+     * @param data Dataset whose attributes are all nominal (discretised).
+     * @throws IllegalArgumentException If an attribute is not nominal or has
+     * more than 65535 values.
+     */
+    public PackedInstances(Instances data) {
+        this.header = new Instances(data, 0);
+        this.numInstances = data.numInstances();
+        int numAttributes = data.numAttributes();
+        this.columns = new long[numAttributes][];
+        this.bits = new int[numAttributes];
+        this.laneShift = new int[numAttributes];
+        this.numValues = new int[numAttributes];
+        this.hasMissing = new boolean[numAttributes];
+
+        for (int att = 0; att < numAttributes; att++) {
+            Attribute attribute = data.attribute(att);
+            if (!attribute.isNominal() || attribute.numValues() > 0xFFFF) {
+                throw new IllegalArgumentException("Attribute " + attribute.name()
+                        + " is not nominal with at most 65535 values, discretise it first");
+            }
+            numValues[att] = attribute.numValues();
+        }
+
+        boolean unitWeights = true;
+        for (int i = 0; i < numInstances && unitWeights; i++) {
+            unitWeights = data.instance(i).weight() == 1;
+        }
+        this.weights = unitWeights ? null : new double[numInstances];
+        for (int i = 0; weights != null && i < numInstances; i++) {
+            weights[i] = data.instance(i).weight();
+        }
+
+        // Row by row, as the instances are stored
+        for (int i = 0; i < numInstances; i++) {
+            Instance inst = data.instance(i);
+            for (int att = 0; att < numAttributes; att++) {
+                hasMissing[att] |= inst.isMissing(att);
+            }
+        }
+
+        for (int att = 0; att < numAttributes; att++) {
+            int codes = numValues[att] + (hasMissing[att] ? 1 : 0);
+            int width = 1;
+            while ((1 << width) < codes) {
+                width <<= 1;
+            }
+            bits[att] = width;
+            laneShift[att] = Integer.numberOfTrailingZeros(64 / width);
+            columns[att] = new long[(numInstances + (1 << laneShift[att]) - 1) >>> laneShift[att]];
+        }
+
+        for (int i = 0; i < numInstances; i++) {
+            Instance inst = data.instance(i);
+            for (int att = 0; att < numAttributes; att++) {
+                int shift = laneShift[att];
+                long code = inst.isMissing(att) ? numValues[att] : (long) inst.value(att);
+                columns[att][i >>> shift] |= code << ((i & ((1 << shift) - 1)) * bits[att]);
+            }
+        }
+    }
+
+    /**
+     * Decodes the values of an attribute in the instances [from, to).
+     *
+     * @param att Index of the attribute.
+     * @param from First instance.
+     * @param to Instance after the last one.
+     * @param out Array of at least to - from values where they are decoded.
+     * @param missingAs Value decoded for the missing values (0 is the value
+     * that the counters of mAnDE give them, as the cast of the NaN of weka).
+     */
+    public void decode(int att, int from, int to, int[] out, int missingAs) {
+        long[] column = columns[att];
+        int width = bits[att];
+        int shift = laneShift[att];
+        int lanes = 1 << shift;
+        long mask = (1L << width) - 1;
+        int missing = numValues[att];
+
+        int i = from, r = 0;
+        while (i < to) {
+            long word = column[i >>> shift] >>> ((i & (lanes - 1)) * width);
+            int end = Math.min(to, ((i >>> shift) + 1) << shift);
+            for (; i < end; i++, word >>>= width) {
+                out[r++] = (int) (word & mask);
+            }
+        }
+
+        if (hasMissing[att] && missingAs != missing) {
+            for (r = 0; r < to - from; r++) {
+                if (out[r] == missing) {
+                    out[r] = missingAs;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The bitmap index of the columns, with the missing values
+     * counted as 0 as the counters of mAnDE do. It is built the first time,
+     * and shared by the threads that count.
+     */
+    public BitmapIndex index() {
+        BitmapIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                if (index == null) {
+                    index = new BitmapIndex(this, true);
+                }
+                result = index;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param i Index of the instance.
+     * @param att Index of the attribute.
+     * @return The value of the attribute in the instance, or numValues(att)
+     * if it is missing.
+     */
+    public int value(int i, int att) {
+        int shift = laneShift[att];
+        long word = columns[att][i >>> shift] >>> ((i & ((1 << shift) - 1)) * bits[att]);
+        return (int) (word & ((1L << bits[att]) - 1));
+    }
+
+    /**
+     * @param i Index of the instance.
+     * @param att Index of the attribute.
+     * @return True if the value of the attribute in the instance is missing.
+     */
+    public boolean isMissing(int i, int att) {
+        return value(i, att) == numValues[att];
+    }
+
+    /**
+     * @param i Index of the instance.
+     * @return The weight of the instance.
+     */
+    public double weight(int i) {
+        return (weights == null) ? 1 : weights[i];
+    }
+
+    /**
+     * @return True if the weight of every instance is 1.
+     */
+    public boolean hasUnitWeights() {
+        return weights == null;
+    }
+
+    /**
+     * @return The attributes and the class index of the dataset, without
+     * instances.
+     */
+    public Instances header() {
+        return header;
+    }
+
+    public int numInstances() {
+        return numInstances;
+    }
+
+    public int numAttributes() {
+        return columns.length;
+    }
+
+    public int classIndex() {
+        return header.classIndex();
+    }
+
+    /**
+     * @param att Index of the attribute.
+     * @return The number of values of the attribute.
+     */
+    public int numValues(int att) {
+        return numValues[att];
+    }
+
+    /**
+     * @return The number of values of the class.
+     */
+    public int classNumValues() {
+        return numValues[classIndex()];
+    }
+
+    /**
+     * @param att Index of the attribute.
+     * @return The bits of the lanes of the attribute.
+     */
+    public int bits(int att) {
+        return bits[att];
+    }
+
+    /**
+     * @return The bytes used by the columns and the weights.
+     */
+    public long sizeInBytes() {
+        long bytes = (weights == null) ? 0 : 8L * weights.length;
+        for (long[] column : columns) {
+            bytes += 8L * column.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    DistributedTraining.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.albacete.simd.mAnDE.mAnDE;
+import org.albacete.simd.model.ModelIO;
+
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.converters.ConverterUtils;
+
+/**
+ * Partition-and-merge training of mAnDE on data that does not fit in one
+ * node. Every parameter of the mSPnDEs and of the Naive Bayes is a count, so
+ * each worker counts its shard against a shared structure and the partial
+ * models are merged by adding the counts (see mAnDE.aggregate). The steps
+ * exchange serialized mAnDEs, so they can run in different processes or
+ * nodes:
+ *
+ * <pre>
+ *   structure sample.arff template.ser [options]   cut points and structure
+ *   edges template.ser shard.arff partial.ser      edges of a shard (optional)
+ *   mergeEdges template.ser partial.ser...         union of the edges
+ *   counts template.ser shard.arff partial.ser     counts of a shard
+ *   merge model partial.ser...                     final model (see ModelIO)
+ *   local data.arff shards sampleSize model [options]
+ * </pre>
+ *
+ * "local" runs the whole protocol on one machine, with one process per shard
+ * that runs "counts". The class is the last attribute of the ARFF files.
+ */
+public class DistributedTraining {
+
+    public static void main(String[] args) throws Exception {
+        switch (args[0]) {
+            case "structure": {
+                mAnDE template = new mAnDE();
+                template.setOptions(Arrays.copyOfRange(args, 3, args.length));
+                template.buildStructure(read(args[1]));
+                SerializationHelper.write(args[2], template);
+                break;
+            }
+            case "edges": {
+                mAnDE partial = (mAnDE) SerializationHelper.read(args[1]);
+                partial.addStructure(read(args[2]));
+                SerializationHelper.write(args[3], partial);
+                break;
+            }
+            case "mergeEdges": {
+                mAnDE template = (mAnDE) SerializationHelper.read(args[1]);
+                for (int i = 2; i < args.length; i++) {
+                    template.mergeStructure((mAnDE) SerializationHelper.read(args[i]));
+                }
+                SerializationHelper.write(args[1], template);
+                break;
+            }
+            case "counts": {
+                mAnDE partial = (mAnDE) SerializationHelper.read(args[1]);
+                partial.buildCounts(read(args[2]));
+                SerializationHelper.write(args[3], partial);
+                break;
+            }
+            case "merge":
+                merge(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+                break;
+            case "local":
+                local(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                        Paths.get(args[4]), Arrays.copyOfRange(args, 5, args.length));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown step " + args[0]);
+        }
+    }
+
+    /**
+     * Adds the counts of the partial models and saves the final model.
+     */
+    private static mAnDE merge(Path model, String[] partials) throws Exception {
+        mAnDE merged = (mAnDE) SerializationHelper.read(partials[0]);
+        for (int i = 1; i < partials.length; i++) {
+            merged.aggregate((mAnDE) SerializationHelper.read(partials[i]));
+        }
+        merged.finalizeAggregation();
+        ModelIO.save(merged, model);
+        return merged;
+    }
+
+    /**
+     * Runs the protocol with a process per shard: the structure is learnt on
+     * a random sample and the shards are counted in parallel.
+     */
+    private static void local(String input, int numShards, int sampleSize,
+            Path model, String[] options) throws Exception {
+        double init = System.currentTimeMillis();
+        Path dir = Files.createTempDirectory(model.toAbsolutePath().getParent(), "shards");
+        List<Process> workers = new ArrayList<>(numShards);
+
+        try {
+            Instances data = read(input);
+            data.randomize(new Random(1));
+
+            // STRUCTURE on the sample, with the threads shared by the workers
+            mAnDE template = new mAnDE();
+            template.setOptions(options);
+            template.buildStructure(new Instances(data, 0, Math.min(sampleSize, data.numInstances())));
+            ThreadBudget.apply(template, ThreadBudget.inner(ThreadBudget.resolve(template.getNumThreads()), numShards));
+            String templateFile = dir.resolve("template.ser").toString();
+            SerializationHelper.write(templateFile, template);
+
+            // SHARDS, one instance out of numShards each
+            String[] partials = new String[numShards];
+            for (int s = 0; s < numShards; s++) {
+                Instances shard = new Instances(data, 0);
+                for (int i = s; i < data.numInstances(); i += numShards) {
+                    shard.add(data.instance(i));
+                }
+                String shardFile = dir.resolve("shard" + s + ".arff").toString();
+                ConverterUtils.DataSink.write(shardFile, shard);
+                partials[s] = dir.resolve("partial" + s + ".ser").toString();
+
+                workers.add(new ProcessBuilder(javaCommand(), "-cp", System.getProperty("java.class.path"),
+                        DistributedTraining.class.getName(), "counts", templateFile, shardFile, partials[s])
+                        .inheritIO().start());
+            }
+            data = null;
+
+            for (int s = 0; s < numShards; s++) {
+                if (workers.get(s).waitFor() != 0) {
+                    throw new IOException("The worker of the shard " + s + " failed");
+                }
+            }
+
+            mAnDE merged = merge(model, partials);
+            System.out.println(numShards + " shards, " + merged.getmSPnDEs().size() + " mSPnDEs");
+            System.out.println(model + " written in " + (System.currentTimeMillis() - init) / 1000 + " s");
+        } finally {
+            workers.forEach(Process::destroy);
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static Instances read(String file) throws Exception {
+        Instances data = ConverterUtils.DataSource.read(file);
+        data.setClassIndex(data.numAttributes() - 1);
+        return data;
+    }
+
+    private static String javaCommand() {
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+}
@@ -0,0 +1,670 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    FastCrossValidation.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.albacete.simd.mAnDE.mAnDE;
+import org.albacete.simd.mAnDE.mSP1DE;
+import org.albacete.simd.mAnDE.mSPnDE;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.bayes.AveragedNDependenceEstimators.A1DE;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.SupervisedFilter;
+
+/**
+ * Cross-validation by count subtraction. The parameters of NB, A1DE and the
+ * mSP1DEs of mAnDE are additive counts, so the counts are computed once over
+ * the whole dataset and the counts of each test fold are subtracted before
+ * predicting it, instead of retraining the model for every fold.
+ *
+ * - NB and A1DE: the predictions are exactly the ones of a model trained on
+ *   the training folds, provided that the data they receive is nominal.
+ * - mAnDE: FIXED-STRUCTURE APPROXIMATION. The mSP1DE structure and the
+ *   internal discretisation are learnt once on the whole dataset, and only
+ *   the probability tables are re-estimated for each fold.
+ *
+ * If the classifier is a FilteredClassifier, its filter is fitted once on the
+ * whole dataset. A supervised filter would then see the class of the test
+ * folds, so they are not supported, except for the supervised Discretize on
+ * data without numeric attributes, where it changes nothing (see
+ * isSupported).
+ */
+public class FastCrossValidation {
+
+    /**
+     * Returns true if the classifier (or the one wrapped by a
+     * FilteredClassifier) can be cross-validated by count subtraction. A
+     * mAnDE with a frequency limit is not, because the mSPnDEs evaluated
+     * depend on the counts of each training fold.
+     *
+     * @param clas Classifier to check.
+     * @return True if it is supported.
+     */
+    public static boolean isSupported(Classifier clas) {
+        if (clas instanceof FilteredClassifier) {
+            clas = ((FilteredClassifier) clas).getClassifier();
+        }
+        if (clas instanceof NaiveBayes) {
+            NaiveBayes nb = (NaiveBayes) clas;
+            return !nb.getUseKernelEstimator() && !nb.getUseSupervisedDiscretization();
+        }
+        if (clas instanceof A1DE) {
+            A1DE a1de = (A1DE) clas;
+            return !a1de.getSubsumptionResolution() && !a1de.getWeightedAODE();
+        }
+        if (clas instanceof mAnDE) {
+            return ((mAnDE) clas).getFrequencyLimit() == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Version of isSupported that also checks the data. The counts of NB and
+     * A1DE need nominal attributes, so numeric ones are only supported if
+     * the classifier is a FilteredClassifier that discretises all of them
+     * into nominal ones without the class (unsupervised). mAnDE discretises
+     * its own input. Supervised filters are not supported, except for the
+     * supervised Discretize, which leaves nominal data unchanged.
+     *
+     * @param clas Classifier to check.
+     * @param data Data to cross-validate.
+     * @return True if it is supported.
+     */
+    public static boolean isSupported(Classifier clas, Instances data) {
+        if (!isSupported(clas)) {
+            return false;
+        }
+        boolean discretized = false;
+        if (clas instanceof FilteredClassifier) {
+            Filter filter = ((FilteredClassifier) clas).getFilter();
+            if (filter instanceof SupervisedFilter
+                    && !(filter instanceof weka.filters.supervised.attribute.Discretize)) {
+                return false;
+            }
+            discretized = isNominalDiscretizer(filter);
+            clas = ((FilteredClassifier) clas).getClassifier();
+        }
+        if (clas instanceof mAnDE) {
+            return true;
+        }
+
+        for (int i = 0; i < data.numAttributes(); i++) {
+            if (i != data.classIndex() && !data.attribute(i).isNominal()
+                    && !(discretized && data.attribute(i).isNumeric())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the filter turns every numeric attribute into a
+     * nominal one without looking at the class.
+     */
+    private static boolean isNominalDiscretizer(Filter filter) {
+        if (filter instanceof weka.filters.unsupervised.attribute.Discretize) {
+            weka.filters.unsupervised.attribute.Discretize d = (weka.filters.unsupervised.attribute.Discretize) filter;
+            return d.getAttributeIndices().equals("first-last") && !d.getInvertSelection();
+        }
+        return false;
+    }
+
+    /**
+     * Same contract as Evaluation.crossValidateModel: the data is randomized
+     * and stratified with the given Random, and the predictions of each fold
+     * are recorded in the returned Evaluation.
+     *
+     * @param clas Classifier to evaluate.
+     * @param data Data to cross-validate.
+     * @param folds Number of folds.
+     * @param random Random used to shuffle the data.
+     * @return Evaluation with the predictions of all the folds.
+     * @throws Exception
+     */
+    public static Evaluation crossValidateModel(Classifier clas, Instances data,
+            int folds, Random random) throws Exception {
+        data = new Instances(data);
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(folds);
+        }
+
+        double[][] predictions = crossValidatePredictions(clas, data, folds);
+
+        Evaluation evaluation = new Evaluation(data);
+        for (int i = 0; i < data.numInstances(); i++) {
+            evaluation.evaluateModelOnceAndRecordPrediction(predictions[i], data.instance(i));
+        }
+        return evaluation;
+    }
+
+    /**
+     * Predicts every instance with the counts of the other folds. The folds
+     * are the ones of Instances.testCV, in the order of the data.
+     *
+     * @param clas Classifier to evaluate.
+     * @param data Data to cross-validate.
+     * @param folds Number of folds.
+     * @return The predicted distribution of each instance, in data order.
+     * @throws Exception
+     */
+    public static double[][] crossValidatePredictions(Classifier clas,
+            Instances data, int folds) throws Exception {
+        if (!isSupported(clas, data)) {
+            throw new IllegalArgumentException("Count-subtraction CV not supported for "
+                    + clas.getClass().getName() + " on " + data.relationName());
+        }
+        if (folds == 0 || folds > data.numInstances()) {
+            folds = data.numInstances();
+        }
+
+        // Fit the filter once on the whole dataset
+        if (clas instanceof FilteredClassifier) {
+            Filter filter = Filter.makeCopy(((FilteredClassifier) clas).getFilter());
+            filter.setInputFormat(data);
+            data = Filter.useFilter(data, filter);
+            clas = ((FilteredClassifier) clas).getClassifier();
+        }
+
+        Predictor predictor;
+        if (clas instanceof NaiveBayes) {
+            predictor = new NBPredictor(new Counts(data, null));
+        } else if (clas instanceof A1DE) {
+            predictor = new A1DEPredictor(new Counts(data, allPairs(data)),
+                    ((A1DE) clas).getWeight(), ((A1DE) clas).getFrequencyLimit());
+        } else {
+            predictor = mAnDEPredictor.build((mAnDE) AbstractClassifier.makeCopy(clas), data);
+            data = ((mAnDEPredictor) predictor).discretized;
+        }
+
+        return predictByFolds(predictor, data, folds);
+    }
+
+    /**
+     * Subtracts the counts of each fold, predicts its instances and adds the
+     * counts back.
+     */
+    private static double[][] predictByFolds(Predictor predictor, Instances data,
+            int folds) throws Exception {
+        int n = data.numInstances();
+        double[][] predictions = new double[n][];
+
+        for (int fold = 0; fold < folds; fold++) {
+            // Same fold limits as Instances.testCV
+            int numInstForFold = n / folds;
+            int offset;
+            if (fold < n % folds) {
+                numInstForFold++;
+                offset = fold;
+            } else {
+                offset = n % folds;
+            }
+            int first = fold * (n / folds) + offset;
+
+            for (int i = first; i < first + numInstForFold; i++) {
+                predictor.counts.add(data.instance(i), -1);
+            }
+            for (int i = first; i < first + numInstForFold; i++) {
+                predictions[i] = predictor.predict(data.instance(i));
+            }
+            for (int i = first; i < first + numInstForFold; i++) {
+                predictor.counts.add(data.instance(i), 1);
+            }
+        }
+
+        return predictions;
+    }
+
+    /**
+     * Pairs (parent, child) with parent > child for all the attributes,
+     * as needed by A1DE.
+     */
+    private static List<int[]> allPairs(Instances data) {
+        List<int[]> pairs = new ArrayList<>();
+        for (int p = 0; p < data.numAttributes(); p++) {
+            for (int c = 0; c < p; c++) {
+                if (p != data.classIndex() && c != data.classIndex()) {
+                    pairs.add(new int[]{p, c});
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Weighted counts of a nominal dataset. The missing values are counted in
+     * an extra value (numValues) of each attribute.
+     */
+    private static class Counts {
+
+        final int numClasses;
+        final int numAttributes;
+        final int classIndex;
+        final int[] numValues;
+
+        /** N(y) */
+        final double[] classCounts;
+
+        /** N */
+        double sumInstances;
+
+        /** N(xi, y), indexed [xi][v * numClasses + y] */
+        final double[][] attCounts;
+
+        /** N(xi, xj, y), indexed [xi][xj][(vi * (numValues[xj] + 1) + vj) * numClasses + y] */
+        final double[][][] pairCounts;
+
+        Counts(Instances data, List<int[]> pairs) {
+            numClasses = data.numClasses();
+            numAttributes = data.numAttributes();
+            classIndex = data.classIndex();
+            numValues = new int[numAttributes];
+            classCounts = new double[numClasses];
+            attCounts = new double[numAttributes][];
+            for (int i = 0; i < numAttributes; i++) {
+                if (i != classIndex && !data.attribute(i).isNominal()) {
+                    throw new IllegalArgumentException("Count-subtraction CV needs nominal "
+                            + "attributes: " + data.attribute(i).name());
+                }
+                numValues[i] = data.attribute(i).numValues();
+                attCounts[i] = new double[(numValues[i] + 1) * numClasses];
+            }
+
+            pairCounts = new double[numAttributes][numAttributes][];
+            if (pairs != null) {
+                for (int[] pair : pairs) {
+                    pairCounts[pair[0]][pair[1]] = new double[(numValues[pair[0]] + 1)
+                            * (numValues[pair[1]] + 1) * numClasses];
+                }
+            }
+
+            for (Instance inst : data) {
+                add(inst, 1);
+            }
+        }
+
+        int value(Instance inst, int att) {
+            return inst.isMissing(att) ? numValues[att] : (int) inst.value(att);
+        }
+
+        /**
+         * Adds (sign 1) or subtracts (sign -1) an instance to the counts.
+         */
+        void add(Instance inst, int sign) {
+            if (inst.classIsMissing()) {
+                return;
+            }
+            int y = (int) inst.classValue();
+            double w = sign * inst.weight();
+
+            classCounts[y] += w;
+            sumInstances += w;
+
+            int[] values = new int[numAttributes];
+            for (int i = 0; i < numAttributes; i++) {
+                if (i != classIndex) {
+                    values[i] = value(inst, i);
+                    attCounts[i][values[i] * numClasses + y] += w;
+                }
+            }
+
+            for (int i = 0; i < numAttributes; i++) {
+                for (int j = 0; j < numAttributes; j++) {
+                    double[] table = pairCounts[i][j];
+                    if (table != null) {
+                        table[(values[i] * (numValues[j] + 1) + values[j]) * numClasses + y] += w;
+                    }
+                }
+            }
+        }
+
+        double att(int att, int v, int y) {
+            return attCounts[att][v * numClasses + y];
+        }
+
+        double pair(int xi, int vi, int xj, int vj, int y) {
+            return pairCounts[xi][xj][(vi * (numValues[xj] + 1) + vj) * numClasses + y];
+        }
+
+        /** N(y) of the instances where att is not missing */
+        double nonMissing(int att, int y) {
+            return classCounts[y] - att(att, numValues[att], y);
+        }
+    }
+
+    /**
+     * Predicts an instance from the current counts.
+     */
+    private static abstract class Predictor {
+
+        final Counts counts;
+
+        Predictor(Counts counts) {
+            this.counts = counts;
+        }
+
+        abstract double[] predict(Instance inst) throws Exception;
+    }
+
+    /**
+     * Same estimates as NaiveBayes with DiscreteEstimators (Laplace correction).
+     */
+    private static class NBPredictor extends Predictor {
+
+        NBPredictor(Counts counts) {
+            super(counts);
+        }
+
+        @Override
+        double[] predict(Instance inst) {
+            Counts c = counts;
+            double[] probs = new double[c.numClasses];
+            for (int y = 0; y < c.numClasses; y++) {
+                probs[y] = (c.classCounts[y] + 1) / (c.sumInstances + c.numClasses);
+            }
+
+            for (int att = 0; att < c.numAttributes; att++) {
+                if (att == c.classIndex || inst.isMissing(att)) {
+                    continue;
+                }
+                int v = (int) inst.value(att);
+                double max = 0;
+                for (int y = 0; y < c.numClasses; y++) {
+                    double p = (c.att(att, v, y) + 1) / (c.nonMissing(att, y) + c.numValues[att]);
+                    probs[y] *= Math.max(1e-75, Math.pow(p, inst.attribute(att).weight()));
+                    if (probs[y] > max) {
+                        max = probs[y];
+                    }
+                }
+                // Danger of probability underflow
+                if ((max > 0) && (max < 1e-75)) {
+                    for (int y = 0; y < c.numClasses; y++) {
+                        probs[y] *= 1e75;
+                    }
+                }
+            }
+
+            Utils.normalize(probs);
+            return probs;
+        }
+    }
+
+    /**
+     * Same estimates as the non-incremental A1DE (m-estimate, frequency limit
+     * for the super-parents and NB when there is no valid super-parent).
+     */
+    private static class A1DEPredictor extends Predictor {
+
+        final double m;
+        final int limit;
+
+        A1DEPredictor(Counts counts, double m, int limit) {
+            super(counts);
+            this.m = m;
+            this.limit = limit;
+        }
+
+        double frequency(int att, int v) {
+            double freq = 0;
+            for (int y = 0; y < counts.numClasses; y++) {
+                freq += counts.att(att, v, y);
+            }
+            return freq;
+        }
+
+        @Override
+        double[] predict(Instance inst) {
+            Counts c = counts;
+            int numAtts = c.numAttributes;
+            int numClasses = c.numClasses;
+            double probInitializerAODE = Double.MAX_VALUE / numAtts;
+
+            int[] v = new int[numAtts];
+            for (int att = 0; att < numAtts; att++) {
+                v[att] = (att == c.classIndex || inst.isMissing(att)) ? -1 : (int) inst.value(att);
+            }
+
+            // P(xp, y) for each valid super-parent
+            double[][] spodeProbs = new double[numAtts][numClasses];
+            int parentCount = 0;
+            for (int parent = 0; parent < numAtts; parent++) {
+                if (v[parent] == -1 || frequency(parent, v[parent]) < limit) {
+                    continue;
+                }
+                parentCount++;
+                double missing = frequency(parent, c.numValues[parent]);
+                for (int y = 0; y < numClasses; y++) {
+                    spodeProbs[parent][y] = probInitializerAODE
+                            * ((c.att(parent, v[parent], y) + m / (numClasses * c.numValues[parent]))
+                            / ((c.sumInstances - missing) + m));
+                }
+            }
+
+            if (parentCount < 1) {
+                return naiveBayes(v);
+            }
+
+            for (int parent = 1; parent < numAtts; parent++) {
+                if (v[parent] == -1) {
+                    continue;
+                }
+                for (int child = 0; child < parent; child++) {
+                    if (v[child] == -1) {
+                        continue;
+                    }
+                    for (int y = 0; y < numClasses; y++) {
+                        double pc = c.pair(parent, v[parent], child, v[child], y);
+                        // P(xp | xc, y)
+                        double missingParent = c.pair(parent, c.numValues[parent], child, v[child], y);
+                        spodeProbs[child][y] *= (pc + m / c.numValues[parent])
+                                / ((c.att(child, v[child], y) - missingParent) + m);
+                        // P(xc | xp, y)
+                        double missingChild = c.pair(parent, v[parent], child, c.numValues[child], y);
+                        spodeProbs[parent][y] *= (pc + m / c.numValues[child])
+                                / ((c.att(parent, v[parent], y) - missingChild) + m);
+                    }
+                }
+            }
+
+            double[] probs = new double[numClasses];
+            for (int y = 0; y < numClasses; y++) {
+                for (int i = 0; i < numAtts; i++) {
+                    probs[y] += spodeProbs[i][y] + Double.MIN_VALUE;
+                }
+            }
+            Utils.normalize(probs);
+            return probs;
+        }
+
+        double[] naiveBayes(int[] v) {
+            Counts c = counts;
+            double[] probs = new double[c.numClasses];
+            for (int y = 0; y < c.numClasses; y++) {
+                probs[y] = Double.MAX_VALUE * ((c.classCounts[y] + m / c.numClasses)
+                        / (c.sumInstances + m));
+            }
+            for (int att = 0; att < c.numAttributes; att++) {
+                if (v[att] == -1) {
+                    continue;
+                }
+                for (int y = 0; y < c.numClasses; y++) {
+                    probs[y] *= (c.att(att, v[att], y) + m / c.numValues[att])
+                            / (c.nonMissing(att, y) + m);
+                }
+            }
+            Utils.normalize(probs);
+            return probs;
+        }
+    }
+
+    /**
+     * Fixed-structure approximation of mAnDE: the mSP1DEs and the
+     * discretisation of a model trained on the whole dataset are kept, and
+     * their tables (and the NB) are re-estimated from the counts of each
+     * training fold.
+     */
+    private static class mAnDEPredictor extends Predictor {
+
+        final int[] parents;
+        final int[][] children;
+        final double addNB;
+        final boolean modeNB;
+        final NBPredictor nb;
+        Instances discretized;
+
+        mAnDEPredictor(Counts counts, int[] parents, int[][] children,
+                double addNB, boolean modeNB) {
+            super(counts);
+            this.parents = parents;
+            this.children = children;
+            this.addNB = addNB;
+            this.modeNB = modeNB;
+            this.nb = new NBPredictor(counts);
+        }
+
+        static mAnDEPredictor build(mAnDE model, Instances data) throws Exception {
+            // mAnDE empties the instances used to build it
+            model.buildClassifier(new Instances(data));
+            Instances discretized = Filter.useFilter(data, model.getDiscretizer());
+
+            List<int[]> pairs = new ArrayList<>();
+            int[] parents = new int[0];
+            int[][] children = new int[0][];
+            if (!model.isModeNB()) {
+                List<mSPnDE> spodes = new ArrayList<>(model.getmSPnDEs().values());
+                parents = new int[spodes.size()];
+                children = new int[spodes.size()][];
+                for (int s = 0; s < spodes.size(); s++) {
+                    if (!(spodes.get(s) instanceof mSP1DE)) {
+                        throw new IllegalArgumentException("Count-subtraction CV only supports mSP1DEs");
+                    }
+                    mSP1DE spode = (mSP1DE) spodes.get(s);
+                    parents[s] = spode.getXi();
+                    children[s] = spode.getChildren();
+                    for (int child : children[s]) {
+                        pairs.add(new int[]{parents[s], child});
+                    }
+                }
+            }
+
+            mAnDEPredictor predictor = new mAnDEPredictor(new Counts(discretized, pairs),
+                    parents, children, model.getAddNB(), model.isModeNB());
+            predictor.discretized = discretized;
+            return predictor;
+        }
+
+        /**
+         * mSP1DE reads missing values as the value 0, so their counts are
+         * added to the ones of the value 0.
+         */
+        double att(int xi, int vi, int y) {
+            double count = counts.att(xi, vi, y);
+            if (vi == 0) {
+                count += counts.att(xi, counts.numValues[xi], y);
+            }
+            return count;
+        }
+
+        double pair(int xi, int vi, int xj, int vj, int y) {
+            double count = counts.pair(xi, vi, xj, vj, y);
+            int missingI = counts.numValues[xi];
+            int missingJ = counts.numValues[xj];
+            if (vi == 0) {
+                count += counts.pair(xi, missingI, xj, vj, y);
+            }
+            if (vj == 0) {
+                count += counts.pair(xi, vi, xj, missingJ, y);
+            }
+            if (vi == 0 && vj == 0) {
+                count += counts.pair(xi, missingI, xj, missingJ, y);
+            }
+            return count;
+        }
+
+        @Override
+        double[] predict(Instance inst) {
+            if (modeNB) {
+                return nb.predict(inst);
+            }
+
+            int numClasses = counts.numClasses;
+            double[] res = new double[numClasses];
+
+            for (int s = 0; s < parents.length; s++) {
+                int xi = parents[s];
+                int vi = (int) inst.value(xi);
+
+                double[] probs = new double[numClasses];
+                for (int y = 0; y < numClasses; y++) {
+                    double nyxi = att(xi, vi, y);
+                    probs[y] = nyxi / counts.sumInstances;
+                    for (int xj : children[s]) {
+                        probs[y] *= (nyxi == 0) ? 0 : pair(xi, vi, xj, (int) inst.value(xj), y) / nyxi;
+                    }
+                }
+
+                double sum = Utils.sum(probs);
+                for (int y = 0; y < numClasses; y++) {
+                    res[y] += (sum != 0) ? probs[y] / sum : 0;
+                }
+            }
+
+            if (addNB != 0) {
+                double percentage = addNB * parents.length;
+                double[] temp = nb.predict(inst);
+                for (int y = 0; y < numClasses; y++) {
+                    res[y] += percentage * temp[y];
+                }
+            }
+
+            try {
+                Utils.normalize(res);
+            } catch (IllegalArgumentException ex) {
+                for (int y = 0; y < numClasses; y++) {
+                    res[y] = 1.0 / numClasses;
+                }
+            }
+            return res;
+        }
+    }
+}
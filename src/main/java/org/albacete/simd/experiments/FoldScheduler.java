@@ -0,0 +1,176 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    FoldScheduler.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Runs the folds of a cross-validation in parallel.
+ *
+ * The training sets are generated sequentially, consuming the Random in the
+ * same order as Evaluation.crossValidateModel, and each fold trains its own
+ * copy of the classifier in a bounded work-stealing pool. The predictions are
+ * merged into the Evaluation in fold order, so the metrics are the same as
+ * the ones of the sequential run.
+ *
+ * The number of threads is a total budget: it is shared between the folds run
+ * at the same time and the internal parallelism of each copy of the
+ * classifier (see ThreadBudget).
+ */
+public class FoldScheduler {
+
+    /**
+     * Total number of threads of the cross-validation.
+     */
+    private final int numThreads;
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads Total number of threads (0 for all the available
+     * processors).
+     */
+    public FoldScheduler(int numThreads) {
+        this.numThreads = ThreadBudget.resolve(numThreads);
+    }
+
+    /**
+     * @return The total number of threads.
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Parallel version of Evaluation.crossValidateModel.
+     *
+     * @param evaluation Evaluation where the predictions are recorded.
+     * @param clas Classifier to evaluate. It is not modified.
+     * @param data Data to cross-validate.
+     * @param folds Number of folds.
+     * @param random Random used to shuffle the data.
+     * @throws Exception If a fold fails.
+     */
+    public void crossValidateModel(Evaluation evaluation, Classifier clas,
+            Instances data, int folds, Random random) throws Exception {
+        data = new Instances(data);
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(folds);
+        }
+
+        // Threads left to each fold after running the folds in parallel
+        int foldThreads = Math.min(numThreads, folds);
+        int innerThreads = ThreadBudget.inner(numThreads, foldThreads);
+
+        Classifier[] copies = AbstractClassifier.makeCopies(clas, folds);
+        for (Classifier copy : copies) {
+            ThreadBudget.apply(copy, innerThreads);
+        }
+        List<Future<double[][]>> results = new ArrayList<>(folds);
+
+        // At most two folds per thread are materialised at the same time
+        Semaphore inFlight = new Semaphore(2 * foldThreads);
+        ForkJoinPool pool = new ForkJoinPool(foldThreads);
+
+        try {
+            for (int i = 0; i < folds; i++) {
+                inFlight.acquire();
+
+                final Instances train = data.trainCV(folds, i, random);
+                final Instances test = data.testCV(folds, i);
+                final Classifier copy = copies[i];
+                copies[i] = null;
+
+                results.add(pool.submit(() -> {
+                    try {
+                        return runFold(copy, train, test);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+
+            // Merge the predictions in fold order
+            for (int i = 0; i < folds; i++) {
+                double[][] predictions;
+                try {
+                    predictions = results.get(i).get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+                results.set(i, null);
+
+                evaluation.setPriors(data.trainCV(folds, i));
+                Instances test = data.testCV(folds, i);
+                for (int j = 0; j < test.numInstances(); j++) {
+                    evaluation.evaluateModelOnceAndRecordPrediction(predictions[j], test.instance(j));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Trains the classifier and predicts the test instances, hiding their
+     * class as Evaluation does.
+     */
+    private static double[][] runFold(Classifier clas, Instances train,
+            Instances test) throws Exception {
+        clas.buildClassifier(train);
+
+        double[][] predictions = new double[test.numInstances()][];
+        for (int j = 0; j < test.numInstances(); j++) {
+            Instance classMissing = (Instance) test.instance(j).copy();
+            classMissing.setDataset(test);
+            classMissing.setClassMissing();
+            predictions[j] = clas.distributionForInstance(classMissing);
+        }
+        return predictions;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    RacingSearch.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.experiment.PairedStats;
+
+/**
+ * Racing search of the best configuration of a classifier by cross-validation.
+ *
+ * All the configurations are evaluated on the same folds. They are first run
+ * on a few folds, and then the folds are given one by one only to the
+ * configurations that are not significantly worse than the current leader,
+ * according to a paired t-test over the correctness of each test instance.
+ * With successive halving (disabled by default), only the best half of the
+ * survivors (the ones with most correct predictions) goes on each time the
+ * number of folds seen doubles, so that large grids of statistically tied
+ * configurations are also cut down. The winner is the survivor with the most
+ * correct predictions over all the folds, the first one in case of a tie.
+ */
+public class RacingSearch {
+
+    /**
+     * Total number of threads used to evaluate the configurations.
+     */
+    private final int numThreads;
+
+    /**
+     * Significance level of the paired t-test.
+     */
+    private double significance = 0.05;
+
+    /**
+     * Whether to keep only the best half of the survivors each time the
+     * number of folds seen doubles.
+     */
+    private boolean halving = false;
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads Total number of threads (0 for all the available
+     * processors).
+     */
+    public RacingSearch(int numThreads) {
+        this.numThreads = ThreadBudget.resolve(numThreads);
+    }
+
+    /**
+     * @param significance Significance level used to discard a configuration.
+     */
+    public void setSignificance(double significance) {
+        this.significance = significance;
+    }
+
+    /**
+     * @return The significance level used to discard a configuration.
+     */
+    public double getSignificance() {
+        return significance;
+    }
+
+    /**
+     * @param halving Whether to keep only the best half of the survivors
+     * each time the number of folds seen doubles.
+     */
+    public void setHalving(boolean halving) {
+        this.halving = halving;
+    }
+
+    /**
+     * @return Whether to keep only the best half of the survivors each time
+     * the number of folds seen doubles.
+     */
+    public boolean getHalving() {
+        return halving;
+    }
+
+    /**
+     * Selects the best configuration.
+     *
+     * @param candidates Configurations to compare. They are not modified.
+     * @param data Data to cross-validate.
+     * @param folds Number of folds.
+     * @param random Random used to shuffle the data.
+     * @return The winner configuration.
+     * @throws Exception If a configuration fails.
+     */
+    public Classifier select(List<? extends Classifier> candidates,
+            Instances data, int folds, Random random) throws Exception {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        data = new Instances(data);
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(folds);
+        }
+
+        int numCandidates = candidates.size();
+        // correct[c] holds the correctness of each test instance seen by c
+        List<List<Double>> correct = new ArrayList<>(numCandidates);
+        List<Integer> alive = new ArrayList<>(numCandidates);
+        for (int c = 0; c < numCandidates; c++) {
+            correct.add(new ArrayList<>(data.numInstances()));
+            alive.add(c);
+        }
+
+        // The first folds are run by every configuration, and the halving
+        // rungs are at twice, four times... as many folds
+        int firstFolds = Math.min(folds, Math.max(1, folds / 5));
+        int rung = firstFolds;
+
+        ForkJoinPool pool = null;
+        try {
+            for (int fold = 0; fold < folds; ) {
+                int lastFold = (fold == 0) ? firstFolds : fold + 1;
+
+                int tasks = alive.size() * (lastFold - fold);
+                int poolThreads = Math.min(numThreads, tasks);
+                int innerThreads = ThreadBudget.inner(numThreads, poolThreads);
+                if (pool == null || pool.getParallelism() != poolThreads) {
+                    if (pool != null) {
+                        pool.shutdown();
+                    }
+                    pool = new ForkJoinPool(poolThreads);
+                }
+
+                List<Future<double[]>> results = new ArrayList<>(tasks);
+                for (int c : alive) {
+                    for (int f = fold; f < lastFold; f++) {
+                        final Classifier candidate = candidates.get(c);
+                        final Instances shuffled = data;
+                        final int testFold = f;
+                        final int numFolds = folds;
+
+                        // Each task materialises its own fold, as the
+                        // classifiers may modify their training data
+                        results.add(pool.submit(() -> {
+                            Classifier copy = AbstractClassifier.makeCopy(candidate);
+                            ThreadBudget.apply(copy, innerThreads);
+                            return runFold(copy, shuffled.trainCV(numFolds, testFold),
+                                    shuffled.testCV(numFolds, testFold));
+                        }));
+                    }
+                }
+
+                int task = 0;
+                for (int c : alive) {
+                    for (int f = fold; f < lastFold; f++) {
+                        for (double v : get(results.get(task++))) {
+                            correct.get(c).add(v);
+                        }
+                    }
+                }
+
+                fold = lastFold;
+                if (fold < folds) {
+                    boolean halve = halving && fold >= rung;
+                    if (halve) {
+                        rung *= 2;
+                    }
+                    alive = race(alive, correct, halve);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+        int best = alive.get(0);
+        for (int c : alive) {
+            if (sum(correct.get(c)) > sum(correct.get(best))) {
+                best = c;
+            }
+        }
+        return candidates.get(best);
+    }
+
+    /**
+     * Discards the configurations significantly worse than the leader and,
+     * if halve, the worst half of the rest.
+     *
+     * @return The surviving configurations, in their original order.
+     */
+    private List<Integer> race(List<Integer> alive, List<List<Double>> correct, boolean halve) {
+        int leader = alive.get(0);
+        for (int c : alive) {
+            if (sum(correct.get(c)) > sum(correct.get(leader))) {
+                leader = c;
+            }
+        }
+
+        List<Integer> survivors = new ArrayList<>(alive.size());
+        List<Double> leaderCorrect = correct.get(leader);
+        for (int c : alive) {
+            List<Double> other = correct.get(c);
+            PairedStats stats = new PairedStats(significance);
+            for (int i = 0; i < other.size(); i++) {
+                stats.add(leaderCorrect.get(i), other.get(i));
+            }
+            stats.calculateDerived();
+
+            if (c == leader || stats.differencesSignificance <= 0) {
+                survivors.add(c);
+            }
+        }
+
+        if (halve && survivors.size() > 1) {
+            // Stable sort, so the ties are broken by the original order
+            List<Integer> ranking = new ArrayList<>(survivors);
+            ranking.sort((c1, c2) -> Double.compare(sum(correct.get(c2)), sum(correct.get(c1))));
+            List<Integer> half = ranking.subList(0, (survivors.size() + 1) / 2);
+            survivors.retainAll(half);
+        }
+        return survivors;
+    }
+
+    /**
+     * Trains the classifier and returns 1 for each test instance correctly
+     * classified and 0 otherwise.
+     */
+    private static double[] runFold(Classifier clas, Instances train,
+            Instances test) throws Exception {
+        clas.buildClassifier(train);
+
+        double[] correct = new double[test.numInstances()];
+        for (int j = 0; j < test.numInstances(); j++) {
+            Instance classMissing = (Instance) test.instance(j).copy();
+            classMissing.setDataset(test);
+            classMissing.setClassMissing();
+            double[] dist = clas.distributionForInstance(classMissing);
+            if (Utils.sum(dist) > 0 && Utils.maxIndex(dist) == (int) test.instance(j).classValue()) {
+                correct[j] = 1;
+            }
+        }
+        return correct;
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private static double sum(List<Double> values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+}
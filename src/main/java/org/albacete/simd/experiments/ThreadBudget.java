@@ -0,0 +1,90 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ThreadBudget.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import org.albacete.simd.mAnDE.mAnDE;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.ParallelIteratedSingleClassifierEnhancer;
+import weka.classifiers.SingleClassifierEnhancer;
+
+/**
+ * Shares a number of threads between nested parallel stages, so that the
+ * threads of the outer stage times the threads of the inner one never exceed
+ * the total budget.
+ */
+public class ThreadBudget {
+
+    private ThreadBudget() {
+    }
+
+    /**
+     * @param numThreads Number of threads (0 means all the available
+     * processors).
+     * @return The number of threads, resolving 0 to all the available
+     * processors.
+     */
+    public static int resolve(int numThreads) {
+        return (numThreads <= 0) ? Runtime.getRuntime().availableProcessors() : numThreads;
+    }
+
+    /**
+     * @param total Total number of threads.
+     * @param outer Number of tasks of the outer stage run at the same time.
+     * @return The number of threads left for the inner stage of each task.
+     */
+    public static int inner(int total, int outer) {
+        return Math.max(1, resolve(total) / Math.max(1, outer));
+    }
+
+    /**
+     * Sets the number of threads of every parallel stage of the classifier:
+     * mAnDE, the parallel Weka ensembles (Bagging, RandomForest) and the
+     * classifiers wrapped by them or by FilteredClassifier-like wrappers.
+     *
+     * @param clas Classifier to configure.
+     * @param numThreads Number of threads the classifier may use.
+     */
+    public static void apply(Classifier clas, int numThreads) {
+        if (clas instanceof mAnDE) {
+            ((mAnDE) clas).setNumThreads(numThreads);
+        } else if (clas instanceof ParallelIteratedSingleClassifierEnhancer) {
+            ((ParallelIteratedSingleClassifierEnhancer) clas).setNumExecutionSlots(numThreads);
+            // The base classifiers already run in parallel
+            numThreads = 1;
+        }
+
+        if (clas instanceof SingleClassifierEnhancer) {
+            apply(((SingleClassifierEnhancer) clas).getClassifier(), numThreads);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    WorkQueue.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of lines of a params file shared by several processes (or nodes of a
+ * cluster) through a directory of a shared filesystem.
+ *
+ * A line is claimed by creating the file "index.lock", which is atomic, so
+ * only one process gets it. While it runs, the claiming process renews the
+ * modification time of the lock (heartbeat), and when it finishes it creates
+ * "index.done" (or "index.failed"). A lock not renewed for longer than the
+ * stale timeout belongs to a dead process, so it is moved away and the line
+ * can be claimed again. The lock stores the process that owns it, which is
+ * the only one that renews or deletes it.
+ */
+public class WorkQueue implements AutoCloseable {
+
+    /**
+     * Shared directory of the queue.
+     */
+    private final Path dir;
+
+    /**
+     * Lines not known to be finished, in claim order.
+     */
+    private final List<Integer> pending;
+
+    /**
+     * Milliseconds without heartbeat after which a lock is stale.
+     */
+    private final long staleMillis;
+
+    /**
+     * Lines claimed by this process.
+     */
+    private final Set<Integer> claimed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Identifier of this process written in its locks.
+     */
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * Constructor.
+     *
+     * @param dir Shared directory of the queue. It is created if needed.
+     * @param indexes Lines of the queue, in the order they are claimed.
+     * @param heartbeatMillis Milliseconds between heartbeats of the claims.
+     * @param staleMillis Milliseconds without heartbeat after which a claim
+     * is re-queued. It should be several times heartbeatMillis.
+     * @throws IOException If the directory cannot be created.
+     */
+    public WorkQueue(Path dir, List<Integer> indexes, long heartbeatMillis,
+            long staleMillis) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.pending = new ArrayList<>(indexes);
+        this.staleMillis = staleMillis;
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "WorkQueue heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleAtFixedRate(this::renewClaims, heartbeatMillis,
+                heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims the next line that is neither finished nor claimed by a live
+     * process.
+     *
+     * @return The index of the line, or -1 if none can be claimed now.
+     * @throws IOException If the directory of the queue cannot be accessed.
+     */
+    public synchronized int claim() throws IOException {
+        for (int i = 0; i < pending.size(); i++) {
+            int index = pending.get(i);
+
+            if (isFinished(index)) {
+                pending.remove(i--);
+                continue;
+            }
+
+            if (tryLock(index) || (reclaimIfStale(index) && tryLock(index))) {
+                // It could have finished between the check and the lock
+                if (isFinished(index)) {
+                    release(index);
+                    pending.remove(i--);
+                    continue;
+                }
+                claimed.add(index);
+                pending.remove(i);
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks a claimed line as finished and releases its lock.
+     *
+     * @param index Index of the line.
+     * @param ok False if the line failed. It is not run again either.
+     * @throws IOException If the marker cannot be written.
+     */
+    public void finish(int index, boolean ok) throws IOException {
+        Path marker = dir.resolve(index + (ok ? ".done" : ".failed"));
+        Files.write(marker, owner.getBytes(StandardCharsets.UTF_8));
+        claimed.remove(index);
+        release(index);
+    }
+
+    /**
+     * @return True if every line of the queue is finished or claimed by this
+     * process, so there is nothing left to claim.
+     */
+    public synchronized boolean isFinished() {
+        pending.removeIf(this::isFinished);
+        return pending.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+
+    private boolean isFinished(int index) {
+        return Files.exists(dir.resolve(index + ".done"))
+                || Files.exists(dir.resolve(index + ".failed"));
+    }
+
+    private boolean tryLock(int index) throws IOException {
+        try {
+            Files.write(Files.createFile(dir.resolve(index + ".lock")),
+                    owner.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the lock of the line if it is still owned by this process, and
+     * not by another one that re-queued it as stale.
+     */
+    private void release(int index) throws IOException {
+        Path lock = dir.resolve(index + ".lock");
+        if (owner.equals(readOwner(lock))) {
+            Files.deleteIfExists(lock);
+        }
+    }
+
+    /**
+     * @return The process that created the lock, or null if there is none.
+     */
+    private static String readOwner(Path lock) throws IOException {
+        try {
+            return new String(Files.readAllBytes(lock), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves away the lock of the line if its heartbeat is older than the
+     * stale timeout. The lock is first moved to a name of its own, which is
+     * atomic, so only one process gets it, and then its age is checked again:
+     * between the first check and the move, the lock may have been renewed,
+     * or re-queued by another process and claimed again. A lock that is not
+     * stale is put back, unless a new one was created meanwhile.
+     *
+     * @return True if the lock was moved away by this process.
+     */
+    private boolean reclaimIfStale(int index) throws IOException {
+        Path lock = dir.resolve(index + ".lock");
+        Path moved = dir.resolve(index + ".stale." + owner.replaceAll("[^A-Za-z0-9.-]", "_")
+                + "." + System.nanoTime());
+        try {
+            if (!isStale(lock)) {
+                return false;
+            }
+            Files.move(lock, moved, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException ex) {
+            // Released or re-queued by another process
+            return false;
+        }
+
+        if (isStale(moved)) {
+            Files.deleteIfExists(moved);
+            System.out.println("Re-queued stale claim of line " + index);
+            return true;
+        }
+
+        // The link fails if the line has been claimed again, and then the
+        // owner of the moved lock finds out in its heartbeat
+        try {
+            Files.createLink(lock, moved);
+        } catch (FileAlreadyExistsException ex) {
+            // Claimed again by another process
+        } finally {
+            Files.deleteIfExists(moved);
+        }
+        return false;
+    }
+
+    private boolean isStale(Path lock) throws IOException {
+        long age = System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis();
+        return age >= staleMillis;
+    }
+
+    /**
+     * Renews the modification time of the locks of this process. If the lock
+     * of a line is owned now by another process, which re-queued it as
+     * stale, it is not renewed and the line is no longer claimed by this
+     * process. A missing lock may be checked by another process and put back,
+     * so it is just skipped.
+     */
+    private void renewClaims() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (int index : claimed) {
+            Path lock = dir.resolve(index + ".lock");
+            try {
+                String lockOwner = readOwner(lock);
+                if (owner.equals(lockOwner)) {
+                    Files.setLastModifiedTime(lock, now);
+                } else if (lockOwner != null) {
+                    claimed.remove(index);
+                    System.out.println("Lost the claim of line " + index + " to " + lockOwner);
+                }
+            } catch (IOException ex) {
+                System.out.println("Cannot renew the claim of line " + index + ": " + ex);
+            }
+        }
+    }
+}
@@ -37,8 +37,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import org.albacete.simd.data.BinaryInstances;
 import org.albacete.simd.mAnDE.Discretize2Times;
 
 import weka.core.Instances;
@@ -65,6 +68,14 @@ public class cvExperiment {
     static String[] args;
     static String [] params;
     static String discretized;
+    static boolean fastCV;
+    static boolean racing;
+    
+    // Runs the folds of the inner CV in parallel
+    static FoldScheduler foldScheduler = new FoldScheduler(0);
+    
+    // Discards the configurations significantly worse during the inner CV
+    static RacingSearch racingSearch = new RacingSearch(0);
     
 
     public static void main(String[] args) throws Exception {
@@ -104,6 +115,12 @@ public class cvExperiment {
         folds = Integer.parseInt(params[2]);
         
         discretized = params[3];
+        
+        // Optional params: count-subtraction LOOCV for the algorithms without 
+        // inner CV, and racing search of the hyperparameters in the inner CV
+        List<String> flags = Arrays.asList(params).subList(Math.min(5, params.length), params.length);
+        fastCV = flags.contains("fastCV");
+        racing = flags.contains("racing");
 
         // Read data
         data = readData(bbdd);
@@ -113,9 +130,8 @@ public class cvExperiment {
     
     public static Instances readData(String bbdd) throws Exception {
         // Read bbdd
-        ConverterUtils.DataSource loader = new ConverterUtils.DataSource("res/bbdd/" + bbdd);
-
-        Instances data = loader.getDataSet();
+        // Uses the binary cache "bbdd.bin" if there is an up-to-date one
+        Instances data = BinaryInstances.read("res/bbdd/" + bbdd);
         data.setClassIndex(data.numAttributes()-1);
         
         // Shuffle data
@@ -131,7 +147,7 @@ public class cvExperiment {
         // Set name of the save file
         savePath = "experiment_results_" 
                 + params[0] + "_" + params[1] + "_" + params[2] + "_" 
-                + params[3] + "_" + params[4] + ".csv";
+                + params[3] + "_" + params[4] + (fastCV ? "_fastCV" : "") + ".csv";
         
         System.out.println(savePath + "\n");
         
@@ -155,21 +171,39 @@ public class cvExperiment {
             int[][] matriz = new int[numValClass][numValClass];
             
             double timeExternal = 0;
+            
+            // NB and A1DE have no hyperparameters to select, so the LOOCV can
+            // be done subtracting the counts of each instance. Their
+            // discretiser is supervised, so it is only supported on nominal
+            // data, where it does nothing (see FastCrossValidation.isSupported)
+            double[][] fastPredictions = null;
+            if (fastCV && (params[1].equals("NB") || params[1].equals("A1DE"))) {
+                AbstractClassifier model = cvInterna(data);
+                if (FastCrossValidation.isSupported(model, data)) {
+                    fastPredictions = FastCrossValidation.crossValidatePredictions(
+                            model, data, foldsExterna);
+                }
+            }
 
             for (int i = 0; i < foldsExterna; i++) {
-                Instances train = data.trainCV(foldsExterna, i);
                 Instances test = data.testCV(foldsExterna, i);
+                double[] prediction;
                 
-                AbstractClassifier bestModel = cvInterna(train);
-                
-                
-                double initExternal = System.currentTimeMillis();
-                
-                bestModel.buildClassifier(train);
-                double[] prediction = bestModel.distributionForInstance(test.firstInstance());
-                
-                timeExternal += (System.currentTimeMillis() - initExternal);
-                System.out.println("TIME EXTERNAL: " + (System.currentTimeMillis() - initExternal));
+                if (fastPredictions != null) {
+                    prediction = fastPredictions[i];
+                } else {
+                    Instances train = data.trainCV(foldsExterna, i);
+                    AbstractClassifier bestModel = cvInterna(train);
+
+
+                    double initExternal = System.currentTimeMillis();
+
+                    bestModel.buildClassifier(train);
+                    prediction = bestModel.distributionForInstance(test.firstInstance());
+
+                    timeExternal += (System.currentTimeMillis() - initExternal);
+                    System.out.println("TIME EXTERNAL: " + (System.currentTimeMillis() - initExternal));
+                }
                 
                 
                 int posReal = (int)(test.firstInstance().classValue());
@@ -294,8 +328,8 @@ public class cvExperiment {
         
         if (folds == 0) folds = train.numInstances();
         
-        AbstractClassifier result = null;
-        double bestScore = -1;
+        // Configurations of the hyperparameters to compare
+        List<AbstractClassifier> candidates = new ArrayList<>();
         
         // Parallel execution as posible, and seed
         String[] options = new String[4];
@@ -343,13 +377,7 @@ public class cvExperiment {
                         fc.setClassifier(clas);
 
                         
-                        Evaluation evaluation = new Evaluation(train);
-                        evaluation.crossValidateModel(fc, train, folds, random, new Object[]{});
-                        
-                        if (evaluation.pctCorrect() > bestScore) {
-                            bestScore = evaluation.pctCorrect();
-                            result = fc;
-                        }
+                        candidates.add(fc);
                     }
                 }   
                 break;
@@ -383,13 +411,7 @@ public class cvExperiment {
                         fc.setFilter(discretizer);
                         fc.setClassifier(clas);
 
-                    Evaluation evaluation = new Evaluation(train);
-                    evaluation.crossValidateModel(fc, train, folds, random, new Object[]{});
-
-                    if (evaluation.pctCorrect() > bestScore) {
-                        bestScore = evaluation.pctCorrect();
-                        result = fc;
-                    }
+                    candidates.add(fc);
                 }   
                 break;
             case "Bagging":
@@ -400,13 +422,7 @@ public class cvExperiment {
                     clas.setNumIterations(nTree);
                     
                     if (discretized.equals("none")) {
-                        Evaluation evaluation = new Evaluation(train);
-                        evaluation.crossValidateModel(clas, train, folds, random, new Object[]{});
-
-                        if (evaluation.pctCorrect() > bestScore) {
-                            bestScore = evaluation.pctCorrect();
-                            result = clas;
-                        }
+                        candidates.add(clas);
                     } else {
                         fc = new FilteredClassifier();
 
@@ -431,13 +447,7 @@ public class cvExperiment {
                         fc.setFilter(discretizer);
                         fc.setClassifier(clas);
 
-                        Evaluation evaluation = new Evaluation(train);
-                        evaluation.crossValidateModel(fc, train, folds, random, new Object[]{});
-
-                        if (evaluation.pctCorrect() > bestScore) {
-                            bestScore = evaluation.pctCorrect();
-                            result = fc;
-                        }
+                        candidates.add(fc);
                     }
                 }   
                 break;
@@ -448,13 +458,7 @@ public class cvExperiment {
                     clas.setNumIterations(nTree);
                     
                     if (discretized.equals("none")) {
-                        Evaluation evaluation = new Evaluation(train);
-                        evaluation.crossValidateModel(clas, train, folds, random, new Object[]{});
-
-                        if (evaluation.pctCorrect() > bestScore) {
-                            bestScore = evaluation.pctCorrect();
-                            result = clas;
-                        }
+                        candidates.add(clas);
                     } else {
                         fc = new FilteredClassifier();
                         
@@ -479,13 +483,7 @@ public class cvExperiment {
                         fc.setFilter(discretizer);
                         fc.setClassifier(clas);
 
-                        Evaluation evaluation = new Evaluation(train);
-                        evaluation.crossValidateModel(fc, train, folds, random, new Object[]{});
-
-                        if (evaluation.pctCorrect() > bestScore) {
-                            bestScore = evaluation.pctCorrect();
-                            result = fc;
-                        }
+                        candidates.add(fc);
                     }
 
                 }   
@@ -569,9 +567,37 @@ public class cvExperiment {
                 return fc;
                 
             default:
-                break;
+                return null;
+        }
+        
+        return bestConfiguration(candidates, train);
+    }
+    
+    /**
+     * Selects the configuration with the best inner CV accuracy, racing them
+     * if enabled or running the whole CV of each one otherwise.
+     * 
+     * @param candidates Configurations to compare.
+     * @param train Training data of the inner CV.
+     * @return The best configuration.
+     * @throws Exception 
+     */
+    public static AbstractClassifier bestConfiguration(List<AbstractClassifier> candidates, Instances train) throws Exception {
+        if (racing) {
+            return (AbstractClassifier) racingSearch.select(candidates, train, folds, random);
         }
         
+        AbstractClassifier result = null;
+        double bestScore = -1;
+        for (AbstractClassifier candidate : candidates) {
+            Evaluation evaluation = new Evaluation(train);
+            foldScheduler.crossValidateModel(evaluation, candidate, train, folds, random);
+
+            if (evaluation.pctCorrect() > bestScore) {
+                bestScore = evaluation.pctCorrect();
+                result = candidate;
+            }
+        }
         return result;
     }
 }
@@ -0,0 +1,263 @@
+/*
+ *  The MIT License (MIT)
+ *  
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    daemonExperiment.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.experiments;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * Long-running version of singleExperiment. It runs a range of lines of the
+ * params file in the same JVM, several of them at the same time, and keeps the
+ * last datasets read in memory, so the JVM startup and the reading of the 
+ * data are paid once instead of once per line.
+ * 
+ * Arguments: firstIndex lastIndex paramsFile [jobs] [numThreads] [cacheSize] [queueDir]
+ *  - firstIndex, lastIndex: Range of lines of paramsFile to run (both included).
+ *  - jobs: Number of experiments run at the same time (default 1).
+ *  - numThreads: Total number of threads, shared by the experiments run at 
+ *    the same time (default 0 = all the processors).
+ *  - cacheSize: Number of datasets kept in memory (default 4).
+ *  - queueDir: Directory of a shared filesystem. If given, the lines are 
+ *    claimed from a WorkQueue in that directory, so any number of daemons 
+ *    (in the same or different nodes) can share the same range of lines.
+ * 
+ * Each experiment writes its results as soon as it finishes, and the lines 
+ * with results already saved are skipped as in singleExperiment.
+ */
+public class daemonExperiment {
+    
+    /**
+     * Shuffled dataset, together with the state of the Random after the 
+     * shuffle, so that each experiment continues it as singleExperiment does.
+     */
+    private static class CachedData {
+        final Instances data;
+        final SerializedObject random;
+
+        CachedData(Instances data, Random random) throws Exception {
+            this.data = data;
+            this.random = new SerializedObject(random);
+        }
+    }
+    
+    /**
+     * LRU cache of datasets, keyed by file and seed.
+     */
+    private static Map<String, CompletableFuture<CachedData>> cache;
+    
+    /**
+     * Milliseconds between the heartbeats of the claims of the WorkQueue.
+     */
+    private static final long HEARTBEAT = 60 * 1000;
+    
+    /**
+     * Milliseconds without heartbeat after which a claim is re-queued.
+     */
+    private static final long STALE_TIMEOUT = 10 * HEARTBEAT;
+    
+    public static void main(String[] args) throws Exception {
+        // Reading arguments
+        int firstIndex = Integer.parseInt(args[0]);
+        int lastIndex = Integer.parseInt(args[1]);
+        String paramsFile = args[2];
+        int jobs = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+        int numThreads = ThreadBudget.resolve((args.length > 4) ? Integer.parseInt(args[4]) : 0);
+        int cacheSize = (args.length > 5) ? Integer.parseInt(args[5]) : 4;
+        String queueDir = (args.length > 6) ? args[6] : null;
+        
+        createCache(cacheSize);
+        
+        // Reading the params of the range
+        List<String> lines = Files.readAllLines(Paths.get(paramsFile));
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = firstIndex; i <= lastIndex && i < lines.size(); i++) {
+            if (!lines.get(i).trim().isEmpty()) {
+                indexes.add(i);
+            }
+        }
+        
+        // The lines with the same dataset and seed are run together, so they 
+        // find it in the cache
+        indexes.sort(Comparator.comparing((Integer i) -> dataKey(lines.get(i).split(" "))));
+        
+        // Threads left to each experiment
+        int innerThreads = ThreadBudget.inner(numThreads, Math.min(jobs, indexes.size()));
+        
+        System.out.println("Running " + indexes.size() + " experiments, " + jobs 
+                + " at the same time with " + innerThreads + " threads each\n");
+        
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        
+        if (queueDir == null) {
+            for (int index : indexes) {
+                executor.submit(() -> {
+                    if (!runLine(index, lines.get(index).split(" "), innerThreads)) {
+                        failed.incrementAndGet();
+                    }
+                    System.out.println("Finished " + finished.incrementAndGet() + " of " + indexes.size() + " (line " + index + ")\n");
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } else {
+            WorkQueue queue = new WorkQueue(Paths.get(queueDir), indexes, HEARTBEAT, STALE_TIMEOUT);
+            
+            // Each worker claims lines until every line of the queue is finished
+            for (int i = 0; i < jobs; i++) {
+                executor.submit(() -> {
+                    try {
+                        while (!queue.isFinished()) {
+                            int index = queue.claim();
+                            if (index == -1) {
+                                // The rest are claimed by others, wait in case any of them dies
+                                Thread.sleep(HEARTBEAT);
+                                continue;
+                            }
+                            
+                            boolean ok = runLine(index, lines.get(index).split(" "), innerThreads);
+                            if (!ok) {
+                                failed.incrementAndGet();
+                            }
+                            queue.finish(index, ok);
+                            System.out.println("Finished " + finished.incrementAndGet() + " in this node (line " + index + ")\n");
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        System.out.println("Error in the work queue: " + ex);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            queue.close();
+        }
+        
+        System.out.println("Done: " + finished.get() + " experiments finished, " 
+                + failed.get() + " failed");
+        if (failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Runs the experiment of a line, with the data from the cache.
+     * 
+     * @return False if the experiment failed.
+     */
+    private static boolean runLine(int index, String[] params, int innerThreads) {
+        try {
+            CachedData cached = getData(params);
+            Instances data = new Instances(cached.data);
+            Random random = (Random) cached.random.getObject();
+
+            singleExperiment.runExperiment(params, data, random, innerThreads);
+            return true;
+        } catch (Exception | OutOfMemoryError ex) {
+            System.out.println("Error in line " + index + ": " + ex);
+            ex.printStackTrace();
+            return false;
+        }
+    }
+    
+    private static void createCache(int cacheSize) {
+        cache = new LinkedHashMap<String, CompletableFuture<CachedData>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<CachedData>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    
+    private static String dataKey(String[] params) {
+        return params[0] + " " + params[2];
+    }
+    
+    /**
+     * Returns the shuffled dataset of the params, reading it only if it is 
+     * not in the cache. Concurrent requests of the same dataset wait for a 
+     * single read.
+     */
+    private static CachedData getData(String[] params) throws Exception {
+        String key = dataKey(params);
+        CompletableFuture<CachedData> future;
+        boolean load = false;
+        
+        synchronized (cache) {
+            future = cache.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                cache.put(key, future);
+                load = true;
+            }
+        }
+        
+        if (load) {
+            try {
+                Random random = new Random(Integer.parseInt(params[2]));
+                Instances data = singleExperiment.readData(params[0], random);
+                future.complete(new CachedData(data, random));
+            } catch (Exception | OutOfMemoryError ex) {
+                synchronized (cache) {
+                    cache.remove(key, future);
+                }
+                future.completeExceptionally(ex);
+            }
+        }
+        
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+}
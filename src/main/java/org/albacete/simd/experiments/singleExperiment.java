@@ -37,7 +37,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.Random;
+import org.albacete.simd.data.BinaryInstances;
 import org.albacete.simd.mAnDE.Discretize2Times;
 
 import weka.core.Instances;
@@ -88,9 +90,6 @@ import weka.classifiers.evaluation.Prediction;
 import org.albacete.simd.mAnDE.mAnDE;
 
 public class singleExperiment {
-    
-    static Random random;
-    static int folds;
 
     public static void main(String[] args) throws Exception {
         // Reading arguments
@@ -98,6 +97,26 @@ public class singleExperiment {
         String paramsFile = args[1];
 
         // Reading parameters
+        String[] params = readParams(paramsFile, index);
+        
+        int seed = Integer.parseInt(params[2]);
+        Random random = new Random(seed);
+
+        // Read data
+        Instances data = readData(params[0], random);
+        
+        runExperiment(params, data, random, 0);
+    }
+    
+    /**
+     * Reads a line of the params file.
+     * 
+     * @param paramsFile File with a line of params for each experiment.
+     * @param index Index of the line to read.
+     * @return The params of the line.
+     * @throws IOException 
+     */
+    public static String[] readParams(String paramsFile, int index) throws IOException {
         String[] params = null;
 
         try (BufferedReader br = new BufferedReader(new FileReader(paramsFile))) {
@@ -113,29 +132,36 @@ public class singleExperiment {
         } catch (FileNotFoundException e) {
             System.out.println(e);
         }
-
+        
+        return params;
+    }
+    
+    /**
+     * Builds the classifier of a line of params and runs its experiment. It 
+     * does not use any static state, so several experiments can be run at 
+     * the same time.
+     * 
+     * @param params Params of the experiment.
+     * @param data Data returned by readData.
+     * @param random Random used by readData to shuffle the data.
+     * @param numThreads Number of threads of the CV (0 for all the processors).
+     * @throws Exception 
+     */
+    public static void runExperiment(String[] params, Instances data, Random random, int numThreads) throws Exception {
         // Getting params from line: bbdd, algorithm, seed, folds, discretized, 
         // nTrees, featureSelection, baseClas, (n, ensemble, boosting, RF, bagSize)
-        String bbdd = params[0];
-        
         String alg = params[1];
 
         int seed = Integer.parseInt(params[2]);
-        random = new Random(seed);  
-        
-        folds = Integer.parseInt(params[3]);
       
         String discretized = params[4];
         
         int nTrees = Integer.parseInt(params[5]); 
         
         String featureSelection = params[6];
-
-        // Read data
-        Instances data = readData(bbdd);
         
         // Leave-one-out Cross Validation
-        folds = data.numInstances();
+        int folds = data.numInstances();
         
         // Parallel execution as posible, and seed
         String[] options = new String[4];
@@ -502,18 +528,18 @@ public class singleExperiment {
             clas = asc;
         }
         
-        launchExperiment(alg, clas, data, args, params);
+        launchExperiment(alg, clas, data, folds, random, numThreads, params);
     }
     
-    public static Instances readData(String bbdd) throws Exception {
+    public static Instances readData(String bbdd, Random random) throws Exception {
         // Read bbdd
         //ConverterUtils.DataSource loader = new ConverterUtils.DataSource("/res/bbdd/" + bbdd + ".arff");
         
-        ConverterUtils.DataSource loader = new ConverterUtils.DataSource("res/bbdd/" + bbdd);
+        // Uses the binary cache "bbdd.bin" if there is an up-to-date one
+        Instances data = BinaryInstances.read("res/bbdd/" + bbdd);
 
         //ConverterUtils.DataSource loader = new ConverterUtils.DataSource("/tmp/res/bbdd/" + bbdd);
 
-        Instances data = loader.getDataSet();
         data.setClassIndex(data.numAttributes()-1);
         
         // Shuffle data
@@ -522,7 +548,7 @@ public class singleExperiment {
         return data;
     }
     
-    public static void launchExperiment(String name, AbstractClassifier clas, Instances data, String[] args, String[] params) throws Exception {
+    public static void launchExperiment(String name, AbstractClassifier clas, Instances data, int folds, Random random, int numThreads, String[] params) throws Exception {
         String EXPERIMENTS_FOLDER = "results/";
         String savePath;
         
@@ -531,7 +557,8 @@ public class singleExperiment {
                 + params[0] + "_" + params[1] + "_" + params[2] 
                 + "_" + params[3] + "_" + params[4] + "_" + params[5] 
                 + "_" + params[6] + "_" + params[7] + "_" + params [8]
-                + "_" + params[9] + "_" + params[10] + "_" + params[11] + ".csv";
+                + "_" + params[9] + "_" + params[10] + "_" + params[11]
+                + (params.length > 12 ? "_" + params[12] : "") + ".csv";
         
         System.out.println(savePath + "\n");
         
@@ -543,8 +570,14 @@ public class singleExperiment {
             double init = System.currentTimeMillis();
 
             if (folds == 0) folds = data.numInstances();
-            Evaluation evaluation = new Evaluation(data);
-            evaluation.crossValidateModel(clas, data, folds, random, new Object[]{});
+            Evaluation evaluation;
+            // Optional 13th param: count-subtraction CV for NB, A1DE and mAnDE
+            if (params.length > 12 && params[12].equals("fastCV") && FastCrossValidation.isSupported(clas, data)) {
+                evaluation = FastCrossValidation.crossValidateModel(clas, data, folds, random);
+            } else {
+                evaluation = new Evaluation(data);
+                new FoldScheduler(numThreads).crossValidateModel(evaluation, clas, data, folds, random);
+            }
 
             double time = ((System.currentTimeMillis() - init) / folds) / 1000;
 
@@ -38,6 +38,7 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.Random;
+import org.albacete.simd.data.BinaryInstances;
 import org.albacete.simd.mAnDE.Discretize2Times;
 
 import weka.core.Instances;
@@ -527,9 +528,8 @@ public class singleExperimentLinux {
         
         //ConverterUtils.DataSource loader = new ConverterUtils.DataSource("res/bbdd/" + bbdd);
 
-        ConverterUtils.DataSource loader = new ConverterUtils.DataSource("../MICROARRAYS/temp/" + bbdd);
-
-        Instances data = loader.getDataSet();
+        // Uses the binary cache "bbdd.bin" if there is an up-to-date one
+        Instances data = BinaryInstances.read("../MICROARRAYS/temp/" + bbdd);
         data.setClassIndex(data.numAttributes()-1);
         
         // Shuffle data
@@ -0,0 +1,150 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ClassKernels.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.kernels;
+
+import org.albacete.simd.model.ProbabilityTable;
+
+/**
+ * Loops over vectors of class values used when scoring: a row of a table of
+ * probabilities is multiplied or added to the scores of each class, or the
+ * values of several cells are added.
+ *
+ * There are two implementations. ScalarKernels runs in every JVM. On JDK 17
+ * or later, the multi-release jar built with the jdk17 profile also has
+ * VectorKernels, which uses the Vector API (jdk.incubator.vector) for the
+ * AVX2 or AVX-512 registers of the host. It is used when the JVM is started
+ * with --add-modules jdk.incubator.vector, and the scalar one otherwise. The
+ * system property mande.kernels=scalar forces the scalar implementation.
+ *
+ * Every implementation does the same operations in the same order for each
+ * class value, so the results are identical, except for sum(), whose
+ * additions may be reordered.
+ */
+public abstract class ClassKernels {
+
+    private static final ClassKernels INSTANCE = select();
+
+    /**
+     * @return The implementation for this JVM.
+     */
+    public static ClassKernels get() {
+        return INSTANCE;
+    }
+
+    private static ClassKernels select() {
+        if (!"scalar".equals(System.getProperty("mande.kernels"))) {
+            try {
+                return (ClassKernels) Class.forName("org.albacete.simd.kernels.VectorKernels")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                // Java 8 jar, JDK older than 17 or incubator module not added
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    /**
+     * @return The name of the implementation.
+     */
+    public abstract String getName();
+
+    /**
+     * acc[c] *= table[start + c] for each class value c.
+     */
+    public abstract void mulRow(double[] acc, double[] table, int start);
+
+    /**
+     * acc[c] += table[start + c] for each class value c.
+     */
+    public abstract void addRow(double[] acc, double[] table, int start);
+
+    /**
+     * @return The sum of table[index[k]] for k in [0, count).
+     */
+    public abstract double sum(double[] table, int[] index, int count);
+
+    /**
+     * out[c] = a[c] + b[c] for each class value c.
+     */
+    public abstract void add(double[] out, double[] a, double[] b);
+
+    /**
+     * out[c] = a[c] + b[c] - d[c] for each class value c.
+     */
+    public abstract void addSub(double[] out, double[] a, double[] b, double[] d);
+
+    /**
+     * Version of mulRow for a probability table, which uses get() if the table
+     * is not a heap array of doubles.
+     */
+    public final void mulRow(double[] acc, ProbabilityTable table, int start) {
+        double[] values = table.array();
+        if (values != null && table.getPrecision() == ProbabilityTable.Precision.DOUBLE) {
+            mulRow(acc, values, start);
+        } else {
+            for (int c = 0; c < acc.length; c++) {
+                acc[c] *= table.get(start + c);
+            }
+        }
+    }
+
+    /**
+     * Version of addRow that adds the logarithms of the probabilities of a
+     * table, which are read with getLog() if they are not a heap array.
+     */
+    public final void addLogRow(double[] acc, ProbabilityTable table, int start) {
+        double[] logs = table.array();
+        if (logs != null && table.getPrecision() == ProbabilityTable.Precision.LOG64) {
+            addRow(acc, logs, start);
+        } else {
+            for (int c = 0; c < acc.length; c++) {
+                acc[c] += table.getLog(start + c);
+            }
+        }
+    }
+
+    /**
+     * Version of sum for the values of a table, which uses get() if the table
+     * is not a heap array of doubles.
+     */
+    public final double sum(ProbabilityTable table, int[] index, int count) {
+        double[] values = table.array();
+        if (values != null && table.getPrecision() == ProbabilityTable.Precision.DOUBLE) {
+            return sum(values, index, count);
+        }
+        double sum = 0;
+        for (int k = 0; k < count; k++) {
+            sum += table.get(index[k]);
+        }
+        return sum;
+    }
+}
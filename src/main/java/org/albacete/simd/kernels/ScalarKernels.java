@@ -0,0 +1,80 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ScalarKernels.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.kernels;
+
+/**
+ * Plain Java loops, for every JVM (see ClassKernels).
+ */
+final class ScalarKernels extends ClassKernels {
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public void mulRow(double[] acc, double[] table, int start) {
+        for (int c = 0; c < acc.length; c++) {
+            acc[c] *= table[start + c];
+        }
+    }
+
+    @Override
+    public void addRow(double[] acc, double[] table, int start) {
+        for (int c = 0; c < acc.length; c++) {
+            acc[c] += table[start + c];
+        }
+    }
+
+    @Override
+    public double sum(double[] table, int[] index, int count) {
+        double sum = 0;
+        for (int k = 0; k < count; k++) {
+            sum += table[index[k]];
+        }
+        return sum;
+    }
+
+    @Override
+    public void add(double[] out, double[] a, double[] b) {
+        for (int c = 0; c < out.length; c++) {
+            out[c] = a[c] + b[c];
+        }
+    }
+
+    @Override
+    public void addSub(double[] out, double[] a, double[] b, double[] d) {
+        for (int c = 0; c < out.length; c++) {
+            out[c] = a[c] + b[c] - d[c];
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    CountTables.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.mAnDE;
+
+import java.io.IOException;
+import org.albacete.simd.data.PackedInstances;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Probability tables estimated from counts, shared by the mSPnDEs and the
+ * Naive Bayes of mAnDE (see mSP0DE), which are built, scored and stored in
+ * the same stages.
+ */
+public interface CountTables {
+    
+    void buildTables(Instances data);
+    
+    void buildCounts(PackedInstances data);
+    
+    void finalizeTables();
+    
+    double[] probsForInstance(Instance inst);
+    
+    void writeModel(ModelWriter out) throws IOException;
+    
+    void freeze(ProbabilityTable.Precision precision);
+    
+    long getTableBytes();
+}
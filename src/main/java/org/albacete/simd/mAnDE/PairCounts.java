@@ -0,0 +1,178 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    PairCounts.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.mAnDE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.data.PackedInstances;
+
+/**
+ * Registry of the contingency tables of the pairs of attributes with the
+ * class, filled while the forest of mAnDE is still growing. Each tree
+ * publishes its edges when it is built, and the pairs not seen before are
+ * counted at once in a single pass over the data. An edge is counted once for
+ * both mSP1DEs that use it, the one of the parent and the one of the child
+ * (see mSP1DE.buildCounts).
+ *
+ * The table of the pair (a, b), with a &lt; b, has the count of (va, vb, y)
+ * at (va * numValues(b) + vb) * classNumValues + y.
+ */
+final class PairCounts {
+
+    /**
+     * Discretised training instances.
+     */
+    private final PackedInstances data;
+
+    /**
+     * Index of the class.
+     */
+    private final int y;
+
+    /**
+     * Number of values of the class.
+     */
+    private final int classNumValues;
+
+    /**
+     * Table of each pair, by key(a, b). A table is filled by the thread that
+     * added it, and read only after all of them are done.
+     */
+    private final ConcurrentHashMap<Long, double[]> tables = new ConcurrentHashMap<>();
+
+    PairCounts(PackedInstances data) {
+        this.data = data;
+        this.y = data.classIndex();
+        this.classNumValues = data.classNumValues();
+    }
+
+    /**
+     * Counts the pairs of the edges that are not counted yet.
+     *
+     * @param edges {parent, child} pairs of attributes.
+     */
+    void add(int[][] edges) {
+        List<int[]> pairs = new ArrayList<>();
+        List<double[]> counts = new ArrayList<>();
+        for (int[] edge : edges) {
+            int a = Math.min(edge[0], edge[1]);
+            int b = Math.max(edge[0], edge[1]);
+            long key = key(a, b);
+            if (a == b || tables.containsKey(key)) {
+                continue;
+            }
+            double[] table = newTable(a, b);
+            if (tables.putIfAbsent(key, table) == null) {
+                pairs.add(new int[]{a, b});
+                counts.add(table);
+            }
+        }
+        if (!pairs.isEmpty()) {
+            count(pairs, counts);
+        }
+    }
+
+    /**
+     * @return The table of the pair (min(a, b), max(a, b)), counted now if
+     * no tree has published it.
+     */
+    double[] get(int a, int b) {
+        int first = Math.min(a, b);
+        int second = Math.max(a, b);
+        return tables.computeIfAbsent(key(first, second), (key) -> {
+            double[] table = newTable(first, second);
+            List<int[]> pairs = new ArrayList<>();
+            List<double[]> counts = new ArrayList<>();
+            pairs.add(new int[]{first, second});
+            counts.add(table);
+            count(pairs, counts);
+            return table;
+        });
+    }
+
+    private double[] newTable(int a, int b) {
+        return new double[data.numValues(a) * data.numValues(b) * classNumValues];
+    }
+
+    /**
+     * Counts several pairs in a single pass over the data. The small tables
+     * are counted from the bitmap index instead (see BitmapIndex).
+     */
+    private void count(List<int[]> pairs, List<double[]> counts) {
+        int numPairs = 0;
+        int[] first = new int[pairs.size()];
+        int[] second = new int[pairs.size()];
+        int[] secondNumValues = new int[pairs.size()];
+        double[][] tables = new double[pairs.size()][];
+        for (int p = 0; p < pairs.size(); p++) {
+            int[] pair = pairs.get(p);
+            double[] table = counts.get(p);
+            if (BitmapIndex.isFasterThanScan(table.length)) {
+                data.index().addCounts(new int[]{pair[0]}, pair[1], table, 0);
+            } else {
+                first[numPairs] = pair[0];
+                second[numPairs] = pair[1];
+                secondNumValues[numPairs] = data.numValues(pair[1]);
+                tables[numPairs++] = table;
+            }
+        }
+        if (numPairs == 0) {
+            return;
+        }
+
+        // Block by block, a pair at a time (see PackedInstances)
+        int numInstances = data.numInstances();
+        int[] vy = new int[PackedInstances.BLOCK];
+        int[] va = new int[PackedInstances.BLOCK];
+        int[] vb = new int[PackedInstances.BLOCK];
+        for (int from = 0; from < numInstances; from += PackedInstances.BLOCK) {
+            int to = Math.min(numInstances, from + PackedInstances.BLOCK);
+            int length = to - from;
+            data.decode(y, from, to, vy, 0);
+            for (int p = 0; p < numPairs; p++) {
+                data.decode(first[p], from, to, va, 0);
+                data.decode(second[p], from, to, vb, 0);
+                double[] table = tables[p];
+                int numValues = secondNumValues[p];
+                for (int r = 0; r < length; r++) {
+                    table[(va[r] * numValues + vb[r]) * classNumValues + vy[r]] += 1;
+                }
+            }
+        }
+    }
+
+    private static long key(int a, int b) {
+        return ((long) a << 32) | b;
+    }
+}
@@ -31,9 +31,15 @@
 
 package org.albacete.simd.mAnDE;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import weka.classifiers.Classifier;
 import weka.classifiers.trees.RandomForest;
 import weka.classifiers.trees.RandomTree2;
@@ -48,6 +54,13 @@ public class RandomForest2 extends RandomForest {
      * Changued from int to double
      */
     protected double m_BagSizePercentDouble = 100;
+
+    /**
+     * Notified with each tree as soon as it is built, from the thread that
+     * built it, so that the next stages can start before the whole forest is
+     * built (see mAnDE).
+     */
+    protected transient Consumer<RandomTree2> treeListener;
     
     
     /**
@@ -88,6 +101,54 @@ public class RandomForest2 extends RandomForest {
         }
     }
 
+    /**
+     * Builds the trees in m_numExecutionSlots threads, notifying the listener
+     * (if any) with each one when it is built.
+     *
+     * @throws Exception if a tree cannot be built.
+     */
+    @Override
+    protected void buildClassifiers() throws Exception {
+        if (treeListener == null) {
+            super.buildClassifiers();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, m_numExecutionSlots));
+        try {
+            List<Future<?>> trees = new ArrayList<>(m_Classifiers.length);
+            for (int i = 0; i < m_Classifiers.length; i++) {
+                final int iteration = i;
+                trees.add(executor.submit(() -> {
+                    m_Classifiers[iteration].buildClassifier(getTrainingSet(iteration));
+                    treeListener.accept((RandomTree2) m_Classifiers[iteration]);
+                    return null;
+                }));
+            }
+            for (Future<?> tree : trees) {
+                try {
+                    tree.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets the listener notified with each tree as soon as it is built.
+     *
+     * @param treeListener the listener, or null for none.
+     */
+    public void setTreeListener(Consumer<RandomTree2> treeListener) {
+        this.treeListener = treeListener;
+    }
+
     /**
      * Sets the size of each bag, as a percentage of the training set size.
      *
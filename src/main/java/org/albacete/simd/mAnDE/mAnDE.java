@@ -36,13 +36,27 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.albacete.simd.data.PackedInstances;
+import org.albacete.simd.model.BinaryModel;
+import org.albacete.simd.model.FreezableModel;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
 
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
@@ -52,6 +66,7 @@ import weka.classifiers.trees.REPTree;
 import weka.classifiers.trees.LMT;
 import static weka.classifiers.AbstractClassifier.runClassifier;
 
+import weka.core.Aggregateable;
 import weka.core.Capabilities;
 import weka.core.Drawable;
 import weka.core.Instance;
@@ -61,7 +76,7 @@ import weka.core.Utils;
 import weka.core.Option;
 
 public class mAnDE extends AbstractClassifier implements
-        OptionHandler, Serializable {
+        OptionHandler, Serializable, BinaryModel, FreezableModel, Aggregateable<mAnDE> {
 
     /**
      * For serialisation.
@@ -72,7 +87,7 @@ public class mAnDE extends AbstractClassifier implements
     /**
      * Instances.
      */
-    protected static Instances data;
+    protected Instances data;
 
     /**
      * The discretisation filter.
@@ -87,27 +102,27 @@ public class mAnDE extends AbstractClassifier implements
     /**
      * Number of values per variable.
      */
-    public static int[] varNumValues;
+    protected int[] varNumValues;
 
     /**
      * Number of values of the class.
      */
-    public static int classNumValues;
+    protected int classNumValues;
 
     /**
      * Index of the class.
      */
-    public static int y;
+    protected int y;
 
     /**
      * Number of instances.
      */
-    public static int numInstances;
+    protected int numInstances;
 
     /**
-     * Naive Bayes for NB mode.
+     * Naive Bayes for NB mode, or added to the mSPnDEs if addNB is not 0.
      */
-    private static NaiveBayes nb;
+    private mSP0DE nb;
 
     /**
      * Indicates whether Naive Bayes mode is enabled.
@@ -146,179 +161,1257 @@ public class mAnDE extends AbstractClassifier implements
     private int n = 1;
     
     private double addNB = 0.4;
+
+    /**
+     * Store the tables of the mSPnDEs as logarithms and score in log space,
+     * which does not underflow with many children.
+     */
+    private boolean logSpace = false;
+
+    /**
+     * The mSPnDEs have only the structure, or the counts, of the distributed
+     * training (see buildStructure), until finalizeAggregation.
+     */
+    private boolean aggregating = false;
     
+    /**
+     * Evaluate the mSPnDEs in order of importance in distributionForInstance,
+     * and stop when the predicted class cannot change (see predictAnytime).
+     */
+    private boolean earlyExit = false;
+
+    /**
+     * Deadline of each prediction with earlyExit, in microseconds (0 for
+     * none).
+     */
+    private long deadline = 0;
+
+    /**
+     * Keys of the mSPnDEs in order of importance (see rank), or null for the
+     * order by number of children.
+     */
+    private int[] order;
+
+    /**
+     * The mSPnDEs in the order of evaluation of predictAnytime, and the map
+     * from which they were taken.
+     */
+    private transient mSPnDE[] ordered;
+    private transient Map<Integer, mSPnDE> orderedFrom;
+
+    /**
+     * Target agreement of the Naive Bayes cascade with the full model (0 for
+     * no cascade, see calibrateCascade).
+     */
+    private double cascadeAgreement = 0;
+
+    /**
+     * Confidence of the Naive Bayes from which the cascade returns its
+     * distribution without evaluating the mSPnDEs.
+     */
+    private double cascadeThreshold = Double.POSITIVE_INFINITY;
+
+    /**
+     * Predictions made with the cascade, and those answered by the Naive
+     * Bayes alone.
+     */
+    private final LongAdder cascadeCalls = new LongAdder(), cascadeHits = new LongAdder();
+
+    /**
+     * An mSPnDE is only evaluated for an instance if the values of its
+     * super-parents appear in at least this number of training instances (0
+     * for every mSPnDE, see setFrequencyLimit).
+     */
+    private int frequencyLimit = 0;
+
+    /**
+     * Number of training instances with each value of each attribute.
+     */
+    private int[][] valueCounts;
+
+    /**
+     * Bitmap of the values of each attribute that reach the frequencyLimit,
+     * 64 per long, or null if there is no limit.
+     */
+    private long[][] activeValues;
+
+    /**
+     * Maximum number of training instances used to calibrate the cascade.
+     */
+    private static final int CALIBRATION_INSTANCES = 10000;
+
+    /**
+     * Discretised instances of buildStructure on which finalizeAggregation
+     * calibrates the cascade (null if there is no cascade).
+     */
+    private List<Instance> calibration;
+
+    /**
+     * Smallest probability of the true class in the log loss of the
+     * contributions of the mSPnDEs.
+     */
+    private static final double MIN_PROB = 1e-15;
+
     /**
      * Minimum number of Instances to create a tree.
      */
     private final int minimumInstances = 3;
 
     /**
-     * Create the structure of the classifier taking into account the
-     * established parameters.
-     *
-     * @param instances Instances to classify.
-     * @throws java.lang.Exception
+     * Number of threads used to build the ensemble, to calculate the tables
+     * and to predict (0 means all the available processors).
+     */
+    private int numThreads = 0;
+
+    /**
+     * Pool with numThreads threads shared by the parallel stages. It is
+     * created on first use (see submitToPool) and shut down when each
+     * training step finishes. The one of the predictions is kept, and its
+     * idle workers are reclaimed by the ForkJoinPool after a while.
+     */
+    private transient ForkJoinPool pool;
+
+    /**
+     * Tables of the edges counted while the forest is growing, during
+     * buildClassifier.
+     */
+    private transient PairCounts pairs;
+
+    /**
+     * Create the structure of the classifier taking into account the
+     * established parameters.
+     *
+     * @param instances Instances to classify.
+     * @throws java.lang.Exception
+     */
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        discretize(instances);
+        // The tables are counted from the bit-packed columns
+        PackedInstances packed = new PackedInstances(data);
+
+        /* Pipelined build: the tables of the edges of each tree are counted as
+         * soon as it is built, while the rest of the forest is growing. With
+         * a single thread nothing would overlap, so the stages run one after
+         * another.
+         */
+        if (getNumThreadsInUse() > 1) {
+            pairs = new PairCounts(packed);
+        }
+
+        try {
+            learnStructure();
+            aggregating = false;
+            valueCounts = countValues(packed);
+            updateActiveValues();
+
+            // The Naive Bayes is counted with the tables of the mSPnDEs
+            createNaiveBayes();
+            calculate_mSPnDEs((spode) -> {
+                if (pairs != null && spode instanceof mSP1DE) {
+                    ((mSP1DE) spode).buildCounts(packed, pairs);
+                } else {
+                    spode.buildCounts(packed);
+                }
+                spode.finalizeTables();
+            });
+            if (logSpace && !modeNB) {
+                freeze(ProbabilityTable.Precision.LOG64);
+            }
+
+            if (cascadeAgreement > 0 && !modeNB) {
+                calibrateDiscretized(sample(data, CALIBRATION_INSTANCES), cascadeAgreement);
+            }
+        } finally {
+            pairs = null;
+            shutdownPool();
+        }
+
+        // We free up the discretised data space
+        data.delete();
+        
+        // Print data of mSPnDEs created
+        /*double var = 0;
+        double max = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (mSPnDE a : mSPnDEs.values()) {
+            if (a.getNChildren() > max) 
+                max = a.getNChildren();
+            if (a.getNChildren() < min)
+                min = a.getNChildren();
+            var += a.getNChildren();
+        }
+        System.out.println("mSPnDEs," 
+                + mSPnDEs.size() 
+                + "," + (var/mSPnDEs.size())
+                + "," + max
+                + "," + min);*/
+    }
+
+    /**
+     * Discretises the training instances into data, learning the cut points.
+     */
+    private void discretize(Instances instances) throws Exception {
+        // Can the classifier work with this data?
+        getCapabilities().testWithFail(instances);
+
+        // Delete instances with no class
+        instances.deleteWithMissingClass();
+
+        // We driscretise
+        discretizer = new weka.filters.supervised.attribute.Discretize();
+        discretizer.setInputFormat(instances);
+        data = weka.filters.Filter.useFilter(instances, discretizer);
+        numInstances = data.numInstances();
+        // Free up the data space by parameter
+        instances.delete();
+
+        // Define global variables
+        y = data.classIndex();
+        classNumValues = data.classAttribute().numValues();
+        varNumValues = new int[data.numAttributes()];
+        for (int i = 0; i < varNumValues.length; i++) {
+            varNumValues[i] = data.attribute(i).numValues();
+        }
+    }
+
+    /**
+     * Creates the mSPnDEs from data, trying other ensembles if the configured
+     * one does not create any, and falls back to Naive Bayes if none does.
+     */
+    private void learnStructure() throws Exception {
+        // We check that with this bagSize, we will have more than 
+        // minimumInstances instances (default 3)
+        if (bagSize > 0) {
+            while ((numInstances * (bagSize/100)) < minimumInstances) {
+                bagSize = 2 * bagSize;
+            }
+        }
+
+        build_mSPnDEs();
+
+        // If we have not created mSPnDE's
+        if (mSPnDEs.isEmpty()) {
+            HashSet<String> done = new HashSet<>();
+            done.add(getEnsemble());
+            
+            setBagSize(100);
+            setBaseClass("J48");
+            setAddNB(0.4);
+            
+            String[] posClassifiers = {"Bagging", "RF", "AdaBoost"};
+
+            // We try with Bagging, RF and Boosting
+            for (int i = 0; i < posClassifiers.length; i++) {
+                if (done.contains(posClassifiers[i])) {
+                    continue;
+                }
+
+                setEnsemble(posClassifiers[i]);
+                done.add(posClassifiers[i]);
+
+                // Try to build the mSPnDEs with the new configuration
+                build_mSPnDEs();
+
+                // If we have created mSPnDEs, we end up with
+                if (!mSPnDEs.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        // If nothing works, we run NB
+        modeNB = mSPnDEs.isEmpty();
+    }
+
+    /**
+     * Creates, without tables, the Naive Bayes of the NB mode, or the one
+     * added to the mSPnDEs if addNB is not 0 or of the cascade (see
+     * calculate_mSPnDEs).
+     */
+    private void createNaiveBayes() {
+        nb = (modeNB || getAddNB() != 0 || cascadeAgreement > 0) ? new mSP0DE() : null;
+    }
+
+    // Distributed training //
+    /**
+     * First step of the distributed training, which splits the data in shards
+     * that do not need to fit in the memory of one node. It learns the cut
+     * points of the discretisation and the structure of the mSPnDEs from a
+     * sample of the data, without tables. Every worker receives a copy of this
+     * mAnDE (serialized), and builds the counts of its shard with buildCounts.
+     * The structure can also be the union of the edges learnt on each shard
+     * (see addStructure and mergeStructure). With a cascade, the sample is
+     * kept to calibrate it in finalizeAggregation.
+     *
+     * @param sample Sample of the training instances.
+     * @throws Exception If the structure cannot be learnt.
+     */
+    public void buildStructure(Instances sample) throws Exception {
+        discretize(sample);
+        learnStructure();
+        aggregating = true;
+        nb = null;
+        valueCounts = null;
+        updateActiveValues();
+        calibration = (cascadeAgreement > 0) ? sample(data, CALIBRATION_INSTANCES) : null;
+        data.delete();
+    }
+
+    /**
+     * Adds to the structure the edges learnt on a shard of the data, with the
+     * cut points of buildStructure.
+     *
+     * @param shard Shard of the training instances.
+     * @throws Exception If the structure cannot be learnt.
+     */
+    public void addStructure(Instances shard) throws Exception {
+        checkAggregating();
+        ConcurrentHashMap<Integer, mSPnDE> structure = mSPnDEs;
+
+        data = discretizeShard(shard);
+        build_mSPnDEs();
+        data.delete();
+
+        addEdges(structure);
+    }
+
+    /**
+     * Adds to the structure the edges of another copy of the same mAnDE, to
+     * which addStructure was applied on another shard.
+     *
+     * @param other mAnDE with the same cut points.
+     */
+    public void mergeStructure(mAnDE other) {
+        checkAggregating();
+        if (!other.aggregating || !sameCutPoints(other)) {
+            throw new IllegalArgumentException("Can't merge the structure of an mAnDE with different cut points");
+        }
+        addEdges(other.mSPnDEs);
+    }
+
+    /**
+     * Adds the mSPnDEs and the children of structure to the mSPnDEs.
+     */
+    private void addEdges(ConcurrentHashMap<Integer, mSPnDE> structure) {
+        for (Map.Entry<Integer, mSPnDE> entry : structure.entrySet()) {
+            mSPnDE spode = mSPnDEs.computeIfAbsent(entry.getKey(), (key) -> entry.getValue().copyStructure());
+            for (int child : entry.getValue().getChildren()) {
+                spode.moreChildren(child);
+            }
+        }
+        modeNB = mSPnDEs.isEmpty();
+    }
+
+    /**
+     * Second step of the distributed training: builds the contingency tables
+     * of the mSPnDEs, and the Naive Bayes, on a shard of the data. The partial
+     * models of the shards are added with aggregate and converted into the
+     * final model with finalizeAggregation.
+     *
+     * @param shard Shard of the training instances.
+     * @throws Exception If the counts cannot be built.
+     */
+    public void buildCounts(Instances shard) throws Exception {
+        checkAggregating();
+        // Only the bit-packed columns of the shard are kept while counting
+        Instances discretized = discretizeShard(shard);
+        PackedInstances packed = new PackedInstances(discretized);
+        discretized.delete();
+        numInstances = packed.numInstances();
+        valueCounts = countValues(packed);
+
+        createNaiveBayes();
+        try {
+            calculate_mSPnDEs((spode) -> spode.buildCounts(packed));
+        } finally {
+            shutdownPool();
+        }
+    }
+
+    /**
+     * Adds the counts of the same mAnDE built on another shard of the data.
+     *
+     * @param toAggregate Partial mAnDE of another shard.
+     * @return This mAnDE.
+     * @throws Exception If the mAnDEs do not have the same structure.
+     */
+    @Override
+    public mAnDE aggregate(mAnDE toAggregate) throws Exception {
+        checkAggregating();
+        if (!toAggregate.aggregating || modeNB != toAggregate.modeNB
+                || (nb == null) != (toAggregate.nb == null)
+                || valueCounts == null || toAggregate.valueCounts == null
+                || !mSPnDEs.keySet().equals(toAggregate.mSPnDEs.keySet())
+                || !sameCutPoints(toAggregate)) {
+            throw new Exception("Can't aggregate - the mAnDEs do not have the same structure");
+        }
+
+        if (nb != null) {
+            nb.aggregate(toAggregate.nb);
+        }
+        for (Map.Entry<Integer, mSPnDE> entry : mSPnDEs.entrySet()) {
+            entry.getValue().aggregate(toAggregate.mSPnDEs.get(entry.getKey()));
+        }
+        for (int i = 0; i < valueCounts.length; i++) {
+            for (int v = 0; v < valueCounts[i].length; v++) {
+                valueCounts[i][v] += toAggregate.valueCounts[i][v];
+            }
+        }
+        numInstances += toAggregate.numInstances;
+        return this;
+    }
+
+    /**
+     * Converts the aggregated counts into the tables of the mSPnDEs.
+     *
+     * @throws Exception If the counts are not built.
+     */
+    @Override
+    public void finalizeAggregation() throws Exception {
+        checkAggregating();
+        try {
+            calculate_mSPnDEs((spode) -> spode.finalizeTables());
+            aggregating = false;
+            updateActiveValues();
+
+            if (logSpace && !modeNB) {
+                freeze(ProbabilityTable.Precision.LOG64);
+            }
+
+            // The cascade is calibrated on the sample of buildStructure
+            if (calibration != null && !modeNB) {
+                calibrateDiscretized(calibration, cascadeAgreement);
+            }
+            calibration = null;
+        } finally {
+            shutdownPool();
+        }
+    }
+
+    private void checkAggregating() {
+        if (!aggregating) {
+            throw new IllegalStateException("The structure of the mAnDE is not built (see buildStructure)");
+        }
+    }
+
+    /**
+     * Discretises a shard with the cut points of buildStructure.
+     */
+    private Instances discretizeShard(Instances shard) throws Exception {
+        shard.deleteWithMissingClass();
+        Instances discretized = weka.filters.Filter.useFilter(shard, discretizer);
+        shard.delete();
+        return discretized;
+    }
+
+    /**
+     * @return True if both mAnDEs discretise with the same cut points.
+     */
+    private boolean sameCutPoints(mAnDE other) {
+        if (!Arrays.equals(varNumValues, other.varNumValues)) {
+            return false;
+        }
+        for (int i = 0; i < varNumValues.length; i++) {
+            if (!Arrays.equals(discretizer.getCutPoints(i), other.discretizer.getCutPoints(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the probabilities of class membership for the provided Test
+     * Instance.
+     *
+     * @param instance Instance to classify.
+     * @return Probability distribution of predicted class membership.
+     * @throws java.lang.Exception
+     */
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        final Instance instance_d;
+        discretizer.input(instance);
+        instance_d = discretizer.output();
+
+        if (modeNB) {
+            return nb.probsForInstance(instance_d);
+        }
+
+        // Cascade: the Naive Bayes alone, if it is confident enough
+        double[] naive = null;
+        if (isCascading()) {
+            naive = nb.probsForInstance(instance_d);
+            boolean hit = naive[Utils.maxIndex(naive)] >= cascadeThreshold;
+            countCascade(hit);
+            if (hit) {
+                return naive;
+            }
+        }
+        return distributionForDiscretized(instance_d, naive);
+    }
+
+    /**
+     * Combination of the mSPnDEs and the Naive Bayes for a discretised
+     * instance.
+     *
+     * @param instance_d Discretised instance to classify.
+     * @param naive Probabilities of the Naive Bayes, or null if they are not
+     * computed yet.
+     * @return Probability distribution of predicted class membership.
+     */
+    private double[] distributionForDiscretized(Instance instance_d, double[] naive) throws Exception {
+        if (earlyExit) {
+            return predictDiscretized(instance_d, naive, deadline * 1000).distribution;
+        }
+        double[] res = new double[classNumValues];
+        
+        // Add up all the probabilities of the active mSPnDEs
+        Collection<mSPnDE> spodes = activeFor(instance_d, mSPnDEs.values());
+        if (getNumThreadsInUse() == 1) {
+            for (mSPnDE spode : spodes) {
+                sumProbs(res, spode.probsForInstance(instance_d));
+            }
+        } else {
+            double[] sum = runInPool(() -> spodes.parallelStream()
+                    .map((spode) -> spode.probsForInstance(instance_d))
+                    .reduce(new double[classNumValues], (a, b) -> sumProbs(a.clone(), b)));
+            sumProbs(res, sum);
+        }
+
+        // The Naive Bayes has the weight of the mSPnDEs evaluated
+        if (getAddNB() != 0) {
+            double percentaje = getAddNB() * spodes.size();
+            double[] temp = (naive != null) ? naive : nb.probsForInstance(instance_d);
+            for (int i = 0; i < res.length; i++) {
+                res[i] += percentaje * temp[i];
+            }
+        }
+
+        return normalizeResult(res);
+    }
+
+    /**
+     * Normalize the result. If the sum is 0 (Utils.normalize will return 
+     * an IllegalArgumentException), we set the same value in each 
+     * possible value of the class.
+     *
+     * @return res
+     */
+    private double[] normalizeResult(double[] res) {
+        try {
+            Utils.normalize(res);
+        } catch (IllegalArgumentException ex) {
+            for (int i = 0; i < res.length; i++) {
+                res[i] = 1.0 / classNumValues;
+            }
+        }
+        return res;
+    }
+
+    // Frequency limit //
+    /**
+     * @return The mSPnDEs of spodes whose super-parents take values that
+     * reach the frequencyLimit in instance_d, in the same order, or every
+     * mSPnDE if there is no limit or none is active.
+     */
+    private Collection<mSPnDE> activeFor(Instance instance_d, Collection<mSPnDE> spodes) {
+        if (activeValues == null) {
+            return spodes;
+        }
+        List<mSPnDE> active = new ArrayList<>(spodes.size());
+        for (mSPnDE spode : spodes) {
+            if (spode.isActive(instance_d, activeValues)) {
+                active.add(spode);
+            }
+        }
+        return active.isEmpty() ? spodes : active;
+    }
+
+    private boolean isActive(mSPnDE spode, Instance instance_d) {
+        return activeValues == null || spode.isActive(instance_d, activeValues);
+    }
+
+    /**
+     * @return The number of instances of data with each value of each
+     * attribute. Missing values are not counted.
+     */
+    private static int[][] countValues(PackedInstances data) {
+        int numInstances = data.numInstances();
+        int[][] counts = new int[data.numAttributes()][];
+        int[] values = new int[PackedInstances.BLOCK];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new int[data.numValues(i)];
+            for (int from = 0; from < numInstances; from += PackedInstances.BLOCK) {
+                int to = Math.min(numInstances, from + PackedInstances.BLOCK);
+                data.decode(i, from, to, values, -1);
+                for (int r = 0; r < to - from; r++) {
+                    if (values[r] >= 0) {
+                        counts[i][values[r]]++;
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Sets the bits of the values that reach the frequencyLimit, so that
+     * the activation of an mSPnDE is a bit test per super-parent.
+     */
+    private void updateActiveValues() {
+        if (frequencyLimit <= 0 || valueCounts == null) {
+            activeValues = null;
+            return;
+        }
+        long[][] bitmaps = new long[valueCounts.length][];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = new long[(valueCounts[i].length + 63) >>> 6];
+            for (int v = 0; v < valueCounts[i].length; v++) {
+                if (valueCounts[i][v] >= frequencyLimit) {
+                    bitmaps[i][v >>> 6] |= 1L << v;
+                }
+            }
+        }
+        activeValues = bitmaps;
+    }
+
+    // Naive Bayes cascade //
+    /**
+     * Calibrates the Naive Bayes cascade of distributionForInstance, which
+     * returns the distribution of the Naive Bayes when its largest
+     * probability reaches a threshold, and evaluates the mSPnDEs only for the
+     * ambiguous instances. The threshold is the lowest one with which the
+     * predicted class agrees with the one of the full model in at least the
+     * target fraction of the instances. buildClassifier calibrates it on the
+     * training instances if the target is set (see setCascadeAgreement), and
+     * finalizeAggregation on the sample of buildStructure.
+     *
+     * @param data Instances on which the agreement is measured.
+     * @param targetAgreement Target agreement with the full model, in (0, 1].
+     * @return The threshold (Infinity if the Naive Bayes alone never meets
+     * the target).
+     * @throws Exception If the instances cannot be discretised.
+     */
+    public double calibrateCascade(Instances data, double targetAgreement) throws Exception {
+        List<Instance> discretized = new ArrayList<>(data.numInstances());
+        for (Instance instance : data) {
+            discretizer.input(instance);
+            discretized.add(discretizer.output());
+        }
+        return calibrateDiscretized(discretized, targetAgreement);
+    }
+
+    private double calibrateDiscretized(List<Instance> instances, double targetAgreement) throws Exception {
+        if (mSPnDEs == null || aggregating) {
+            throw new IllegalStateException("The mAnDE is not trained");
+        }
+        if (nb == null) {
+            throw new IllegalStateException("The cascade needs the Naive Bayes (see setCascadeAgreement)");
+        }
+        cascadeAgreement = targetAgreement;
+
+        int size = instances.size();
+        double[] confidence = new double[size];
+        boolean[] same = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            double[] naive = nb.probsForInstance(instances.get(i));
+            int predicted = Utils.maxIndex(naive);
+            confidence[i] = naive[predicted];
+            same[i] = (predicted == Utils.maxIndex(distributionForDiscretized(instances.get(i), naive)));
+        }
+
+        // Lower the threshold while the disagreements fit in the target
+        Integer[] byConfidence = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            byConfidence[i] = i;
+        }
+        Arrays.sort(byConfidence, (a, b) -> Double.compare(confidence[b], confidence[a]));
+
+        long allowed = (long) Math.floor((1 - targetAgreement) * size + 1e-9);
+        long disagree = 0;
+        double threshold = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < size;) {
+            // Instances with the same confidence are in or out together
+            int j = i;
+            long more = 0;
+            while (j < size && confidence[byConfidence[j]] == confidence[byConfidence[i]]) {
+                if (!same[byConfidence[j]]) {
+                    more++;
+                }
+                j++;
+            }
+            if (disagree + more > allowed) {
+                break;
+            }
+            disagree += more;
+            threshold = confidence[byConfidence[i]];
+            i = j;
+        }
+
+        cascadeThreshold = threshold;
+        resetCascadeStats();
+        return threshold;
+    }
+
+    /**
+     * @return At most max instances of data, evenly spaced.
+     */
+    private static List<Instance> sample(Instances data, int max) {
+        int step = Math.max(1, (data.numInstances() + max - 1) / max);
+        List<Instance> sample = new ArrayList<>();
+        for (int i = 0; i < data.numInstances(); i += step) {
+            sample.add(data.get(i));
+        }
+        return sample;
+    }
+
+    private boolean isCascading() {
+        return cascadeAgreement > 0 && nb != null;
+    }
+
+    private void countCascade(boolean hit) {
+        cascadeCalls.increment();
+        if (hit) {
+            cascadeHits.increment();
+        }
+    }
+
+    /**
+     * @return The fraction of the predictions of the cascade answered by the
+     * Naive Bayes alone, since the last calibration or reset (NaN if there
+     * were none).
+     */
+    public double getCascadeHitRate() {
+        long calls = cascadeCalls.sum();
+        return (calls == 0) ? Double.NaN : (double) cascadeHits.sum() / calls;
+    }
+
+    /**
+     * Resets the count of the predictions of the cascade.
+     */
+    public void resetCascadeStats() {
+        cascadeCalls.reset();
+        cascadeHits.reset();
+    }
+
+    // Anytime prediction //
+    /**
+     * Result of predictAnytime.
+     */
+    public static class Prediction {
+
+        /**
+         * Probability distribution of the class.
+         */
+        public final double[] distribution;
+
+        /**
+         * Number of mSPnDEs evaluated.
+         */
+        public final int numSPnDEs;
+
+        /**
+         * True if the predicted class is the one of the evaluation of every
+         * mSPnDE, false if the deadline stopped the evaluation before.
+         */
+        public final boolean decided;
+
+        Prediction(double[] distribution, int numSPnDEs, boolean decided) {
+            this.distribution = distribution;
+            this.numSPnDEs = numSPnDEs;
+            this.decided = decided;
+        }
+    }
+
+    /**
+     * Anytime version of distributionForInstance for latency-critical
+     * scoring. The mSPnDEs are evaluated one by one in order of importance
+     * (see rank), and the evaluation stops when the margin of the leading
+     * class cannot be overturned: each remaining mSPnDE adds a distribution
+     * that sums 1, so it stops when the margin exceeds the number of
+     * mSPnDEs left. The predicted class is then the same as with every
+     * mSPnDE, and the distribution is the one of the mSPnDEs evaluated. The
+     * evaluation also stops at the deadline, if any.
+     *
+     * @param instance Instance to classify.
+     * @param deadlineNanos Maximum time of the evaluation of the mSPnDEs, in
+     * nanoseconds (0 for none).
+     * @return The distribution and the number of mSPnDEs evaluated.
+     * @throws Exception If the instance cannot be discretised.
+     */
+    public Prediction predictAnytime(Instance instance, long deadlineNanos) throws Exception {
+        discretizer.input(instance);
+        Instance instance_d = discretizer.output();
+
+        if (modeNB) {
+            return new Prediction(nb.probsForInstance(instance_d), 0, true);
+        }
+        return predictDiscretized(instance_d, null, deadlineNanos);
+    }
+
+    private Prediction predictDiscretized(Instance instance_d, double[] naive, long deadlineNanos) {
+        long start = System.nanoTime();
+        double[] res = new double[classNumValues];
+        // Only the active mSPnDEs can still change the margin
+        Collection<mSPnDE> spodes = activeFor(instance_d, Arrays.asList(getOrdered()));
+        int size = spodes.size();
+
+        // The Naive Bayes has the weight of every active mSPnDE, evaluated
+        // or not
+        if (getAddNB() != 0) {
+            double percentaje = getAddNB() * size;
+            double[] temp = (naive != null) ? naive : nb.probsForInstance(instance_d);
+            for (int i = 0; i < res.length; i++) {
+                res[i] += percentaje * temp[i];
+            }
+        }
+
+        int used = 0;
+        boolean decided = true;
+        for (mSPnDE spode : spodes) {
+            sumProbs(res, spode.probsForInstance(instance_d));
+            used++;
+            if (used == size || margin(res) > size - used) {
+                break;
+            }
+            if (deadlineNanos > 0 && System.nanoTime() - start >= deadlineNanos) {
+                decided = false;
+                break;
+            }
+        }
+
+        return new Prediction(normalizeResult(res), used, decided);
+    }
+
+    /**
+     * @return The difference between the largest and the second largest
+     * value of res.
+     */
+    private static double margin(double[] res) {
+        double first = Double.NEGATIVE_INFINITY, second = Double.NEGATIVE_INFINITY;
+        for (double value : res) {
+            if (value > first) {
+                second = first;
+                first = value;
+            } else if (value > second) {
+                second = value;
+            }
+        }
+        return first - second;
+    }
+
+    /**
+     * @return The mSPnDEs in the order of evaluation of predictAnytime: the
+     * order of rank, or by number of children if it was not ranked.
+     */
+    private mSPnDE[] getOrdered() {
+        mSPnDE[] spodes = ordered;
+        if (spodes != null && orderedFrom == mSPnDEs && spodes.length == mSPnDEs.size()) {
+            return spodes;
+        }
+
+        List<Integer> keys = new ArrayList<>(mSPnDEs.keySet());
+        if (order != null && order.length == keys.size() && keys.containsAll(toList(order))) {
+            keys = toList(order);
+        } else {
+            keys.sort((a, b) -> {
+                int compare = Integer.compare(mSPnDEs.get(b).getNChildren(), mSPnDEs.get(a).getNChildren());
+                return (compare != 0) ? compare : Integer.compare(a, b);
+            });
+        }
+
+        spodes = new mSPnDE[keys.size()];
+        for (int i = 0; i < spodes.length; i++) {
+            spodes[i] = mSPnDEs.get(keys.get(i));
+        }
+        orderedFrom = mSPnDEs;
+        ordered = spodes;
+        return spodes;
+    }
+
+    private static List<Integer> toList(int[] values) {
+        List<Integer> list = new ArrayList<>(values.length);
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Writes the options, the discretizer, the Naive Bayes and the mSPnDEs of
+     * the trained model (see ModelIO).
+     *
+     * @param out Writer of the model file.
+     * @throws IOException If the model is not trained or cannot be written.
+     */
+    @Override
+    public void writeModel(ModelWriter out) throws IOException {
+        if (mSPnDEs == null || aggregating) {
+            throw new IOException("The mAnDE is not trained");
+        }
+
+        // Options
+        out.writeInt(n);
+        out.writeBoolean(pruning);
+        out.writeDouble(bagSize);
+        out.writeInt(nTrees);
+        out.writeString(baseClass);
+        out.writeString(ensemble);
+        out.writeDouble(addNB);
+        out.writeInt(numThreads);
+
+        // Trained model
+        out.writeBoolean(modeNB);
+        out.writeInt(classNumValues);
+        out.writeInt(y);
+        out.writeInts(varNumValues);
+        out.writeDiscretizer(discretizer);
+        out.writeBoolean(nb != null);
+        if (nb != null) {
+            nb.writeModel(out);
+        }
+
+        out.writeInt(mSPnDEs.size());
+        for (Map.Entry<Integer, mSPnDE> entry : mSPnDEs.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt((entry.getValue() instanceof mSP2DE) ? 2 : 1);
+            entry.getValue().writeModel(out);
+        }
+
+        out.writeBoolean(logSpace);
+        out.writeBoolean(earlyExit);
+        out.writeLong(deadline);
+        out.writeInts((order != null) ? order : new int[0]);
+        out.writeDouble(cascadeAgreement);
+        out.writeDouble(cascadeThreshold);
+
+        out.writeInt(frequencyLimit);
+        out.writeInt((valueCounts != null) ? valueCounts.length : 0);
+        if (valueCounts != null) {
+            for (int[] counts : valueCounts) {
+                out.writeInts(counts);
+            }
+        }
+    }
+
+    /**
+     * Reads a model written by writeModel.
+     *
+     * @param in Reader of the model file.
+     * @throws IOException If the model is not valid.
+     */
+    @Override
+    public void readModel(ModelReader in) throws IOException {
+        n = in.readInt();
+        pruning = in.readBoolean();
+        bagSize = in.readDouble();
+        nTrees = in.readInt();
+        baseClass = in.readString();
+        ensemble = in.readString();
+        addNB = in.readDouble();
+        setNumThreads(in.readInt());
+
+        modeNB = in.readBoolean();
+        classNumValues = in.readInt();
+        y = in.readInt();
+        varNumValues = in.readInts();
+        discretizer = in.readDiscretizer();
+        nb = null;
+        if (in.readBoolean()) {
+            if (in.getVersion() >= 5) {
+                nb = new mSP0DE(in);
+            } else {
+                // Older versions wrote a weka NaiveBayes
+                NaiveBayes naive = new NaiveBayes();
+                naive.readModel(in);
+                nb = mSP0DE.of(naive, y, varNumValues);
+            }
+        }
+
+        int size = in.readInt();
+        mSPnDEs = new ConcurrentHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            int key = in.readInt();
+            int type = in.readInt();
+            if (type != 1 && type != 2) {
+                throw new IOException("Invalid mSPnDE type " + type);
+            }
+            mSPnDEs.put(key, (type == 2) ? new mSP2DE(in) : new mSP1DE(in));
+        }
+
+        logSpace = (in.getVersion() >= 3) && in.readBoolean();
+
+        earlyExit = false;
+        deadline = 0;
+        order = null;
+        if (in.getVersion() >= 6) {
+            earlyExit = in.readBoolean();
+            deadline = in.readLong();
+            order = in.readInts();
+            if (order.length == 0) {
+                order = null;
+            }
+        }
+
+        cascadeAgreement = (in.getVersion() >= 7) ? in.readDouble() : 0;
+        cascadeThreshold = (in.getVersion() >= 7) ? in.readDouble() : Double.POSITIVE_INFINITY;
+        resetCascadeStats();
+
+        frequencyLimit = 0;
+        valueCounts = null;
+        if (in.getVersion() >= 8) {
+            frequencyLimit = in.readInt();
+            int numAttributes = in.readInt();
+            if (numAttributes > 0) {
+                valueCounts = new int[numAttributes][];
+                for (int i = 0; i < numAttributes; i++) {
+                    valueCounts[i] = in.readInts();
+                }
+            }
+        }
+        updateActiveValues();
+    }
+
+    /**
+     * Encodes the tables of the mSPnDEs with less precision. The Naive Bayes,
+     * if any, is kept as it is.
+     *
+     * @param precision Storage precision of the tables.
+     */
+    @Override
+    public void freeze(ProbabilityTable.Precision precision) {
+        if (mSPnDEs == null || aggregating) {
+            throw new IllegalStateException("The mAnDE is not trained");
+        }
+        mSPnDEs.values().forEach((spode) -> spode.freeze(precision));
+    }
+
+    /**
+     * @return The bytes used by the tables of the mSPnDEs.
      */
     @Override
-    public void buildClassifier(Instances instances) throws Exception {
-        // Can the classifier work with this data?
-        getCapabilities().testWithFail(instances);
-
-        // Delete instances with no class
-        instances.deleteWithMissingClass();
-
-        // We driscretise
-        discretizer = new weka.filters.supervised.attribute.Discretize();
-        discretizer.setInputFormat(instances);
-        data = weka.filters.Filter.useFilter(instances, discretizer);
-        numInstances = data.numInstances();
-        // Free up the data space by parameter
-        instances.delete();
+    public long getTableBytes() {
+        long bytes = 0;
+        if (mSPnDEs != null) {
+            for (mSPnDE spode : mSPnDEs.values()) {
+                bytes += spode.getTableBytes();
+            }
+        }
+        return bytes;
+    }
 
-        // We initialize the index dictionaries
-        //initializeNameToIndex();
+    // Post-training compaction //
+    /**
+     * Contribution of each mSPnDE to the predictions on held-out instances:
+     * how much the mean log loss of the mAnDE grows when that mSPnDE alone is
+     * left out. Negative contributions are mSPnDEs that hurt the predictions.
+     *
+     * @param validation Held-out instances, not used in the training.
+     * @return The contribution of each mSPnDE, by its key.
+     * @throws Exception If the instances cannot be discretised.
+     */
+    public Map<Integer, Double> contributions(Instances validation) throws Exception {
+        if (mSPnDEs == null || aggregating) {
+            throw new IllegalStateException("The mAnDE is not trained");
+        }
+        List<Integer> keys = new ArrayList<>(mSPnDEs.keySet());
+        int size = keys.size();
+
+        double full = 0;
+        double[] without = new double[size];
+        double[][] probs = new double[size][];
+        double[] sum = new double[classNumValues];
+        double[] rest = new double[classNumValues];
+        double[] inactive = new double[classNumValues];
+        boolean[] active = new boolean[size];
+        int count = 0;
+
+        for (Instance instance : validation) {
+            if (instance.classIsMissing()) {
+                continue;
+            }
+            discretizer.input(instance);
+            Instance instance_d = discretizer.output();
+            int vy = (int) instance.classValue();
+            double[] naive = (nb != null) ? nb.probsForInstance(instance_d) : null;
+
+            // The inactive mSPnDEs add nothing, as in distributionForInstance
+            int numActive = 0;
+            for (int s = 0; s < size; s++) {
+                active[s] = isActive(mSPnDEs.get(keys.get(s)), instance_d);
+                numActive += active[s] ? 1 : 0;
+            }
 
-        // Create the mSPnDE's
-        //try {
-            // We check that with this bagSize, we will have more than 
-            // minimumInstances instances (default 3)
-            if (bagSize > 0) {
-                while ((numInstances * (bagSize/100)) < minimumInstances) {
-                    bagSize = 2 * bagSize;
-                }
+            Arrays.fill(sum, 0);
+            for (int s = 0; s < size; s++) {
+                probs[s] = (active[s] || numActive == 0)
+                        ? mSPnDEs.get(keys.get(s)).probsForInstance(instance_d) : inactive;
+                sumProbs(sum, probs[s]);
             }
-                        
-            build_mSPnDEs();
-        //} catch (Exception ex) {}
-        
-        // If we have not created mSPnDE's
-        if (mSPnDEs.isEmpty()) {
-            HashSet<String> done = new HashSet<>();
-            done.add(getEnsemble());
-            
-            setBagSize(100);
-            setBaseClass("J48");
-            setAddNB(0.4);
-            
-            String[] posClassifiers = {"Bagging", "RF", "AdaBoost"};
 
-            // We try with Bagging, RF and Boosting
-            for (int i = 0; i < posClassifiers.length; i++) {
-                if (done.contains(posClassifiers[i])) {
-                    continue;
+            full += logLoss(sum, size, naive, vy);
+            for (int s = 0; s < size; s++) {
+                for (int i = 0; i < rest.length; i++) {
+                    rest[i] = sum[i] - probs[s][i];
                 }
+                without[s] += logLoss(rest, size - 1, naive, vy);
+            }
+            count++;
+        }
 
-                setEnsemble(posClassifiers[i]);
-                done.add(posClassifiers[i]);
-
-                // Try to build the mSPnDEs with the new configuration
-                //try {
-                    build_mSPnDEs();
-                //} catch (Exception ex) {}
+        Map<Integer, Double> contributions = new HashMap<>();
+        for (int s = 0; s < size; s++) {
+            contributions.put(keys.get(s), (without[s] - full) / Math.max(1, count));
+        }
+        return contributions;
+    }
 
-                // If we have created mSPnDEs, we end up with
-                if (!mSPnDEs.isEmpty()) {
-                    break;
-                }
+    /**
+     * Log loss of the class value vy with the combination of
+     * distributionForInstance: the probabilities of 'size' mSPnDEs added in
+     * sum, and the Naive Bayes weighted by addNB * size.
+     */
+    private double logLoss(double[] sum, int size, double[] naive, int vy) {
+        double total = 0, value = 0;
+        for (int i = 0; i < sum.length; i++) {
+            double prob = sum[i];
+            if (naive != null && getAddNB() != 0) {
+                prob += getAddNB() * size * naive[i];
             }
-            
-            // If nothing works, we run NB
-            if (mSPnDEs.isEmpty()) {
-                modeNB = true;
-                nb = new NaiveBayes();
-                nb.buildClassifier(data);
+            total += prob;
+            if (i == vy) {
+                value = prob;
             }
         }
-        
-        if (getAddNB() != 0 && !mSPnDEs.isEmpty())
-        {
-            nb = new NaiveBayes();
-            nb.buildClassifier(data);
-        }
-        // If we have not run Naive Bayes, we calculate the mAnDE tables.
-        if (!modeNB) {
-            // Define global variables
-            y = data.classIndex();
-            classNumValues = data.classAttribute().numValues();
-            varNumValues = new int[data.numAttributes()];
-            for (int i = 0; i < varNumValues.length; i++) {
-                varNumValues[i] = data.attribute(i).numValues();
+        double prob = (total > 0) ? value / total : 1.0 / classNumValues;
+        return -Math.log(Math.max(prob, MIN_PROB));
+    }
+
+    /**
+     * Post-training compaction: keeps the mSPnDEs with the largest
+     * contribution on held-out instances (see contributions), so that fewer
+     * are evaluated per prediction. They are taken in order of contribution
+     * while they fit in the budgets, and at least the best one is kept.
+     *
+     * @param validation Held-out instances, not used in the training.
+     * @param maxSPnDEs Maximum number of mSPnDEs to keep (0 for no limit).
+     * @param maxTableBytes Maximum bytes of their tables (0 for no limit).
+     * @return The number of mSPnDEs kept.
+     * @throws Exception If the instances cannot be discretised.
+     */
+    public int prune(Instances validation, int maxSPnDEs, long maxTableBytes) throws Exception {
+        List<Integer> keys = byContribution(validation);
+
+        ConcurrentHashMap<Integer, mSPnDE> kept = new ConcurrentHashMap<>();
+        long bytes = 0;
+        for (int key : keys) {
+            if (maxSPnDEs > 0 && kept.size() >= maxSPnDEs) {
+                break;
             }
-            
-            calculateTables_mSPnDEs();
+            mSPnDE spode = mSPnDEs.get(key);
+            long spodeBytes = spode.getTableBytes();
+            if (maxTableBytes > 0 && bytes + spodeBytes > maxTableBytes && !kept.isEmpty()) {
+                continue;
+            }
+            kept.put(key, spode);
+            bytes += spodeBytes;
         }
 
-        // We free up the discretised data space
-        data.delete();
-        
-        // Print data of mSPnDEs created
-        /*double var = 0;
-        double max = 0;
-        double min = Double.POSITIVE_INFINITY;
-        for (mSPnDE a : mSPnDEs.values()) {
-            if (a.getNChildren() > max) 
-                max = a.getNChildren();
-            if (a.getNChildren() < min)
-                min = a.getNChildren();
-            var += a.getNChildren();
-        }
-        System.out.println("mSPnDEs," 
-                + mSPnDEs.size() 
-                + "," + (var/mSPnDEs.size())
-                + "," + max
-                + "," + min);*/
+        mSPnDEs = kept;
+        order = keys.stream().filter(kept::containsKey).mapToInt(Integer::intValue).toArray();
+        return kept.size();
     }
 
     /**
-     * Calculates the probabilities of class membership for the provided Test
-     * Instance.
+     * Sets the order of importance in which predictAnytime evaluates the
+     * mSPnDEs: the order of their contribution on held-out instances (see
+     * contributions). prune sets it too.
      *
-     * @param instance Instance to classify.
-     * @return Probability distribution of predicted class membership.
-     * @throws java.lang.Exception
+     * @param validation Held-out instances, not used in the training.
+     * @throws Exception If the instances cannot be discretised.
      */
-    @Override
-    public double[] distributionForInstance(Instance instance) throws Exception {
-        double[] res = new double[classNumValues];
+    public void rank(Instances validation) throws Exception {
+        order = byContribution(validation).stream().mapToInt(Integer::intValue).toArray();
+        ordered = null;
+    }
 
-        final Instance instance_d;
-        discretizer.input(instance);
-        instance_d = discretizer.output();
+    /**
+     * @return The keys of the mSPnDEs from the largest contribution.
+     */
+    private List<Integer> byContribution(Instances validation) throws Exception {
+        Map<Integer, Double> contributions = contributions(validation);
+        List<Integer> keys = new ArrayList<>(contributions.keySet());
+        keys.sort((a, b) -> {
+            int compare = Double.compare(contributions.get(b), contributions.get(a));
+            return (compare != 0) ? compare : Integer.compare(a, b);
+        });
+        return keys;
+    }
 
-        if (modeNB) {
-            return nb.distributionForInstance(instance_d);
+    /**
+     * Adds the probabilities of b to a.
+     *
+     * @return a
+     */
+    private static double[] sumProbs(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
         }
-        
-        // Add up all the probabilities of the mSPnDEs
-        mSPnDEs.values().parallelStream().forEach((spode) -> {
-            double[] temp = spode.probsForInstance(instance_d);
+        return a;
+    }
 
-            for (int i = 0; i < res.length; i++) {
-                res[i] += temp[i];
-            }
-        });
+    /**
+     * @return The number of threads to use, resolving 0 to all the
+     * available processors.
+     */
+    private int getNumThreadsInUse() {
+        return (numThreads <= 0) ? Runtime.getRuntime().availableProcessors() : numThreads;
+    }
 
-        if (getAddNB() != 0) {
-            double percentaje = getAddNB() * mSPnDEs.size();
-            double[] temp = nb.distributionForInstance(instance_d);
-            for (int i = 0; i < res.length; i++) {
-                res[i] += percentaje * temp[i];
-            }
+    /**
+     * Runs a parallel stream task in the pool of this mAnDE, so that it uses
+     * at most numThreads threads instead of the whole common pool.
+     */
+    private <T> T runInPool(java.util.concurrent.Callable<T> task) throws Exception {
+        return join(submitToPool(task));
+    }
+
+    /**
+     * Starts a task in the pool of this mAnDE, without waiting for it. The
+     * pool is created under the lock of the mAnDE, so that concurrent
+     * predictions share a single one.
+     */
+    private synchronized <T> Future<T> submitToPool(java.util.concurrent.Callable<T> task) {
+        if (pool == null) {
+            pool = new ForkJoinPool(getNumThreadsInUse());
         }
+        return pool.submit(task);
+    }
 
-        /* Normalize the result. If the sum is 0 (Utils.normalize will return 
-         * an IllegalArgumentException), we set the same value in each 
-         * possible value of the class.
-         */
+    /**
+     * Shuts down the pool of this mAnDE, once its tasks finish. The next task
+     * creates a new one.
+     */
+    private synchronized void shutdownPool() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Waits for a task started by submitToPool.
+     */
+    private static <T> T join(Future<T> task) throws Exception {
         try {
-            Utils.normalize(res);
-        } catch (IllegalArgumentException ex) {
-            for (int i = 0; i < res.length; i++) {
-                res[i] = 1.0 / classNumValues;
+            return task.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
             }
+            throw ex;
         }
-        
-        return res;
     }
 
     /**
@@ -326,6 +1419,12 @@ public class mAnDE extends AbstractClassifier implements
      */
     private void build_mSPnDEs() throws Exception {
         mSPnDEs = new ConcurrentHashMap<>();
+        order = null;
+
+        // Do not pay for an ensemble that cannot create any mSPnDE
+        if (!canFindStructure()) {
+            return;
+        }
 
         List<Classifier> trees;
         Classifier base;
@@ -360,7 +1459,7 @@ public class mAnDE extends AbstractClassifier implements
             switch (getEnsemble()) {
                 case "Bagging":
                     Bagging2 bagging = new Bagging2();
-                    bagging.setNumExecutionSlots(0);
+                    bagging.setNumExecutionSlots(getNumThreadsInUse());
                     bagging.setClassifier(base);
                     bagging.setNumIterations(nTrees);
                     bagging.setBagSizePercentDouble(bagSize);
@@ -376,9 +1475,13 @@ public class mAnDE extends AbstractClassifier implements
                     break;
                 case "RF":
                     RandomForest2 rf = new RandomForest2();
-                    rf.setNumExecutionSlots(0);
+                    rf.setNumExecutionSlots(getNumThreadsInUse());
                     rf.setNumIterations(nTrees);
                     rf.setBagSizePercentDouble(bagSize);
+                    if (pairs != null) {
+                        PairCounts registry = pairs;
+                        rf.setTreeListener((tree) -> registry.add(tree.getEdges()));
+                    }
                     rf.buildClassifier(data);
                     
                     rf.toSP1DE(mSPnDEs);
@@ -419,6 +1522,60 @@ public class mAnDE extends AbstractClassifier implements
         }
     }
     
+    /**
+     * Cheap probe, with a single pass over data at most, of whether the
+     * configured ensemble can create any mSPnDE, so that the fallback
+     * cascade of learnStructure goes straight to the configuration that can,
+     * or to Naive Bayes.
+     *
+     * Only the trees of Random Forest are converted into mSPnDEs (see
+     * RandomTree2.toSP1DE), and a tree can only split if the class takes two
+     * values and some attribute too: an attribute with a single value (as a
+     * discretised attribute without cut points) has no information gain in
+     * any bag. Attributes with missing values are assumed to be informative.
+     *
+     * @return False if the ensemble cannot create any mSPnDE.
+     * @throws Exception If the ensemble is not supported.
+     */
+    private boolean canFindStructure() throws Exception {
+        switch (getEnsemble()) {
+            case "Bagging":
+            case "AdaBoost":
+            case "LogitBoost":
+            case "none":
+                return false;
+            case "RF":
+                break;
+            default:
+                throw new Exception("Ensemble type not supported");
+        }
+
+        int numAttributes = data.numAttributes();
+        double[] first = new double[numAttributes];
+        boolean[] informative = new boolean[numAttributes];
+        boolean anyAttribute = false;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.get(i);
+            for (int j = 0; j < numAttributes; j++) {
+                if (informative[j]) {
+                    continue;
+                }
+                double value = inst.value(j);
+                if (i == 0) {
+                    first[j] = value;
+                }
+                if (Double.isNaN(value) || value != first[j]) {
+                    informative[j] = true;
+                    anyAttribute |= (j != y);
+                }
+            }
+            if (informative[y] && anyAttribute) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Reads the classifier passed by parameter and returns a
      * HashMap<String,Node> with the classifier data.
@@ -635,16 +1792,29 @@ public class mAnDE extends AbstractClassifier implements
     }*/
 
     /**
-     * Executes in parallel the 'buildTables()' functions of each mSPnDE, and
-     * terminates when all have executed it.
+     * Executes in parallel an action on each mSPnDE (for example, its
+     * 'buildTables()' function), and terminates when all have executed it.
+     * When the class has two values, the mSPnDEs keep the log-odds of the
+     * class instead of the tables, and score with a single sum (see mSP1DE).
+     * The Naive Bayes, if any, has its tables built in the same way, as one
+     * more action (see mSP0DE).
      */
-    private void calculateTables_mSPnDEs() {
-        List<mSPnDE> list = new ArrayList<>(mSPnDEs.values());
+    private void calculate_mSPnDEs(Consumer<CountTables> action) throws Exception {
+        List<CountTables> list = new ArrayList<>(mSPnDEs.size() + 1);
+        if (nb != null) {
+            list.add(nb);
+        }
+        list.addAll(mSPnDEs.values());
         
         //Calls the mSPnDE function that creates the table for each mSPnDE
-        list.parallelStream().forEach((spode) -> {
-            spode.buildTables();
-        });
+        if (getNumThreadsInUse() == 1) {
+            list.forEach(action);
+        } else {
+            runInPool(() -> {
+                list.parallelStream().forEach(action);
+                return null;
+            });
+        }
     }
 
     /**
@@ -682,6 +1852,27 @@ public class mAnDE extends AbstractClassifier implements
         return res;
     }
 
+    /**
+     * @return The mSPnDEs of the trained model.
+     */
+    public ConcurrentHashMap<Integer, mSPnDE> getmSPnDEs() {
+        return mSPnDEs;
+    }
+
+    /**
+     * @return The discretisation filter fitted on the training data.
+     */
+    public weka.filters.supervised.attribute.Discretize getDiscretizer() {
+        return discretizer;
+    }
+
+    /**
+     * @return True if the model fell back to Naive Bayes.
+     */
+    public boolean isModeNB() {
+        return modeNB;
+    }
+
     /**
      * @param pruning The pruning hyperparameter to set.
      */
@@ -733,6 +1924,72 @@ public class mAnDE extends AbstractClassifier implements
         this.addNB = addNB;
     }
 
+    /**
+     * @param logSpace True to store the tables as logarithms and score in log
+     * space.
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
+    /**
+     * @param earlyExit True to stop the evaluation of the mSPnDEs in
+     * distributionForInstance when the predicted class cannot change (see
+     * predictAnytime).
+     */
+    public void setEarlyExit(boolean earlyExit) {
+        this.earlyExit = earlyExit;
+    }
+
+    /**
+     * @param cascadeAgreement Target agreement of the Naive Bayes cascade
+     * with the full model, calibrated by buildClassifier on the training
+     * instances (0 for no cascade, see calibrateCascade).
+     */
+    public void setCascadeAgreement(double cascadeAgreement) {
+        this.cascadeAgreement = cascadeAgreement;
+    }
+
+    /**
+     * Like the frequency limit of A1DE, an mSPnDE is only evaluated for an
+     * instance if the values of its super-parents appear in at least this
+     * number of training instances, so that its tables are well estimated.
+     * If no mSPnDE is active, every one is evaluated. It can be changed after
+     * the training, except in models written before the counts of the values
+     * were kept.
+     *
+     * @param frequencyLimit Minimum frequency of the values of the
+     * super-parents (0 for every mSPnDE).
+     */
+    public void setFrequencyLimit(int frequencyLimit) {
+        this.frequencyLimit = frequencyLimit;
+        updateActiveValues();
+    }
+
+    /**
+     * @param deadline Deadline of each prediction with early exit, in
+     * microseconds (0 for none).
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param numThreads Number of threads used to build the ensemble, to
+     * calculate the tables and to predict (0 for all the available processors).
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+        shutdownPool();
+    }
+
+    /**
+     * @return The number of threads (0 means all the available processors)
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
     /**
      * @return The pruning
      */
@@ -782,6 +2039,50 @@ public class mAnDE extends AbstractClassifier implements
         return addNB;
     }
 
+    /**
+     * @return The logSpace
+     */
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * @return The target agreement of the Naive Bayes cascade
+     */
+    public double getCascadeAgreement() {
+        return cascadeAgreement;
+    }
+
+    /**
+     * @return The confidence from which the cascade answers with the Naive
+     * Bayes alone
+     */
+    public double getCascadeThreshold() {
+        return cascadeThreshold;
+    }
+
+    /**
+     * @return The minimum frequency of the values of the super-parents
+     */
+    public int getFrequencyLimit() {
+        return frequencyLimit;
+    }
+
+    /**
+     * @return The earlyExit
+     */
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+
+    /**
+     * @return The deadline of each prediction with early exit, in
+     * microseconds
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
     /**
      * Returns default capabilities of the classifier.
      *
@@ -811,7 +2112,7 @@ public class mAnDE extends AbstractClassifier implements
      */
     @Override
     public Enumeration listOptions() {
-        Vector newVector = new Vector(6);
+        Vector newVector = new Vector(12);
 
         newVector.addElement(new Option("\tn of the mAnDE (1 or 2, default 1)\n", "N", 1, "-N <int>"));
         newVector.addElement(new Option("\tUse REPTree trees instead of J48 trees", "REP", 0, "-REP"));
@@ -819,6 +2120,12 @@ public class mAnDE extends AbstractClassifier implements
         newVector.addElement(new Option("\tRealise an ensemble of decision trees", "E", 0, "-E"));
         newVector.addElement(new Option("\tRealise the ensemble of decision trees using Random Forest", "RF", 0, "-RF"));
         newVector.addElement(new Option("\tSet the number of instances used to create each tree when using ensembles (0, 100]\n", "B", 100, "-B <double>"));
+        newVector.addElement(new Option("\tNumber of threads used in the ensemble, the tables and the prediction (default 0 = all the processors)\n", "num-slots", 1, "-num-slots <int>"));
+        newVector.addElement(new Option("\tStore the tables as logarithms and score in log space", "L", 0, "-L"));
+        newVector.addElement(new Option("\tStop evaluating the mSPnDEs when the predicted class cannot change", "early-exit", 0, "-early-exit"));
+        newVector.addElement(new Option("\tDeadline of each prediction with early exit, in microseconds (default 0 = none)\n", "deadline", 1, "-deadline <int>"));
+        newVector.addElement(new Option("\tMinimum frequency of the values of the super-parents of an evaluated mSPnDE (default 0 = every mSPnDE)\n", "F", 1, "-F <int>"));
+        newVector.addElement(new Option("\tAnswer with the Naive Bayes alone when it is confident, calibrated to this agreement with the full model (default 0 = no cascade)\n", "cascade", 1, "-cascade <double>"));
 
         return newVector.elements();
     }
@@ -843,13 +2150,45 @@ public class mAnDE extends AbstractClassifier implements
 
         pruning = !Utils.getFlag("P", options);
 
+        logSpace = Utils.getFlag('L', options);
+
         String Bag = Utils.getOption('B', options);
         if (Bag.length() != 0) {
-            bagSize = Integer.parseInt(Bag);
+            bagSize = Double.parseDouble(Bag);
         } else {
             bagSize = 100;
         }
 
+        String slots = Utils.getOption("num-slots", options);
+        if (slots.length() != 0) {
+            setNumThreads(Integer.parseInt(slots));
+        } else {
+            setNumThreads(0);
+        }
+
+        earlyExit = Utils.getFlag("early-exit", options);
+
+        String time = Utils.getOption("deadline", options);
+        if (time.length() != 0) {
+            deadline = Long.parseLong(time);
+        } else {
+            deadline = 0;
+        }
+
+        String cascade = Utils.getOption("cascade", options);
+        if (cascade.length() != 0) {
+            cascadeAgreement = Double.parseDouble(cascade);
+        } else {
+            cascadeAgreement = 0;
+        }
+
+        String freq = Utils.getOption('F', options);
+        if (freq.length() != 0) {
+            setFrequencyLimit(Integer.parseInt(freq));
+        } else {
+            setFrequencyLimit(0);
+        }
+
         Utils.checkForRemainingOptions(options);
     }
 
@@ -869,9 +2208,35 @@ public class mAnDE extends AbstractClassifier implements
             result.add("-P");
         }
 
+        if (logSpace) {
+            result.add("-L");
+        }
+
         result.add("-B");
         result.add("" + bagSize);
 
+        result.add("-num-slots");
+        result.add("" + numThreads);
+
+        if (earlyExit) {
+            result.add("-early-exit");
+        }
+
+        if (deadline != 0) {
+            result.add("-deadline");
+            result.add("" + deadline);
+        }
+
+        if (cascadeAgreement != 0) {
+            result.add("-cascade");
+            result.add("" + cascadeAgreement);
+        }
+
+        if (frequencyLimit != 0) {
+            result.add("-F");
+            result.add("" + frequencyLimit);
+        }
+
         return (String[]) result.toArray(new String[result.size()]);
     }
 
@@ -0,0 +1,385 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    mSP0DE.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+
+package org.albacete.simd.mAnDE;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import org.albacete.simd.data.PackedInstances;
+import org.albacete.simd.kernels.ClassKernels;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Naive Bayes of mAnDE (the tables of an mSPnDE without Super-Parent), with
+ * its tables in the flat layout of the mSP1DEs. Its counts are built in the
+ * same stage as the tables of the mSPnDEs, and it is scored with the same
+ * kernels, instead of building and querying a separate weka NaiveBayes. It is
+ * not an mSPnDE: its children are always every attribute but the class.
+ *
+ * The estimates are the ones of weka's NaiveBayes with nominal attributes, so
+ * the predictions do not change: Laplace correction in P(y) and in each
+ * P(Xj|y), missing values skipped, probabilities of at least 1e-75 and
+ * rescaling of the products that are about to underflow.
+ */
+public class mSP0DE implements CountTables, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Loops over the class values of the rows of the tables.
+     */
+    private static final ClassKernels KERNELS = ClassKernels.get();
+
+    /**
+     * Smallest probability of a child, as in weka's NaiveBayes.
+     */
+    private static final double MIN_PROB = 1e-75;
+
+    /**
+     * IDs of the children: every attribute but the class, in ascending order,
+     * once the tables are built.
+     */
+    private int[] childIds;
+
+    /**
+     * Number of values of each child.
+     */
+    private int[] childNumValues;
+
+    /**
+     * Start of the table of each child in 'tables'.
+     */
+    private int[] offsets;
+
+    /**
+     * Number of values of the class.
+     */
+    private int classNumValues;
+
+    /**
+     * Conditional probability tables P(Xj|y) of all the children, one after
+     * another. The value of P(xj|y) for the k-th child is at
+     * offsets[k] + xj * classNumValues + y.
+     */
+    private ProbabilityTable tables;
+
+    /**
+     * Probability table P(y).
+     */
+    private ProbabilityTable classProb;
+
+    /**
+     * Contingency table of y between buildCounts and finalizeTables.
+     */
+    private double[] classCounts;
+
+    /**
+     * Contingency tables of the children, with the layout of tables, between
+     * buildCounts and finalizeTables. The missing values are not counted.
+     */
+    private double[] counts;
+
+    /**
+     * Constructor. The children are all the attributes of the data.
+     */
+    public mSP0DE() {
+    }
+
+    /**
+     * Constructor. Reads an mSP0DE written by writeModel.
+     *
+     * @param in Reader of the model file.
+     * @throws IOException If the mSP0DE is not valid.
+     */
+    mSP0DE(ModelReader in) throws IOException {
+        this.classNumValues = in.readInt();
+        this.childIds = in.readInts();
+        this.childNumValues = in.readInts();
+        this.offsets = in.readInts();
+        this.classProb = in.readTable();
+        this.tables = in.readTable();
+    }
+
+    /**
+     * Converts the estimators of a trained weka NaiveBayes with nominal
+     * attributes, as written by models of older versions.
+     *
+     * @param nb Trained Naive Bayes.
+     * @param y Index of the class.
+     * @param varNumValues Number of values of each attribute.
+     * @return The mSP0DE with the same probabilities.
+     */
+    static mSP0DE of(NaiveBayes nb, int y, int[] varNumValues) {
+        mSP0DE naive = new mSP0DE();
+        naive.allocateCounts(y, varNumValues);
+
+        double[] classProb = naive.classCounts;
+        double[] tables = naive.counts;
+        naive.classCounts = null;
+        naive.counts = null;
+
+        for (int vy = 0; vy < naive.classNumValues; vy++) {
+            classProb[vy] = nb.getClassEstimator().getProbability(vy);
+        }
+        for (int k = 0; k < naive.childIds.length; k++) {
+            for (int vy = 0; vy < naive.classNumValues; vy++) {
+                for (int vj = 0; vj < naive.childNumValues[k]; vj++) {
+                    tables[naive.offsets[k] + vj * naive.classNumValues + vy] = Math.max(MIN_PROB,
+                            nb.getConditionalEstimators()[k][vy].getProbability(vj));
+                }
+            }
+        }
+
+        naive.classProb = ProbabilityTable.of(classProb);
+        naive.tables = ProbabilityTable.of(tables);
+        return naive;
+    }
+
+    /**
+     * Create the probability tables of the Naive Bayes, both P(y) and the
+     * conditional for each variable P(Xj|y).
+     *
+     * @param data Discretised training instances.
+     */
+    @Override
+    public void buildTables(Instances data) {
+        buildCounts(new PackedInstances(data));
+        finalizeTables();
+    }
+
+    /**
+     * Creates the contingency tables of the Naive Bayes, which are converted
+     * into probability tables by finalizeTables. Before that, the counts of
+     * other shards of the data can be added with aggregate.
+     *
+     * @param data Discretised training instances.
+     */
+    @Override
+    public void buildCounts(PackedInstances data) {
+        int y = data.classIndex();
+        int numInstances = data.numInstances();
+        int[] varNumValues = new int[data.numAttributes()];
+        for (int i = 0; i < varNumValues.length; i++) {
+            varNumValues[i] = data.numValues(i);
+        }
+        allocateCounts(y, varNumValues);
+
+        // Block by block, a column at a time (see PackedInstances)
+        int[] vy = new int[PackedInstances.BLOCK];
+        int[] vj = new int[PackedInstances.BLOCK];
+        double[] weights = new double[PackedInstances.BLOCK];
+        for (int from = 0; from < numInstances; from += PackedInstances.BLOCK) {
+            int to = Math.min(numInstances, from + PackedInstances.BLOCK);
+            int length = to - from;
+            data.decode(y, from, to, vy, 0);
+            for (int r = 0; r < length; r++) {
+                weights[r] = data.weight(from + r);
+                classCounts[vy[r]] += weights[r];
+            }
+
+            // Missing values are not counted
+            for (int k = 0; k < childIds.length; k++) {
+                data.decode(childIds[k], from, to, vj, -1);
+                int start = offsets[k];
+                for (int r = 0; r < length; r++) {
+                    if (vj[r] >= 0) {
+                        counts[start + vj[r] * classNumValues + vy[r]] += weights[r];
+                    }
+                }
+            }
+        }
+
+        this.classProb = null;
+        this.tables = null;
+    }
+
+    /**
+     * Allocates the contingency tables for every attribute but the class.
+     */
+    private void allocateCounts(int y, int[] varNumValues) {
+        classNumValues = varNumValues[y];
+
+        childIds = new int[varNumValues.length - 1];
+        childNumValues = new int[childIds.length];
+        offsets = new int[childIds.length];
+        long size = 0;
+        for (int i = 0, k = 0; i < varNumValues.length; i++) {
+            if (i == y) {
+                continue;
+            }
+            childIds[k] = i;
+            childNumValues[k] = varNumValues[i];
+            offsets[k] = Math.toIntExact(size);
+            size += (long) childNumValues[k] * classNumValues;
+            k++;
+        }
+
+        classCounts = new double[classNumValues];
+        counts = new double[Math.toIntExact(size)];
+    }
+
+    /**
+     * Adds the contingency tables of the Naive Bayes built on another shard of
+     * the data.
+     *
+     * @param that mSP0DE with the same children, and its counts.
+     */
+    public void aggregate(mSP0DE that) {
+        if (!Arrays.equals(that.childIds, childIds)) {
+            throw new IllegalArgumentException("Can't aggregate the Naive Bayes with a different one");
+        }
+        if (counts == null || that.counts == null || that.counts.length != counts.length) {
+            throw new IllegalStateException("The counts of the Naive Bayes are not built");
+        }
+
+        for (int j = 0; j < classCounts.length; j++) {
+            classCounts[j] += that.classCounts[j];
+        }
+        for (int j = 0; j < counts.length; j++) {
+            counts[j] += that.counts[j];
+        }
+    }
+
+    /**
+     * Converts the contingency tables into the probability tables, with the
+     * Laplace correction.
+     */
+    @Override
+    public void finalizeTables() {
+        if (counts == null) {
+            throw new IllegalStateException("The counts of the Naive Bayes are not built");
+        }
+        double[] classProb = classCounts;
+        double[] tables = counts;
+        classCounts = null;
+        counts = null;
+
+        double numInstances = Utils.sum(classProb);
+        for (int vy = 0; vy < classNumValues; vy++) {
+            classProb[vy] = (classProb[vy] + 1) / (numInstances + classNumValues);
+
+            for (int k = 0; k < childIds.length; k++) {
+                int start = offsets[k] + vy;
+                double sum = childNumValues[k];
+                for (int vj = 0; vj < childNumValues[k]; vj++) {
+                    sum += tables[start + vj * classNumValues];
+                }
+                for (int vj = 0; vj < childNumValues[k]; vj++) {
+                    int cell = start + vj * classNumValues;
+                    tables[cell] = Math.max(MIN_PROB, (tables[cell] + 1) / sum);
+                }
+            }
+        }
+
+        this.classProb = ProbabilityTable.of(classProb);
+        this.tables = ProbabilityTable.of(tables);
+    }
+
+    /**
+     * Calculates the probabilities for each value of the class given an
+     * instance: P(y) * (\prod_{j} P(Xj|y)) for the children that are not
+     * missing, rescaled by 1e75 when the maximum falls below 1e-75.
+     *
+     * @param inst Instance on which to compute the class.
+     * @return Probabilities for each value of the class for the given instance.
+     */
+    @Override
+    public double[] probsForInstance(Instance inst) {
+        double[] res = new double[classNumValues];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = classProb.get(i);
+        }
+
+        for (int k = 0; k < childIds.length; k++) {
+            if (inst.isMissing(childIds[k])) {
+                continue;
+            }
+            KERNELS.mulRow(res, tables, offsets[k] + (int) inst.value(childIds[k]) * classNumValues);
+
+            double max = 0;
+            for (int i = 0; i < res.length; i++) {
+                max = Math.max(max, res[i]);
+            }
+            // Danger of probability underflow
+            if (max > 0 && max < MIN_PROB) {
+                for (int i = 0; i < res.length; i++) {
+                    res[i] *= 1e75;
+                }
+            }
+        }
+
+        Utils.normalize(res);
+        return res;
+    }
+
+    /**
+     * Writes the tables of the Naive Bayes.
+     *
+     * @param out Writer of the model file.
+     * @throws IOException If the mSP0DE cannot be written.
+     */
+    @Override
+    public void writeModel(ModelWriter out) throws IOException {
+        out.writeInt(classNumValues);
+        out.writeInts(childIds);
+        out.writeInts(childNumValues);
+        out.writeInts(offsets);
+        out.writeTable(classProb);
+        out.writeTable(tables);
+    }
+
+    /**
+     * Encodes the conditional tables with less precision. P(y) is small and
+     * is kept with doubles.
+     *
+     * @param precision Storage precision of the tables.
+     */
+    @Override
+    public void freeze(ProbabilityTable.Precision precision) {
+        tables = ProbabilityTable.encode(tables, precision);
+    }
+
+    /**
+     * @return The bytes used by the probability tables of the Naive Bayes.
+     */
+    @Override
+    public long getTableBytes() {
+        return classProb.sizeInBytes() + tables.sizeInBytes();
+    }
+}
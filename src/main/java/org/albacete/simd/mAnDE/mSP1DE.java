@@ -31,24 +31,32 @@
 
 package org.albacete.simd.mAnDE;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.data.PackedInstances;
+import org.albacete.simd.kernels.ClassKernels;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
 import weka.core.Instance;
+import weka.core.Instances;
 import weka.core.Utils;
 
 public class mSP1DE implements mSPnDE, Serializable {
 
     /**
-     * ID of the Super-Parent of the mSP1DE.
+     * Loops over the class values of the rows of the tables.
      */
-    private final int xi;
+    private static final ClassKernels KERNELS = ClassKernels.get();
 
     /**
-     * Link the name of the children of the mSP1DE with their probability table.
+     * ID of the Super-Parent of the mSP1DE.
      */
-    private final HashMap<Integer, double[][][]> children;
+    private final int xi;
 
     /**
      * List of children of the mSP1DE.
@@ -56,9 +64,58 @@ public class mSP1DE implements mSPnDE, Serializable {
     private final HashSet<Integer> listChildren;
 
     /**
-     * Global probability table of the mSP1DE.
+     * IDs of the children, in ascending order, once the tables are built.
+     */
+    private int[] childIds;
+
+    /**
+     * Number of values of each child.
+     */
+    private int[] childNumValues;
+
+    /**
+     * Start of the table of each child in 'tables'.
+     */
+    private int[] offsets;
+
+    /**
+     * Number of values of the class.
+     */
+    private int classNumValues;
+
+    /**
+     * Conditional probability tables P(Xj|y,Xi) of all the children, one
+     * after another. The value of P(xj|y,xi) for the k-th child is at
+     * offsets[k] + (xi * childNumValues[k] + xj) * classNumValues + y, so the
+     * values of the class are contiguous.
+     */
+    private ProbabilityTable tables;
+
+    /**
+     * Binary class kernel: log-odds log P(xj|y=1,Xi) - log P(xj|y=0,Xi) of
+     * each cell of the conditional tables, which replace them when the class
+     * has two values. The k-th child starts at offsets[k] / 2, and the
+     * log-odds are NaN if both probabilities are 0.
+     */
+    private ProbabilityTable logOdds;
+
+    /**
+     * Global probability table P(y,Xi) of the mSP1DE, at
+     * xi * classNumValues + y.
+     */
+    private ProbabilityTable globalProb;
+
+    /**
+     * Contingency table of P(y,Xi), with the layout of globalProb, between
+     * buildCounts and finalizeTables.
      */
-    private double[][] globalProb;
+    private double[] globalCounts;
+
+    /**
+     * Contingency tables of the children, with the layout of tables, between
+     * buildCounts and finalizeTables.
+     */
+    private double[] counts;
 
     /**
      * Constructor. Build to mSP1DE passing it as argument the name of the variable xi that is going to be Super-Parent of the rest of the variables next to the class 'y'.
@@ -68,58 +125,252 @@ public class mSP1DE implements mSPnDE, Serializable {
     public mSP1DE(int xi) {
         this.xi = xi;
         this.listChildren = new HashSet<>();
-        this.children = new HashMap<>();
+    }
+
+    /**
+     * Constructor. Reads an mSP1DE written by writeModel.
+     *
+     * @param in Reader of the model file.
+     * @throws IOException If the mSP1DE is not valid.
+     */
+    mSP1DE(ModelReader in) throws IOException {
+        this.xi = in.readInt();
+        this.classNumValues = in.readInt();
+        this.childIds = in.readInts();
+        this.childNumValues = in.readInts();
+        this.offsets = in.readInts();
+        this.globalProb = in.readTable();
+        this.tables = in.readTable();
+        this.logOdds = (in.getVersion() >= 4) ? in.readTable() : null;
+        this.listChildren = new HashSet<>();
+        for (int child : childIds) {
+            listChildren.add(child);
+        }
     }
 
     /**
      * Create the probability tables for the mSP1DE, both the global P(y,Xi) and
      * the conditional for each variable P(Xj|y,Xi).
+     *
+     * @param data Discretised training instances.
+     */
+    @Override
+    public void buildTables(Instances data) {
+        buildCounts(new PackedInstances(data));
+        finalizeTables();
+    }
+
+    /**
+     * Creates the contingency tables of the mSP1DE, which are converted into
+     * probability tables by finalizeTables. Before that, the counts of other
+     * shards of the data can be added with aggregate.
+     *
+     * @param data Discretised training instances.
      */
     @Override
-    public void buildTables() {
-        this.globalProb = new double[mAnDE.classNumValues] //y
-                [mAnDE.varNumValues[xi]]; //Xi
+    public void buildCounts(PackedInstances data) {
+        int y = data.classIndex();
+        int numInstances = data.numInstances();
+        allocateCounts(data);
 
-        listChildren.forEach((child) -> {
-            this.children.put(child, new double[mAnDE.classNumValues] //y
-                    [mAnDE.varNumValues[xi]] //Xi
-                    [mAnDE.varNumValues[child]]); //Xj
-        });
+        // The small tables are filled from the bitmap index, and the rest
+        // with a scan of the rows
+        int[] parent = {xi};
+        int[] scanned = new int[childIds.length];
+        int numScanned = 0;
+        for (int k = 0; k < childIds.length; k++) {
+            if (BitmapIndex.isFasterThanScan((long) globalCounts.length * childNumValues[k])) {
+                data.index().addCounts(parent, childIds[k], counts, offsets[k]);
+            } else {
+                scanned[numScanned++] = k;
+            }
+        }
+        // P(y,Xi) is counted in the scan if there is one anyway
+        boolean scan = numScanned > 0 || !BitmapIndex.isFasterThanScan(globalCounts.length);
+        if (!scan) {
+            data.index().addCounts(parent, -1, globalCounts, 0);
+        }
 
-        // Creation of the contigency tables
-        for (int i = 0; i < mAnDE.numInstances; i++) {
-            Instance inst = mAnDE.data.get(i);
+        // Creation of the contigency tables, block by block and a column at
+        // a time (see PackedInstances)
+        int[] vy = new int[PackedInstances.BLOCK];
+        int[] vi = new int[PackedInstances.BLOCK];
+        int[] vj = new int[PackedInstances.BLOCK];
+        for (int from = 0; scan && from < numInstances; from += PackedInstances.BLOCK) {
+            int to = Math.min(numInstances, from + PackedInstances.BLOCK);
+            int length = to - from;
+            data.decode(y, from, to, vy, 0);
+            data.decode(xi, from, to, vi, 0);
 
             // Creation of the probability table P(y,Xi)
-            globalProb[(int) inst.value(mAnDE.y)][(int) inst.value(xi)] += 1;
+            for (int r = 0; r < length; r++) {
+                globalCounts[vi[r] * classNumValues + vy[r]] += 1;
+            }
 
-            // Creation of the probability table P(y,Xi)
-            children.forEach((Integer xj, double[][][] tablaXj) -> {
-                tablaXj[(int) inst.value(mAnDE.y)][(int) inst.value(xi)][(int) inst.value(xj)] += 1;
-            });
+            // Creation of the probability tables P(Xj|y,Xi)
+            for (int s = 0; s < numScanned; s++) {
+                int k = scanned[s];
+                data.decode(childIds[k], from, to, vj, 0);
+                int start = offsets[k];
+                int numValues = childNumValues[k];
+                for (int r = 0; r < length; r++) {
+                    counts[start + (vi[r] * numValues + vj[r]) * classNumValues + vy[r]] += 1;
+                }
+            }
         }
 
-        // Conversion to Joint Probability Distribution
-        for (double[] globalProb_y : globalProb) {
-            for (int j = 0; j < globalProb_y.length; j++) {
-                globalProb_y[j] /= mAnDE.numInstances;
+        this.globalProb = null;
+        this.tables = null;
+        this.logOdds = null;
+    }
+
+    /**
+     * Version of buildCounts that copies the contingency tables of the
+     * children from the tables of the pairs (Xi, Xj) counted while the forest
+     * was growing. P(y,Xi) is the marginal of the table of the first child.
+     *
+     * @param data Discretised training instances.
+     * @param pairs Tables of the pairs of attributes.
+     */
+    void buildCounts(PackedInstances data, PairCounts pairs) {
+        if (listChildren.isEmpty()) {
+            buildCounts(data);
+            return;
+        }
+        allocateCounts(data);
+        int xiNumValues = globalCounts.length / classNumValues;
+
+        for (int k = 0; k < childIds.length; k++) {
+            double[] pair = pairs.get(xi, childIds[k]);
+            if (xi < childIds[k]) {
+                System.arraycopy(pair, 0, counts, offsets[k], pair.length);
+                continue;
+            }
+            // The pair table is indexed by (xj, xi)
+            for (int vi = 0; vi < xiNumValues; vi++) {
+                for (int vj = 0; vj < childNumValues[k]; vj++) {
+                    System.arraycopy(pair, (vj * xiNumValues + vi) * classNumValues, counts,
+                            offsets[k] + (vi * childNumValues[k] + vj) * classNumValues, classNumValues);
+                }
+            }
+        }
+
+        for (int vi = 0; vi < xiNumValues; vi++) {
+            for (int vj = 0; vj < childNumValues[0]; vj++) {
+                int start = offsets[0] + (vi * childNumValues[0] + vj) * classNumValues;
+                for (int vy = 0; vy < classNumValues; vy++) {
+                    globalCounts[vi * classNumValues + vy] += counts[start + vy];
+                }
             }
         }
 
+        this.globalProb = null;
+        this.tables = null;
+        this.logOdds = null;
+    }
+
+    /**
+     * Sorts the children, and allocates the contingency tables for the
+     * values of the attributes in data.
+     */
+    private void allocateCounts(PackedInstances data) {
+        classNumValues = data.classNumValues();
+        int xiNumValues = data.numValues(xi);
+
+        childIds = listChildren.stream().mapToInt(Integer::intValue).sorted().toArray();
+        childNumValues = new int[childIds.length];
+        offsets = new int[childIds.length];
+        long size = 0;
+        for (int k = 0; k < childIds.length; k++) {
+            childNumValues[k] = data.numValues(childIds[k]);
+            offsets[k] = Math.toIntExact(size);
+            size += (long) xiNumValues * childNumValues[k] * classNumValues;
+        }
+
+        globalCounts = new double[xiNumValues * classNumValues];
+        counts = new double[Math.toIntExact(size)];
+    }
+
+    /**
+     * Adds the contingency tables of the same mSP1DE built on another shard of
+     * the data.
+     *
+     * @param other mSP1DE with the same parent and children, and its counts.
+     */
+    @Override
+    public void aggregate(mSPnDE other) {
+        if (!(other instanceof mSP1DE) || ((mSP1DE) other).xi != xi
+                || !Arrays.equals(((mSP1DE) other).childIds, childIds)) {
+            throw new IllegalArgumentException("Can't aggregate the mSP1DE of " + xi
+                    + " with a different mSPnDE");
+        }
+        mSP1DE that = (mSP1DE) other;
+        if (counts == null || that.counts == null || that.counts.length != counts.length) {
+            throw new IllegalStateException("The counts of the mSP1DE of " + xi + " are not built");
+        }
+
+        for (int j = 0; j < globalCounts.length; j++) {
+            globalCounts[j] += that.globalCounts[j];
+        }
+        for (int j = 0; j < counts.length; j++) {
+            counts[j] += that.counts[j];
+        }
+    }
+
+    /**
+     * Converts the contingency tables into the probability tables.
+     */
+    @Override
+    public void finalizeTables() {
+        if (counts == null) {
+            throw new IllegalStateException("The counts of the mSP1DE of " + xi + " are not built");
+        }
+        double[] globalProb = globalCounts;
+        double[] tables = counts;
+        globalCounts = null;
+        counts = null;
+
+        int xiNumValues = globalProb.length / classNumValues;
+        // Every instance is counted once in P(y,Xi)
+        double numInstances = Utils.sum(globalProb);
+
+        // Conversion to Joint Probability Distribution
+        for (int j = 0; j < globalProb.length; j++) {
+            globalProb[j] /= numInstances;
+        }
+
         // Conversion to Conditional Probability Distribution
-        children.forEach((Integer xj, double[][][] tableXj) -> {
-            double sum;
-            for (double[][] tableXj_y : tableXj) {
-                for (double[] tableXj_y_xi : tableXj_y) {
-                    sum = Utils.sum(tableXj_y_xi);
+        for (int k = 0; k < childIds.length; k++) {
+            for (int vi = 0; vi < xiNumValues; vi++) {
+                int start = offsets[k] + vi * childNumValues[k] * classNumValues;
+                for (int vy = 0; vy < classNumValues; vy++) {
+                    double sum = 0;
+                    for (int vj = 0; vj < childNumValues[k]; vj++) {
+                        sum += tables[start + vj * classNumValues + vy];
+                    }
                     if (sum != 0) {
-                        for (int k = 0; k < tableXj_y_xi.length; k++) {
-                            tableXj_y_xi[k] /= sum;
+                        for (int vj = 0; vj < childNumValues[k]; vj++) {
+                            tables[start + vj * classNumValues + vy] /= sum;
                         }
                     }
                 }
             }
-        });
+        }
+
+        this.globalProb = ProbabilityTable.of(globalProb);
+        this.tables = ProbabilityTable.of(tables);
+        this.logOdds = null;
+
+        // Binary class kernel, which reads one value per child
+        if (classNumValues == 2) {
+            double[] logOdds = new double[tables.length / 2];
+            for (int c = 0; c < logOdds.length; c++) {
+                logOdds[c] = Math.log(tables[2 * c + 1]) - Math.log(tables[2 * c]);
+            }
+            this.logOdds = ProbabilityTable.of(logOdds);
+            this.tables = null;
+            this.globalProb = ProbabilityTable.encode(this.globalProb, ProbabilityTable.Precision.LOG64);
+        }
     }
 
     /**
@@ -130,22 +381,29 @@ public class mSP1DE implements mSPnDE, Serializable {
      */
     @Override
     public double[] probsForInstance(Instance inst) {
-        double[] res = new double[mAnDE.classNumValues];
-        double xi = inst.value(this.xi);
+        if (logOdds != null) {
+            return binaryProbsForInstance(inst);
+        }
+        if (tables.getPrecision().log) {
+            return logProbsForInstance(inst);
+        }
+
+        double[] res = new double[classNumValues];
+        int vi = (int) inst.value(this.xi);
 
         // We initialise the probability of each class value to P(y,xi).
+        int global = vi * classNumValues;
         for (int i = 0; i < res.length; i++) {
-            res[i] = globalProb[i][(int) xi];
+            res[i] = globalProb.get(global + i);
         }
 
         /* For each child Xj, we multiply P(Xj|y,Xi) by the result 
          * accumulated for each of the values of the class
         */
-        children.forEach((Integer xj, double[][][] tablaXj) -> {
-            for (int i = 0; i < res.length; i++) {
-                res[i] *= tablaXj[i][(int) xi][(int) inst.value(xj)];
-            }
-        });
+        for (int k = 0; k < childIds.length; k++) {
+            int start = offsets[k] + (vi * childNumValues[k] + (int) inst.value(childIds[k])) * classNumValues;
+            KERNELS.mulRow(res, tables, start);
+        }
 
         // We normalise the values by dividing them by the sum of all the values.
         double sum = Utils.sum(res);
@@ -158,6 +416,107 @@ public class mSP1DE implements mSPnDE, Serializable {
         return res;
     }
 
+    /**
+     * Version of probsForInstance for the tables in the log domain: the
+     * logarithms log P(y,Xi) + \sum_{j} log P(Xj|y,Xi) are added and
+     * normalised with a log-sum-exp, so the result does not underflow when
+     * there are many children.
+     *
+     * @param inst Instance on which to compute the class.
+     * @return Probabilities for each value of the class for the given instance.
+     */
+    private double[] logProbsForInstance(Instance inst) {
+        double[] res = new double[classNumValues];
+        int vi = (int) inst.value(this.xi);
+
+        int global = vi * classNumValues;
+        for (int i = 0; i < res.length; i++) {
+            res[i] = globalProb.getLog(global + i);
+        }
+
+        for (int k = 0; k < childIds.length; k++) {
+            int start = offsets[k] + (vi * childNumValues[k] + (int) inst.value(childIds[k])) * classNumValues;
+            KERNELS.addLogRow(res, tables, start);
+        }
+
+        return mSPnDE.normalizeLog(res);
+    }
+
+    /**
+     * Version of probsForInstance for a binary class: the log-odds of the
+     * class value 1 are log P(y=1,Xi) - log P(y=0,Xi) plus the log-odds of each
+     * child, so a single value is read per child.
+     *
+     * @param inst Instance on which to compute the class.
+     * @return Probabilities for each value of the class for the given instance.
+     */
+    private double[] binaryProbsForInstance(Instance inst) {
+        int vi = (int) inst.value(this.xi);
+        double sum = globalProb.getLog(2 * vi + 1) - globalProb.getLog(2 * vi);
+
+        int[] index = new int[childIds.length];
+        for (int k = 0; k < childIds.length; k++) {
+            index[k] = (offsets[k] >> 1) + vi * childNumValues[k] + (int) inst.value(childIds[k]);
+        }
+
+        return mSPnDE.probsFromLogOdds(sum + KERNELS.sum(logOdds, index, index.length));
+    }
+
+    /**
+     * Writes the structure and the tables of the mSP1DE.
+     *
+     * @param out Writer of the model file.
+     * @throws IOException If the mSP1DE cannot be written.
+     */
+    @Override
+    public void writeModel(ModelWriter out) throws IOException {
+        out.writeInt(xi);
+        out.writeInt(classNumValues);
+        out.writeInts(childIds);
+        out.writeInts(childNumValues);
+        out.writeInts(offsets);
+        out.writeTable(globalProb);
+        out.writeTable(tables);
+        out.writeTable(logOdds);
+    }
+
+    /**
+     * Encodes the conditional tables of the children with less precision. The
+     * global table is small and is kept with doubles, as logarithms if the
+     * precision is in the log domain. With a binary class the log-odds are
+     * encoded instead (see mSPnDE.logOddsPrecision).
+     *
+     * @param precision Storage precision of the tables.
+     */
+    @Override
+    public void freeze(ProbabilityTable.Precision precision) {
+        if (logOdds != null) {
+            logOdds = ProbabilityTable.encode(logOdds, mSPnDE.logOddsPrecision(precision));
+            return;
+        }
+        tables = ProbabilityTable.encode(tables, precision);
+        globalProb = ProbabilityTable.encode(globalProb, precision.log
+                ? ProbabilityTable.Precision.LOG64 : ProbabilityTable.Precision.DOUBLE);
+    }
+
+    /**
+     * @return The bytes used by the probability tables of the mSP1DE.
+     */
+    @Override
+    public long getTableBytes() {
+        return globalProb.sizeInBytes() + ((logOdds != null) ? logOdds : tables).sizeInBytes();
+    }
+
+    /**
+     * @param inst Discretised instance.
+     * @param activeValues Bitmap of the active values of each attribute.
+     * @return True if the value of xi in inst is active.
+     */
+    @Override
+    public boolean isActive(Instance inst, long[][] activeValues) {
+        return mSPnDE.isActive(activeValues[xi], inst.value(xi));
+    }
+
     /**
      * Add a variable as a child in the mSP1DE.
      *
@@ -170,6 +529,35 @@ public class mSP1DE implements mSPnDE, Serializable {
         }
     }
 
+    /**
+     * Returns the ID of the Super-Parent of the mSP1DE.
+     *
+     * @return The ID of the Super-Parent.
+     */
+    public int getXi() {
+        return xi;
+    }
+
+    /**
+     * Returns the IDs of the children of the mSP1DE.
+     *
+     * @return The IDs of the children.
+     */
+    @Override
+    public int[] getChildren() {
+        return listChildren.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return A new mSP1DE with the same parent and children, without tables.
+     */
+    @Override
+    public mSPnDE copyStructure() {
+        mSP1DE copy = new mSP1DE(xi);
+        copy.listChildren.addAll(listChildren);
+        return copy;
+    }
+
     /**
      * Returns the number of children of mSP1DE.
      * 
@@ -31,16 +31,28 @@
 
 package org.albacete.simd.mAnDE;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.data.PackedInstances;
+import org.albacete.simd.kernels.ClassKernels;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
 import weka.core.Instance;
+import weka.core.Instances;
 import weka.core.Utils;
 
 public class mSP2DE implements mSPnDE, Serializable {
 
+    /**
+     * Loops over the class values of the rows of the tables.
+     */
+    private static final ClassKernels KERNELS = ClassKernels.get();
+
     /**
      * ID of the first Super-Parent of the mSP2DE.
      */
@@ -52,19 +64,68 @@ public class mSP2DE implements mSPnDE, Serializable {
     private final int xi2;
 
     /**
-     * Link the name of the children of the mSP2DE with their probability table.
+     * List of children of the mSP2DE.
      */
-    private final HashMap<Integer, double[][][][]> children;
+    private final HashSet<Integer> listChildren;
 
     /**
-     * List of children of the mSP2DE.
+     * IDs of the children, in ascending order, once the tables are built.
      */
-    private final HashSet<Integer> listChildren;
+    private int[] childIds;
+
+    /**
+     * Number of values of each child.
+     */
+    private int[] childNumValues;
+
+    /**
+     * Start of the table of each child in 'tables'.
+     */
+    private int[] offsets;
+
+    /**
+     * Number of values of the second Super-Parent.
+     */
+    private int xi2NumValues;
+
+    /**
+     * Number of values of the class.
+     */
+    private int classNumValues;
+
+    /**
+     * Conditional probability tables P(Xj|y,Xi1,Xi2) of all the children,
+     * one after another. The value of P(xj|y,xi1,xi2) for the k-th child is
+     * at offsets[k] + ((xi1 * xi2NumValues + xi2) * childNumValues[k] + xj)
+     * * classNumValues + y.
+     */
+    private ProbabilityTable tables;
+
+    /**
+     * Binary class kernel: log-odds log P(xj|y=1,Xi1,Xi2) - log P(xj|y=0,Xi1,Xi2) of
+     * each cell of the conditional tables, which replace them when the class
+     * has two values. The k-th child starts at offsets[k] / 2, and the
+     * log-odds are NaN if both probabilities are 0.
+     */
+    private ProbabilityTable logOdds;
+
+    /**
+     * Overall probability table P(y,Xi1,Xi2) of the mSP2DE, at
+     * (xi1 * xi2NumValues + xi2) * classNumValues + y.
+     */
+    private ProbabilityTable globalProbs;
 
     /**
-     * Overall probability table of the mSP2DE.
+     * Contingency table of P(y,Xi1,Xi2), with the layout of globalProbs,
+     * between buildCounts and finalizeTables.
      */
-    private double[][][] globalProbs;
+    private double[] globalCounts;
+
+    /**
+     * Contingency tables of the children, with the layout of tables, between
+     * buildCounts and finalizeTables.
+     */
+    private double[] counts;
 
     /**
      * Constructor. Creates an mSP2DE passing it as an argument the name of the two variables xi1 and xi2 that are going to be Super-Parents of the rest of the variables together with the class 'y'.
@@ -76,63 +137,205 @@ public class mSP2DE implements mSPnDE, Serializable {
         this.xi1 = xi1;
         this.xi2 = xi2;
         this.listChildren = new HashSet<>();
-        this.children = new HashMap<>();
+    }
+
+    /**
+     * Constructor. Reads an mSP2DE written by writeModel.
+     *
+     * @param in Reader of the model file.
+     * @throws IOException If the mSP2DE is not valid.
+     */
+    mSP2DE(ModelReader in) throws IOException {
+        this.xi1 = in.readInt();
+        this.xi2 = in.readInt();
+        this.xi2NumValues = in.readInt();
+        this.classNumValues = in.readInt();
+        this.childIds = in.readInts();
+        this.childNumValues = in.readInts();
+        this.offsets = in.readInts();
+        this.globalProbs = in.readTable();
+        this.tables = in.readTable();
+        this.logOdds = (in.getVersion() >= 4) ? in.readTable() : null;
+        this.listChildren = new HashSet<>();
+        for (int child : childIds) {
+            listChildren.add(child);
+        }
     }
 
     /**
      * Create the probability tables for the mSP2DE, both the global P(y,Xi) and the conditional for each variable P(Xj|y,Xi).
+     *
+     * @param data Discretised training instances.
+     */
+    @Override
+    public void buildTables(Instances data) {
+        buildCounts(new PackedInstances(data));
+        finalizeTables();
+    }
+
+    /**
+     * Creates the contingency tables of the mSP2DE, which are converted into
+     * probability tables by finalizeTables. Before that, the counts of other
+     * shards of the data can be added with aggregate.
+     *
+     * @param data Discretised training instances.
      */
     @Override
-    public void buildTables() {
-        this.globalProbs = new double[mAnDE.classNumValues] //y
-                [mAnDE.varNumValues[xi1]] //Xi1
-                [mAnDE.varNumValues[xi2]];    //Xi2
-
-        listChildren.forEach((child) -> {
-            this.children.put(child, new double[mAnDE.classNumValues] //y
-                    [mAnDE.varNumValues[xi1]] //Xi1
-                    [mAnDE.varNumValues[xi2]] //Xi2
-                    [mAnDE.varNumValues[child]]); //Xj
-        });
-
-        // Creation of contingency tables
-        for (int i = 0; i < mAnDE.numInstances; i++) {
-            Instance inst = mAnDE.data.get(i);
+    public void buildCounts(PackedInstances data) {
+        int y = data.classIndex();
+        int numInstances = data.numInstances();
+        classNumValues = data.classNumValues();
+        xi2NumValues = data.numValues(xi2);
+        int parentsNumValues = data.numValues(xi1) * xi2NumValues;
+
+        childIds = listChildren.stream().mapToInt(Integer::intValue).sorted().toArray();
+        childNumValues = new int[childIds.length];
+        offsets = new int[childIds.length];
+        long size = 0;
+        for (int k = 0; k < childIds.length; k++) {
+            childNumValues[k] = data.numValues(childIds[k]);
+            offsets[k] = Math.toIntExact(size);
+            size += (long) parentsNumValues * childNumValues[k] * classNumValues;
+        }
+
+        globalCounts = new double[parentsNumValues * classNumValues];
+        counts = new double[Math.toIntExact(size)];
+
+        // The small tables are filled from the bitmap index, and the rest
+        // with a scan of the rows
+        int[] parents = {xi1, xi2};
+        int[] scanned = new int[childIds.length];
+        int numScanned = 0;
+        for (int k = 0; k < childIds.length; k++) {
+            if (BitmapIndex.isFasterThanScan((long) globalCounts.length * childNumValues[k])) {
+                data.index().addCounts(parents, childIds[k], counts, offsets[k]);
+            } else {
+                scanned[numScanned++] = k;
+            }
+        }
+        // P(y,Xi1,Xi2) is counted in the scan if there is one anyway
+        boolean scan = numScanned > 0 || !BitmapIndex.isFasterThanScan(globalCounts.length);
+        if (!scan) {
+            data.index().addCounts(parents, -1, globalCounts, 0);
+        }
+
+        // Creation of contingency tables, block by block and a column at a
+        // time (see PackedInstances)
+        int[] vy = new int[PackedInstances.BLOCK];
+        int[] vp = new int[PackedInstances.BLOCK];
+        int[] vj = new int[PackedInstances.BLOCK];
+        for (int from = 0; scan && from < numInstances; from += PackedInstances.BLOCK) {
+            int to = Math.min(numInstances, from + PackedInstances.BLOCK);
+            int length = to - from;
+            data.decode(y, from, to, vy, 0);
+            data.decode(xi1, from, to, vp, 0);
+            data.decode(xi2, from, to, vj, 0);
 
             // Creation of the probability table P(y,Xi1,Xi2)
-            globalProbs[(int) inst.value(mAnDE.y)][(int) inst.value(xi1)][(int) inst.value(xi2)] += 1;
+            for (int r = 0; r < length; r++) {
+                vp[r] = vp[r] * xi2NumValues + vj[r];
+                globalCounts[vp[r] * classNumValues + vy[r]] += 1;
+            }
 
             // Creation of the probability table P(Xj|y,Xi1,Xi2)
-            children.forEach((Integer xj, double[][][][] tableXj) -> {
-                tableXj[(int) inst.value(mAnDE.y)][(int) inst.value(xi1)][(int) inst.value(xi2)][(int) inst.value(xj)] += 1;
-            });
+            for (int s = 0; s < numScanned; s++) {
+                int k = scanned[s];
+                data.decode(childIds[k], from, to, vj, 0);
+                int start = offsets[k];
+                int numValues = childNumValues[k];
+                for (int r = 0; r < length; r++) {
+                    counts[start + (vp[r] * numValues + vj[r]) * classNumValues + vy[r]] += 1;
+                }
+            }
+        }
+
+        this.globalProbs = null;
+        this.tables = null;
+        this.logOdds = null;
+    }
+
+    /**
+     * Adds the contingency tables of the same mSP2DE built on another shard of
+     * the data.
+     *
+     * @param other mSP2DE with the same parents and children, and its counts.
+     */
+    @Override
+    public void aggregate(mSPnDE other) {
+        if (!(other instanceof mSP2DE) || ((mSP2DE) other).xi1 != xi1 || ((mSP2DE) other).xi2 != xi2
+                || !Arrays.equals(((mSP2DE) other).childIds, childIds)) {
+            throw new IllegalArgumentException("Can't aggregate the mSP2DE of " + xi1 + " and " + xi2
+                    + " with a different mSPnDE");
+        }
+        mSP2DE that = (mSP2DE) other;
+        if (counts == null || that.counts == null || that.counts.length != counts.length) {
+            throw new IllegalStateException("The counts of the mSP2DE of " + xi1 + " and " + xi2
+                    + " are not built");
+        }
+
+        for (int j = 0; j < globalCounts.length; j++) {
+            globalCounts[j] += that.globalCounts[j];
+        }
+        for (int j = 0; j < counts.length; j++) {
+            counts[j] += that.counts[j];
+        }
+    }
+
+    /**
+     * Converts the contingency tables into the probability tables.
+     */
+    @Override
+    public void finalizeTables() {
+        if (counts == null) {
+            throw new IllegalStateException("The counts of the mSP2DE of " + xi1 + " and " + xi2
+                    + " are not built");
         }
+        double[] globalProbs = globalCounts;
+        double[] tables = counts;
+        globalCounts = null;
+        counts = null;
+
+        int parentsNumValues = globalProbs.length / classNumValues;
+        // Every instance is counted once in P(y,Xi1,Xi2)
+        double numInstances = Utils.sum(globalProbs);
 
         // Conversion to Joint Probability Distribution
-        for (double[][] globalProbs_y : globalProbs) {
-            for (double[] globalProbs_y_x1 : globalProbs_y) {
-                for (int j = 0; j < globalProbs_y_x1.length; j++) {
-                    globalProbs_y_x1[j] /= mAnDE.numInstances;
-                }
-            }
+        for (int j = 0; j < globalProbs.length; j++) {
+            globalProbs[j] /= numInstances;
         }
 
         // Conversion to Conditional Probability Distribution
-        children.forEach((Integer xj, double[][][][] tableXj) -> {
-            double sum;
-            for (double[][][] tableXj_y : tableXj) {
-                for (double[][] tableXj_y_xi1 : tableXj_y) {
-                    for (double[] tableXj_y_xi1_xi2 : tableXj_y_xi1) {
-                        sum = Utils.sum(tableXj_y_xi1_xi2);
-                        if (sum != 0) {
-                            for (int k = 0; k < tableXj_y_xi1_xi2.length; k++) {
-                                tableXj_y_xi1_xi2[k] /= sum;
-                            }
+        for (int k = 0; k < childIds.length; k++) {
+            for (int vp = 0; vp < parentsNumValues; vp++) {
+                int start = offsets[k] + vp * childNumValues[k] * classNumValues;
+                for (int vy = 0; vy < classNumValues; vy++) {
+                    double sum = 0;
+                    for (int vj = 0; vj < childNumValues[k]; vj++) {
+                        sum += tables[start + vj * classNumValues + vy];
+                    }
+                    if (sum != 0) {
+                        for (int vj = 0; vj < childNumValues[k]; vj++) {
+                            tables[start + vj * classNumValues + vy] /= sum;
                         }
                     }
                 }
             }
-        });
+        }
+
+        this.globalProbs = ProbabilityTable.of(globalProbs);
+        this.tables = ProbabilityTable.of(tables);
+        this.logOdds = null;
+
+        // Binary class kernel, which reads one value per child
+        if (classNumValues == 2) {
+            double[] logOdds = new double[tables.length / 2];
+            for (int c = 0; c < logOdds.length; c++) {
+                logOdds[c] = Math.log(tables[2 * c + 1]) - Math.log(tables[2 * c]);
+            }
+            this.logOdds = ProbabilityTable.of(logOdds);
+            this.tables = null;
+            this.globalProbs = ProbabilityTable.encode(this.globalProbs, ProbabilityTable.Precision.LOG64);
+        }
     }
 
     /**
@@ -143,23 +346,29 @@ public class mSP2DE implements mSPnDE, Serializable {
      */
     @Override
     public double[] probsForInstance(Instance inst) {
-        double[] res = new double[mAnDE.classNumValues];
-        double xi1 = inst.value(this.xi1);
-        double xi2 = inst.value(this.xi2);
+        if (logOdds != null) {
+            return binaryProbsForInstance(inst);
+        }
+        if (tables.getPrecision().log) {
+            return logProbsForInstance(inst);
+        }
+
+        double[] res = new double[classNumValues];
+        int vp = (int) inst.value(this.xi1) * xi2NumValues + (int) inst.value(this.xi2);
 
         // We initialise the probability of each class value to P(y,xi).
+        int global = vp * classNumValues;
         for (int i = 0; i < res.length; i++) {
-            res[i] = globalProbs[i][(int) xi1][(int) xi2];
+            res[i] = globalProbs.get(global + i);
         }
 
         /* For each child Xj, we multiply P(Xj|y,Xi1,Xi2) by the result 
          * accumulated for each of the values of the class
          */
-        children.forEach((Integer xj, double[][][][] tableXj) -> {
-            for (int i = 0; i < res.length; i++) {
-                res[i] *= tableXj[i][(int) xi1][(int) xi2][(int) inst.value(xj)];
-            }
-        });
+        for (int k = 0; k < childIds.length; k++) {
+            int start = offsets[k] + (vp * childNumValues[k] + (int) inst.value(childIds[k])) * classNumValues;
+            KERNELS.mulRow(res, tables, start);
+        }
 
         // We normalise the values by dividing them by the sum of all the values.
         double sum = Utils.sum(res);
@@ -172,6 +381,110 @@ public class mSP2DE implements mSPnDE, Serializable {
         return res;
     }
 
+    /**
+     * Version of probsForInstance for the tables in the log domain: the
+     * logarithms log P(y,Xi1,Xi2) + \sum_{j} log P(Xj|y,Xi1,Xi2) are added and
+     * normalised with a log-sum-exp, so the result does not underflow when
+     * there are many children.
+     *
+     * @param inst Instance on which to compute the class.
+     * @return Probabilities for each value of the class for the given instance.
+     */
+    private double[] logProbsForInstance(Instance inst) {
+        double[] res = new double[classNumValues];
+        int vp = (int) inst.value(this.xi1) * xi2NumValues + (int) inst.value(this.xi2);
+
+        int global = vp * classNumValues;
+        for (int i = 0; i < res.length; i++) {
+            res[i] = globalProbs.getLog(global + i);
+        }
+
+        for (int k = 0; k < childIds.length; k++) {
+            int start = offsets[k] + (vp * childNumValues[k] + (int) inst.value(childIds[k])) * classNumValues;
+            KERNELS.addLogRow(res, tables, start);
+        }
+
+        return mSPnDE.normalizeLog(res);
+    }
+
+    /**
+     * Version of probsForInstance for a binary class: the log-odds of the
+     * class value 1 are log P(y=1,Xi1,Xi2) - log P(y=0,Xi1,Xi2) plus the log-odds of each
+     * child, so a single value is read per child.
+     *
+     * @param inst Instance on which to compute the class.
+     * @return Probabilities for each value of the class for the given instance.
+     */
+    private double[] binaryProbsForInstance(Instance inst) {
+        int vp = (int) inst.value(this.xi1) * xi2NumValues + (int) inst.value(this.xi2);
+        double sum = globalProbs.getLog(2 * vp + 1) - globalProbs.getLog(2 * vp);
+
+        int[] index = new int[childIds.length];
+        for (int k = 0; k < childIds.length; k++) {
+            index[k] = (offsets[k] >> 1) + vp * childNumValues[k] + (int) inst.value(childIds[k]);
+        }
+
+        return mSPnDE.probsFromLogOdds(sum + KERNELS.sum(logOdds, index, index.length));
+    }
+
+    /**
+     * Writes the structure and the tables of the mSP2DE.
+     *
+     * @param out Writer of the model file.
+     * @throws IOException If the mSP2DE cannot be written.
+     */
+    @Override
+    public void writeModel(ModelWriter out) throws IOException {
+        out.writeInt(xi1);
+        out.writeInt(xi2);
+        out.writeInt(xi2NumValues);
+        out.writeInt(classNumValues);
+        out.writeInts(childIds);
+        out.writeInts(childNumValues);
+        out.writeInts(offsets);
+        out.writeTable(globalProbs);
+        out.writeTable(tables);
+        out.writeTable(logOdds);
+    }
+
+    /**
+     * Encodes the conditional tables of the children with less precision. The
+     * global table is small and is kept with doubles, as logarithms if the
+     * precision is in the log domain. With a binary class the log-odds are
+     * encoded instead (see mSPnDE.logOddsPrecision).
+     *
+     * @param precision Storage precision of the tables.
+     */
+    @Override
+    public void freeze(ProbabilityTable.Precision precision) {
+        if (logOdds != null) {
+            logOdds = ProbabilityTable.encode(logOdds, mSPnDE.logOddsPrecision(precision));
+            return;
+        }
+        tables = ProbabilityTable.encode(tables, precision);
+        globalProbs = ProbabilityTable.encode(globalProbs, precision.log
+                ? ProbabilityTable.Precision.LOG64 : ProbabilityTable.Precision.DOUBLE);
+    }
+
+    /**
+     * @return The bytes used by the probability tables of the mSP2DE.
+     */
+    @Override
+    public long getTableBytes() {
+        return globalProbs.sizeInBytes() + ((logOdds != null) ? logOdds : tables).sizeInBytes();
+    }
+
+    /**
+     * @param inst Discretised instance.
+     * @param activeValues Bitmap of the active values of each attribute.
+     * @return True if the values of xi1 and xi2 in inst are both active.
+     */
+    @Override
+    public boolean isActive(Instance inst, long[][] activeValues) {
+        return mSPnDE.isActive(activeValues[xi1], inst.value(xi1))
+                && mSPnDE.isActive(activeValues[xi2], inst.value(xi2));
+    }
+
     /**
      * Add a variable as a child in the mSP2DE.
      *
@@ -185,6 +498,27 @@ public class mSP2DE implements mSPnDE, Serializable {
     }
 
 
+    /**
+     * Returns the IDs of the children of the mSP2DE.
+     *
+     * @return The IDs of the children.
+     */
+    @Override
+    public int[] getChildren() {
+        return listChildren.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return A new mSP2DE with the same parents and children, without
+     * tables.
+     */
+    @Override
+    public mSPnDE copyStructure() {
+        mSP2DE copy = new mSP2DE(xi1, xi2);
+        copy.listChildren.addAll(listChildren);
+        return copy;
+    }
+
     /**
      * Returns the number of children of the mSP2DE.
      * @return The number of children of the mSP2DE.
@@ -31,19 +31,104 @@
 
 package org.albacete.simd.mAnDE;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import org.albacete.simd.model.ProbabilityTable;
 import weka.core.Instance;
 
-public interface mSPnDE {
+public interface mSPnDE extends CountTables {
     
-    void buildTables();
-    
-    double[] probsForInstance(Instance inst);
+    void aggregate(mSPnDE other);
     
     void moreChildren(int child);
     
     int getNChildren();
     
+    int[] getChildren();
+    
+    mSPnDE copyStructure();
+    
+    /**
+     * @param inst Discretised instance.
+     * @param activeValues Bitmap of the active values of each attribute (see
+     * mAnDE.setFrequencyLimit).
+     * @return True if the super-parents take active values in inst.
+     */
+    boolean isActive(Instance inst, long[][] activeValues);
+    
+    /**
+     * Tests the bit of a value in the bitmap of the active values of an
+     * attribute. A missing value is never active.
+     *
+     * @param bitmap Active values of the attribute, 64 per long.
+     * @param value Value of the attribute in the instance.
+     * @return True if the value is active.
+     */
+    static boolean isActive(long[] bitmap, double value) {
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        int v = (int) value;
+        return (bitmap[v >>> 6] & (1L << v)) != 0;
+    }
+    
+    /**
+     * Probabilities of a binary class given the logarithm of the odds
+     * log P(y=1|x) - log P(y=0|x) (a logistic function). NaN means that both
+     * probabilities are 0, and then the result is 0.
+     *
+     * @param logOdds Log-odds of the class value 1.
+     * @return The probabilities of the class values 0 and 1.
+     */
+    static double[] probsFromLogOdds(double logOdds) {
+        if (Double.isNaN(logOdds)) {
+            return new double[2];
+        }
+        return new double[]{1 / (1 + Math.exp(logOdds)), 1 / (1 + Math.exp(-logOdds))};
+    }
+    
+    /**
+     * Precision of the log-odds tables of the binary class kernel. The log-odds
+     * are not probabilities, so the quantized precisions keep them as floats,
+     * and LOG64 as doubles.
+     *
+     * @param precision Storage precision asked.
+     * @return The precision of the log-odds.
+     */
+    static ProbabilityTable.Precision logOddsPrecision(ProbabilityTable.Precision precision) {
+        return (precision == ProbabilityTable.Precision.DOUBLE || precision == ProbabilityTable.Precision.LOG64)
+                ? ProbabilityTable.Precision.DOUBLE : ProbabilityTable.Precision.FLOAT32;
+    }
+    
+    /**
+     * Converts the logarithms of the scores of each class into probabilities
+     * that sum 1, subtracting the maximum before the exponential (log-sum-exp)
+     * so that they do not underflow. If every score is -Infinity the result
+     * is 0, as the product of the probabilities would be.
+     *
+     * @param logs Logarithms of the scores, replaced by the probabilities.
+     * @return logs
+     */
+    static double[] normalizeLog(double[] logs) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double log : logs) {
+            max = Math.max(max, log);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            Arrays.fill(logs, 0);
+            return logs;
+        }
+        
+        double sum = 0;
+        for (int i = 0; i < logs.length; i++) {
+            logs[i] = Math.exp(logs[i] - max);
+            sum += logs[i];
+        }
+        for (int i = 0; i < logs.length; i++) {
+            logs[i] /= sum;
+        }
+        return logs;
+    }
+    
     @Override
     boolean equals(Object o);
     
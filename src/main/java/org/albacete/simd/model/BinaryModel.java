@@ -0,0 +1,62 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    BinaryModel.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.io.IOException;
+
+/**
+ * Classifier that can be saved in the binary model format (see ModelIO).
+ *
+ * Each implementation writes its options and trained structures field by
+ * field, so the format does not depend on the names or the layout of the
+ * Java classes. New fields must be appended, and read only if
+ * ModelReader.getVersion() is recent enough.
+ */
+public interface BinaryModel {
+
+    /**
+     * Writes the trained model.
+     *
+     * @param out Writer of the model file.
+     * @throws IOException If the model cannot be written.
+     */
+    void writeModel(ModelWriter out) throws IOException;
+
+    /**
+     * Reads a model written by writeModel into this classifier, which is
+     * left ready to predict.
+     *
+     * @param in Reader of the model file.
+     * @throws IOException If the model is not valid.
+     */
+    void readModel(ModelReader in) throws IOException;
+}
@@ -0,0 +1,60 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    FixedDiscretize.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import weka.core.Instances;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Supervised Discretize whose cut points are given instead of learned, used
+ * to restore the discretizer of a saved model. It filters the instances
+ * exactly as the original one.
+ */
+public class FixedDiscretize extends Discretize {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Sets the input format and the cut points, and defines the output format
+     * so that the filter is ready to convert instances.
+     *
+     * @param inputFormat Input format of the original discretizer.
+     * @param cutPoints Cut points of each attribute (null for the ones not
+     * discretized).
+     * @throws Exception If the input format is not valid.
+     */
+    public void setCutPoints(Instances inputFormat, double[][] cutPoints) throws Exception {
+        setInputFormat(inputFormat);
+        m_CutPoints = cutPoints;
+        setOutputFormat();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    FreezableModel.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+/**
+ * Classifier whose probability tables can be stored with less precision once
+ * it is trained (see ProbabilityTable.Precision and ModelFreezer).
+ *
+ * Freezing is done once, after training: the tables are encoded and the
+ * arrays used while training are released, so the classifier can only
+ * predict from then on.
+ */
+public interface FreezableModel {
+
+    /**
+     * Encodes the probability tables of the trained model.
+     *
+     * @param precision Storage precision of the tables.
+     * @throws IllegalStateException If the model is not trained or cannot be
+     * frozen with its options.
+     */
+    void freeze(ProbabilityTable.Precision precision);
+
+    /**
+     * @return The bytes used by the probability tables of the model.
+     */
+    long getTableBytes();
+}
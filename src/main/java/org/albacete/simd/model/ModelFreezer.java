@@ -0,0 +1,148 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ModelFreezer.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * Freezes trained classifiers, storing their probability tables with less
+ * precision (see FreezableModel), and reports the accuracy lost with each
+ * precision so that it can be chosen per model.
+ *
+ * Arguments: model data [precision output]
+ *
+ * The report compares the predictions of the model with the frozen copies
+ * on the data. If a precision and an output are given, the model is frozen
+ * and saved with ModelIO.
+ */
+public class ModelFreezer {
+
+    private ModelFreezer() {
+    }
+
+    /**
+     * Comparison of a frozen copy with the original model.
+     */
+    public static class Result extends ModelReport.Comparison {
+
+        public final ProbabilityTable.Precision precision;
+
+        /**
+         * Maximum and mean absolute difference of the class probabilities.
+         */
+        public final double maxProbDiff, meanProbDiff;
+
+        Result(ProbabilityTable.Precision precision, double[][] probs, double[][] reference,
+                Instances data, long tableBytes) {
+            super(probs, reference, data, tableBytes);
+            this.precision = precision;
+
+            double max = 0, sum = 0;
+            long count = 0;
+            for (int i = 0; i < probs.length; i++) {
+                for (int c = 0; c < probs[i].length; c++) {
+                    double diff = Math.abs(probs[i][c] - reference[i][c]);
+                    max = Math.max(max, diff);
+                    sum += diff;
+                    count++;
+                }
+            }
+            this.maxProbDiff = max;
+            this.meanProbDiff = sum / Math.max(1, count);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-8s %8.4f %+9.4f %9.4f %10.2e %10.2e %12d",
+                    precision, accuracy, accuracyDelta, agreement, maxProbDiff, meanProbDiff, tableBytes);
+        }
+    }
+
+    /**
+     * Freezes a trained classifier.
+     *
+     * @param clas Classifier to freeze.
+     * @param precision Storage precision of its tables.
+     * @throws IllegalArgumentException If the classifier cannot be frozen.
+     */
+    public static void freeze(Classifier clas, ProbabilityTable.Precision precision) {
+        if (!(clas instanceof FreezableModel)) {
+            throw new IllegalArgumentException(clas.getClass().getName() + " cannot be frozen");
+        }
+        ((FreezableModel) clas).freeze(precision);
+    }
+
+    /**
+     * Compares each precision with the original model. The model is not
+     * modified: each precision is applied to a copy.
+     *
+     * @param clas Trained classifier.
+     * @param data Instances to predict, with the class.
+     * @return The result of each precision, DOUBLE first.
+     * @throws Exception If the classifier cannot be copied, frozen or used.
+     */
+    public static List<Result> report(Classifier clas, Instances data) throws Exception {
+        double[][] reference = ModelReport.predict(clas, data);
+
+        List<Result> results = new ArrayList<>();
+        for (ProbabilityTable.Precision precision : ProbabilityTable.Precision.values()) {
+            Classifier copy = (Classifier) new SerializedObject(clas).getObject();
+            freeze(copy, precision);
+            results.add(new Result(precision, ModelReport.predict(copy, data), reference, data,
+                    ((FreezableModel) copy).getTableBytes()));
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Classifier clas = ModelIO.load(Paths.get(args[0]));
+        Instances data = ModelReport.readData(args[1]);
+
+        System.out.println("precision accuracy     delta agreement    maxDiff   meanDiff   tableBytes");
+        for (Result result : report(clas, data)) {
+            System.out.println(result);
+        }
+
+        if (args.length > 3) {
+            double init = System.currentTimeMillis();
+            freeze(clas, ProbabilityTable.Precision.valueOf(args[2].toUpperCase(Locale.ROOT)));
+            ModelIO.save(clas, Paths.get(args[3]));
+            System.out.println(args[3] + " written in " + (System.currentTimeMillis() - init) / 1000 + " s");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ModelPruner.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.albacete.simd.mAnDE.mAnDE;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * Compacts trained mAnDEs after the training, keeping the mSPnDEs that
+ * contribute most to the predictions on held-out data (see mAnDE.prune), and
+ * reports the accuracy and the prediction time with each number of mSPnDEs
+ * so that it can be tuned per model.
+ *
+ * Arguments: model validation test [maxSPnDEs output]
+ *
+ * The contributions are measured on the validation data, and the pruned
+ * copies are compared with the original model on the test data. If a number
+ * of mSPnDEs and an output are given, the model is pruned and saved with
+ * ModelIO.
+ */
+public class ModelPruner {
+
+    private ModelPruner() {
+    }
+
+    /**
+     * Comparison of a pruned copy with the original model.
+     */
+    public static class Result extends ModelReport.Comparison {
+
+        public final int numSPnDEs;
+
+        /**
+         * Mean time of a prediction, in microseconds.
+         */
+        public final double micros;
+
+        Result(int numSPnDEs, double[][] probs, double[][] reference, Instances data,
+                double micros, long tableBytes) {
+            super(probs, reference, data, tableBytes);
+            this.numSPnDEs = numSPnDEs;
+            this.micros = micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%8d %8.4f %+9.4f %9.4f %10.1f %12d",
+                    numSPnDEs, accuracy, accuracyDelta, agreement, micros, tableBytes);
+        }
+    }
+
+    /**
+     * Compares the model pruned to all the mSPnDEs, half of them, a quarter,
+     * and so on down to one, with the original model. The model is not
+     * modified: each size is applied to a copy.
+     *
+     * @param model Trained mAnDE.
+     * @param validation Held-out instances that measure the contributions.
+     * @param test Instances to predict, with the class.
+     * @return The result of each number of mSPnDEs, from the largest.
+     * @throws Exception If the model cannot be copied, pruned or used.
+     */
+    public static List<Result> report(mAnDE model, Instances validation, Instances test) throws Exception {
+        long start = System.nanoTime();
+        double[][] reference = ModelReport.predict(model, test);
+        double referenceMicros = (System.nanoTime() - start) / 1e3 / Math.max(1, test.numInstances());
+
+        List<Result> results = new ArrayList<>();
+        results.add(new Result(model.getmSPnDEs().size(), reference, reference, test,
+                referenceMicros, model.getTableBytes()));
+
+        for (int size = model.getmSPnDEs().size() / 2; size >= 1; size /= 2) {
+            mAnDE copy = (mAnDE) new SerializedObject(model).getObject();
+            copy.prune(validation, size, 0);
+
+            start = System.nanoTime();
+            double[][] probs = ModelReport.predict(copy, test);
+            double micros = (System.nanoTime() - start) / 1e3 / Math.max(1, test.numInstances());
+
+            results.add(new Result(size, probs, reference, test, micros, copy.getTableBytes()));
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        mAnDE model = (mAnDE) ModelIO.load(Paths.get(args[0]));
+        Instances validation = ModelReport.readData(args[1]);
+        Instances test = ModelReport.readData(args[2]);
+
+        System.out.println(" mSPnDEs accuracy     delta agreement   micros   tableBytes");
+        for (Result result : report(model, validation, test)) {
+            System.out.println(result);
+        }
+
+        if (args.length > 4) {
+            double init = System.currentTimeMillis();
+            int kept = model.prune(validation, Integer.parseInt(args[3]), 0);
+            ModelIO.save(model, Paths.get(args[4]));
+            System.out.println(args[4] + " written with " + kept + " mSPnDEs in "
+                    + (System.currentTimeMillis() - init) / 1000 + " s");
+        }
+    }
+}
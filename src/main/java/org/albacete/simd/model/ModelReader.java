@@ -0,0 +1,380 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ModelReader.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Instances;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Reads a binary model file written by ModelWriter, in the same order.
+ *
+ * The file is read through a direct staging buffer and the arrays are copied
+ * in bulk, so a model loads at disk speed. In mapped mode, the tables read
+ * with readTable are not copied: they are views of the memory-mapped file.
+ */
+public class ModelReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean mapped;
+    private long position = 0;
+    private int version;
+
+    /**
+     * Constructor.
+     *
+     * @param file Path of the model file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ModelReader(Path file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file Path of the model file.
+     * @param mapped If the tables are mapped instead of read into the heap.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ModelReader(Path file, boolean mapped) throws IOException {
+        this.file = file;
+        this.mapped = mapped;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * @return The version of the format of the file, so that the readers can
+     * keep loading the files of older versions.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int readInt() throws IOException {
+        position += 4;
+        return fill(4).getInt();
+    }
+
+    public long readLong() throws IOException {
+        position += 8;
+        return fill(8).getLong();
+    }
+
+    public double readDouble() throws IOException {
+        position += 8;
+        return fill(8).getDouble();
+    }
+
+    public boolean readBoolean() throws IOException {
+        position += 1;
+        return fill(1).get() != 0;
+    }
+
+    public String readString() throws IOException {
+        byte[] bytes = readBytes();
+        return (bytes == null) ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length) {
+            int chunk = Math.min(length - done, BUFFER_SIZE);
+            fill(chunk).get(bytes, done, chunk);
+            done += chunk;
+        }
+        position += length;
+        align();
+        return bytes;
+    }
+
+    public int[] readInts() throws IOException {
+        int length = readInt();
+        align();
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[length];
+        int done = 0;
+        while (done < length) {
+            int chunk = Math.min(length - done, BUFFER_SIZE / 4);
+            ByteBuffer view = fill(4 * chunk);
+            view.asIntBuffer().get(values, done, chunk);
+            view.position(view.position() + 4 * chunk);
+            done += chunk;
+        }
+        position += 4L * length;
+        align();
+        return values;
+    }
+
+    public double[] readDoubles() throws IOException {
+        int length = readInt();
+        align();
+        if (length < 0) {
+            return null;
+        }
+        double[] values = new double[length];
+        int done = 0;
+        while (done < length) {
+            int chunk = Math.min(length - done, BUFFER_SIZE / 8);
+            ByteBuffer view = fill(8 * chunk);
+            view.asDoubleBuffer().get(values, done, chunk);
+            view.position(view.position() + 8 * chunk);
+            done += chunk;
+        }
+        position += 8L * length;
+        return values;
+    }
+
+    /**
+     * Reads a table written by writeTable. In mapped mode the table is a view
+     * of the file, which stays valid after closing the reader.
+     *
+     * @return The table, or null.
+     */
+    public ProbabilityTable readTable() throws IOException {
+        ProbabilityTable.Precision precision = ProbabilityTable.Precision.DOUBLE;
+        // The version 1 only had tables of doubles, without the precision
+        if (version >= 2) {
+            int code = readInt();
+            if (code < 0) {
+                align();
+                return null;
+            }
+            if (code >= ProbabilityTable.Precision.values().length) {
+                throw new IOException(file + " has an invalid table precision " + code);
+            }
+            precision = ProbabilityTable.Precision.values()[code];
+        }
+
+        if (precision == ProbabilityTable.Precision.DOUBLE) {
+            if (!mapped) {
+                double[] values = readDoubles();
+                return (values == null) ? null : ProbabilityTable.of(values);
+            }
+            ByteBuffer data = readRaw(8);
+            return (data == null) ? null : ProbabilityTable.of(data.asDoubleBuffer());
+        }
+
+        double offset = readDouble();
+        double scale = readDouble();
+        ByteBuffer data = readRaw(precision.width);
+        align();
+        return ProbabilityTable.decode(precision, data, offset, scale);
+    }
+
+    /**
+     * Reads the values of a table as bytes: mapped in mapped mode, or copied
+     * into the heap otherwise.
+     *
+     * @param width Bytes of each value.
+     * @return The bytes, little endian, or null.
+     */
+    private ByteBuffer readRaw(int width) throws IOException {
+        int length = readInt();
+        align();
+        if (length < 0) {
+            return null;
+        }
+        long bytes = (long) width * length;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("A table of " + file + " is too large");
+        }
+
+        ByteBuffer data;
+        if (mapped) {
+            if (position + bytes > channel.size()) {
+                throw new IOException("Truncated model file " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+            skip(bytes);
+        } else {
+            data = ByteBuffer.allocate((int) bytes);
+            while (data.hasRemaining()) {
+                int chunk = Math.min(data.remaining(), BUFFER_SIZE);
+                ByteBuffer view = fill(chunk);
+                ByteBuffer slice = view.slice();
+                slice.limit(chunk);
+                data.put(slice);
+                view.position(view.position() + chunk);
+            }
+            position += bytes;
+            data.clear();
+        }
+        return data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return True if the tables are mapped instead of read into the heap.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    public double[][] readDoubleMatrix() throws IOException {
+        int rows = readInt();
+        if (rows < 0) {
+            return null;
+        }
+        double[][] values = new double[rows][];
+        for (int i = 0; i < rows; i++) {
+            values[i] = readDoubles();
+        }
+        return values;
+    }
+
+    /**
+     * @return The header written by ModelWriter.writeHeader, with its class
+     * index, or null.
+     */
+    public Instances readHeader() throws IOException {
+        String arff = readString();
+        if (arff == null) {
+            return null;
+        }
+        Instances header = new Instances(new StringReader(arff));
+        header.setClassIndex(readInt());
+        return header;
+    }
+
+    /**
+     * @return The discretizer written by ModelWriter.writeDiscretizer, ready
+     * to filter instances, or null.
+     */
+    public Discretize readDiscretizer() throws IOException {
+        Instances input = readHeader();
+        if (input == null) {
+            return null;
+        }
+        String attributeIndices = readString();
+        boolean invertSelection = readBoolean();
+        boolean makeBinary = readBoolean();
+        boolean useBinNumbers = readBoolean();
+        boolean spreadAttributeWeight = readBoolean();
+        int binRangePrecision = readInt();
+        double[][] cutPoints = new double[readInt()][];
+        for (int att = 0; att < cutPoints.length; att++) {
+            cutPoints[att] = readDoubles();
+        }
+
+        FixedDiscretize discretizer = new FixedDiscretize();
+        discretizer.setAttributeIndices(attributeIndices);
+        discretizer.setInvertSelection(invertSelection);
+        discretizer.setMakeBinary(makeBinary);
+        discretizer.setUseBinNumbers(useBinNumbers);
+        discretizer.setSpreadAttributeWeight(spreadAttributeWeight);
+        discretizer.setBinRangePrecision(binRangePrecision);
+        try {
+            discretizer.setCutPoints(input, cutPoints);
+        } catch (Exception ex) {
+            throw new IOException(file + " has an invalid discretizer", ex);
+        }
+        return discretizer;
+    }
+
+    /**
+     * @return The number of bytes read.
+     */
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Skips the padding up to a multiple of 8 bytes.
+     */
+    private void align() throws IOException {
+        int padding = (int) ((8 - (position & 7)) & 7);
+        ByteBuffer view = fill(padding);
+        view.position(view.position() + padding);
+        position += padding;
+    }
+
+    /**
+     * Skips bytes without reading them.
+     */
+    private void skip(long bytes) throws IOException {
+        if (bytes <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) bytes);
+        } else {
+            channel.position(channel.position() + bytes - buffer.remaining());
+            buffer.limit(0);
+        }
+        position += bytes;
+    }
+
+    /**
+     * @return The staging buffer with at least length bytes to read.
+     */
+    private ByteBuffer fill(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            buffer.compact();
+            while (buffer.position() < length) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Truncated model file " + file);
+                }
+            }
+            buffer.flip();
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ModelReport.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import org.albacete.simd.data.BinaryInstances;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Helpers of the reports that compare modified copies of a trained model
+ * with the original one (see ModelFreezer and ModelPruner).
+ */
+public final class ModelReport {
+
+    private ModelReport() {
+    }
+
+    /**
+     * Comparison of the predictions of a modified copy with the ones of the
+     * original model.
+     */
+    public static class Comparison {
+
+        /**
+         * Accuracy of the copy, and its difference with the accuracy of the
+         * original model.
+         */
+        public final double accuracy, accuracyDelta;
+
+        /**
+         * Fraction of instances with the same predicted class.
+         */
+        public final double agreement;
+
+        /**
+         * Bytes used by the probability tables.
+         */
+        public final long tableBytes;
+
+        /**
+         * @param probs Predictions of the copy.
+         * @param reference Predictions of the original model.
+         * @param data Instances predicted, with the class.
+         * @param tableBytes Bytes used by the tables of the copy.
+         */
+        Comparison(double[][] probs, double[][] reference, Instances data, long tableBytes) {
+            this.accuracy = accuracy(probs, data);
+            this.accuracyDelta = accuracy - accuracy(reference, data);
+            this.agreement = agreement(probs, reference);
+            this.tableBytes = tableBytes;
+        }
+    }
+
+    /**
+     * @return The predicted distribution of each instance of data.
+     */
+    static double[][] predict(Classifier clas, Instances data) throws Exception {
+        double[][] probs = new double[data.numInstances()][];
+        for (int i = 0; i < probs.length; i++) {
+            probs[i] = clas.distributionForInstance(data.instance(i));
+        }
+        return probs;
+    }
+
+    /**
+     * @return The fraction of the instances with a class whose predicted
+     * class is right.
+     */
+    static double accuracy(double[][] probs, Instances data) {
+        int correct = 0, total = 0;
+        for (int i = 0; i < probs.length; i++) {
+            Instance inst = data.instance(i);
+            if (!inst.classIsMissing()) {
+                total++;
+                if (Utils.maxIndex(probs[i]) == (int) inst.classValue()) {
+                    correct++;
+                }
+            }
+        }
+        return (double) correct / Math.max(1, total);
+    }
+
+    /**
+     * @return The fraction of the instances with the same predicted class.
+     */
+    static double agreement(double[][] probs, double[][] reference) {
+        int same = 0;
+        for (int i = 0; i < probs.length; i++) {
+            if (Utils.maxIndex(probs[i]) == Utils.maxIndex(reference[i])) {
+                same++;
+            }
+        }
+        return (double) same / Math.max(1, probs.length);
+    }
+
+    /**
+     * @return The instances of a file, with the last attribute as the class.
+     */
+    static Instances readData(String file) throws Exception {
+        Instances data = BinaryInstances.read(file);
+        data.setClassIndex(data.numAttributes() - 1);
+        return data;
+    }
+}
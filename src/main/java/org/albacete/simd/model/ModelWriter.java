@@ -0,0 +1,318 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ModelWriter.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Instances;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Writes a binary model file (see ModelIO).
+ *
+ * The values are little endian and go through a direct staging buffer, and
+ * the arrays are copied in bulk. Every array is preceded by its length (-1
+ * for null) and starts and ends at a multiple of 8 bytes. The file is written
+ * to a temporary file and moved when closed, so a reader never sees it half
+ * written.
+ */
+public class ModelWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long position = 0;
+    private boolean failed = true;
+
+    /**
+     * Constructor.
+     *
+     * @param file Path of the model file.
+     * @throws IOException If the file cannot be created.
+     */
+    public ModelWriter(Path file) throws IOException {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        this.tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void writeInt(int value) throws IOException {
+        reserve(4).putInt(value);
+        position += 4;
+    }
+
+    public void writeLong(long value) throws IOException {
+        reserve(8).putLong(value);
+        position += 8;
+    }
+
+    public void writeDouble(double value) throws IOException {
+        reserve(8).putDouble(value);
+        position += 8;
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        reserve(1).put((byte) (value ? 1 : 0));
+        position += 1;
+    }
+
+    /**
+     * Writes a string as its UTF-8 bytes (null is allowed).
+     */
+    public void writeString(String value) throws IOException {
+        writeBytes((value == null) ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a byte array as its length and bytes (-1 for null).
+     */
+    public void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(bytes.length);
+        int done = 0;
+        while (done < bytes.length) {
+            int length = Math.min(bytes.length - done, BUFFER_SIZE);
+            reserve(length).put(bytes, done, length);
+            done += length;
+        }
+        position += bytes.length;
+        align();
+    }
+
+    public void writeInts(int[] values) throws IOException {
+        if (values == null) {
+            writeInt(-1);
+            align();
+            return;
+        }
+        writeInt(values.length);
+        align();
+        int done = 0;
+        while (done < values.length) {
+            int length = Math.min(values.length - done, BUFFER_SIZE / 4);
+            ByteBuffer view = reserve(4 * length);
+            view.asIntBuffer().put(values, done, length);
+            view.position(view.position() + 4 * length);
+            done += length;
+        }
+        position += 4L * values.length;
+        align();
+    }
+
+    public void writeDoubles(double[] values) throws IOException {
+        writeDoubles((values == null) ? null : DoubleBuffer.wrap(values));
+    }
+
+    /**
+     * Writes a table with its precision (null is allowed). The tables of
+     * doubles are written with writeDoubles.
+     */
+    public void writeTable(ProbabilityTable table) throws IOException {
+        if (table == null) {
+            writeInt(-1);
+            align();
+            return;
+        }
+        table.write(this);
+    }
+
+    /**
+     * Writes the remaining values of a buffer, as writeDoubles.
+     */
+    void writeDoubles(DoubleBuffer values) throws IOException {
+        if (values == null) {
+            writeInt(-1);
+            align();
+            return;
+        }
+        int total = values.remaining();
+        writeInt(total);
+        align();
+        while (values.hasRemaining()) {
+            int length = Math.min(values.remaining(), BUFFER_SIZE / 8);
+            ByteBuffer view = reserve(8 * length);
+            DoubleBuffer chunk = values.slice();
+            chunk.limit(length);
+            view.asDoubleBuffer().put(chunk);
+            view.position(view.position() + 8 * length);
+            values.position(values.position() + length);
+        }
+        position += 8L * total;
+    }
+
+    /**
+     * Writes the encoded values of a table: their number and their bytes.
+     *
+     * @param data Bytes of the values, from its position.
+     * @param count Number of values.
+     * @param width Bytes of each value.
+     */
+    void writeRaw(ByteBuffer data, int count, int width) throws IOException {
+        writeInt(count);
+        align();
+        long total = (long) count * width;
+        while (data.hasRemaining()) {
+            int length = Math.min(data.remaining(), BUFFER_SIZE);
+            ByteBuffer chunk = data.slice();
+            chunk.limit(length);
+            reserve(length).put(chunk);
+            data.position(data.position() + length);
+        }
+        position += total;
+        align();
+    }
+
+    /**
+     * Writes a matrix as its number of rows followed by each row.
+     */
+    public void writeDoubleMatrix(double[][] values) throws IOException {
+        writeInt(values == null ? -1 : values.length);
+        for (int i = 0; values != null && i < values.length; i++) {
+            writeDoubles(values[i]);
+        }
+    }
+
+    /**
+     * Writes the attributes and the class index of a dataset as an ARFF
+     * header (null is allowed).
+     */
+    public void writeHeader(Instances header) throws IOException {
+        if (header == null) {
+            writeString(null);
+            return;
+        }
+        writeString(new Instances(header, 0).toString());
+        writeInt(header.classIndex());
+    }
+
+    /**
+     * Writes a fitted supervised Discretize: its options, input format and
+     * cut points (null is allowed). It is read back as a FixedDiscretize.
+     */
+    public void writeDiscretizer(Discretize discretizer) throws IOException {
+        Instances input = (discretizer == null) ? null : discretizer.getCopyOfInputFormat();
+        writeHeader(input);
+        if (input == null) {
+            return;
+        }
+        writeString(discretizer.getAttributeIndices());
+        writeBoolean(discretizer.getInvertSelection());
+        writeBoolean(discretizer.getMakeBinary());
+        writeBoolean(discretizer.getUseBinNumbers());
+        writeBoolean(discretizer.getSpreadAttributeWeight());
+        writeInt(discretizer.getBinRangePrecision());
+        writeInt(input.numAttributes());
+        for (int att = 0; att < input.numAttributes(); att++) {
+            writeDoubles(discretizer.getCutPoints(att));
+        }
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Flushes the file and moves it to its final path. If an exception was
+     * thrown while writing, the temporary file is deleted instead.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public void commit() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        failed = false;
+    }
+
+    /**
+     * Deletes the temporary file if the model was not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (failed) {
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Pads the file with zeros up to a multiple of 8 bytes.
+     */
+    private void align() throws IOException {
+        int padding = (int) ((8 - (position & 7)) & 7);
+        ByteBuffer view = reserve(padding);
+        for (int i = 0; i < padding; i++) {
+            view.put((byte) 0);
+        }
+        position += padding;
+    }
+
+    /**
+     * @return The staging buffer with at least length bytes free.
+     */
+    private ByteBuffer reserve(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+        return buffer;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
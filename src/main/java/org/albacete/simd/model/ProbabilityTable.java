@@ -0,0 +1,583 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    ProbabilityTable.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.model;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Read-only flat table of probabilities of a trained model.
+ *
+ * The values are either in the heap or in a region of a memory-mapped model
+ * file (see ModelIO.map), which is shared through the page cache by every
+ * process that maps the same file and does not count against the heap.
+ *
+ * A table can also be stored with less precision when the model is frozen
+ * (see ModelFreezer): as floats, or as the logarithm of the probability
+ * quantized to 16 or 8 bits with a scale per table. The code 0 of the
+ * quantized tables is kept for the probability 0.
+ *
+ * The tables whose precision is in the log domain (LOG64, LOG16 and LOG8)
+ * return the logarithm of the probability without computing it with
+ * getLog(), so the models can score by adding them (see mSP1DE).
+ */
+public abstract class ProbabilityTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Storage precision of a table.
+     */
+    public enum Precision {
+        DOUBLE(8, false), FLOAT32(4, false), LOG16(2, true), LOG8(1, true), LOG64(8, true);
+
+        /**
+         * Bytes of each value.
+         */
+        public final int width;
+
+        /**
+         * True if the logarithms of the probabilities are stored.
+         */
+        public final boolean log;
+
+        Precision(int width, boolean log) {
+            this.width = width;
+            this.log = log;
+        }
+    }
+
+    /**
+     * @param index Position in the table.
+     * @return The value at the position.
+     */
+    public abstract double get(int index);
+
+    /**
+     * @param index Position in the table.
+     * @return The logarithm of the value at the position (negative infinity
+     * for 0), which is stored in the log domain precisions.
+     */
+    public double getLog(int index) {
+        return Math.log(get(index));
+    }
+
+    /**
+     * @return The number of values of the table.
+     */
+    public abstract int size();
+
+    /**
+     * @return The storage precision of the table.
+     */
+    public abstract Precision getPrecision();
+
+    /**
+     * @return The bytes used by the values of the table.
+     */
+    public long sizeInBytes() {
+        return (long) size() * getPrecision().width;
+    }
+
+    /**
+     * @return The heap array with the stored doubles (the logarithms for
+     * LOG64), which must not be modified, or null if the table is not a heap
+     * array. It allows bulk and vector access (see ClassKernels).
+     */
+    public double[] array() {
+        return null;
+    }
+
+    /**
+     * Writes the table (see ModelWriter.writeTable).
+     */
+    abstract void write(ModelWriter out) throws IOException;
+
+    /**
+     * @param values Values of the table, which are not copied.
+     * @return A table over a heap array.
+     */
+    public static ProbabilityTable of(double[] values) {
+        return new Heap(values);
+    }
+
+    /**
+     * @param values Values of the table, usually a view of a mapped file.
+     * @return A table over the buffer.
+     */
+    public static ProbabilityTable of(DoubleBuffer values) {
+        return new Mapped(values);
+    }
+
+    /**
+     * Encodes a table with the given precision.
+     *
+     * @param table Table to encode.
+     * @param precision Storage precision.
+     * @return The encoded table (the same table if it has the precision).
+     * @throws IllegalArgumentException If a log domain precision is asked and
+     * there are negative values.
+     */
+    public static ProbabilityTable encode(ProbabilityTable table, Precision precision) {
+        if (precision == table.getPrecision()) {
+            return table;
+        }
+
+        int n = table.size();
+        if (precision == Precision.DOUBLE) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = table.get(i);
+            }
+            return new Heap(values);
+        }
+
+        if (precision == Precision.LOG64) {
+            double[] logs = new double[n];
+            for (int i = 0; i < n; i++) {
+                double value = table.get(i);
+                if (!(value >= 0)) {
+                    throw new IllegalArgumentException("Only tables of non-negative values can be stored as logarithms");
+                }
+                logs[i] = Math.log(value);
+            }
+            return new Log64(logs);
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(n * precision.width).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (precision == Precision.FLOAT32) {
+            FloatBuffer floats = data.asFloatBuffer();
+            for (int i = 0; i < n; i++) {
+                floats.put(i, (float) table.get(i));
+            }
+            return new Float32(data);
+        }
+
+        // Range of the logarithms of the positive values
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double value = table.get(i);
+            if (!(value >= 0)) {
+                throw new IllegalArgumentException("Only tables of non-negative values can be quantized");
+            }
+            if (value > 0) {
+                lo = Math.min(lo, Math.log(value));
+                hi = Math.max(hi, Math.log(value));
+            }
+        }
+        int codes = (precision == Precision.LOG16) ? 0xFFFF : 0xFF;
+        double offset = (lo <= hi) ? lo : 0;
+        double scale = (lo < hi) ? (hi - lo) / (codes - 1) : 1;
+
+        for (int i = 0; i < n; i++) {
+            double value = table.get(i);
+            int code = (value == 0) ? 0 : 1 + (int) Math.round((Math.log(value) - offset) / scale);
+            if (precision == Precision.LOG16) {
+                data.putShort(2 * i, (short) code);
+            } else {
+                data.put(i, (byte) code);
+            }
+        }
+        return decode(precision, data, offset, scale);
+    }
+
+    /**
+     * @return A table over values encoded by encode(), in the heap or in a
+     * mapped file.
+     */
+    static ProbabilityTable decode(Precision precision, ByteBuffer data,
+            double offset, double scale) {
+        switch (precision) {
+            case FLOAT32:
+                return new Float32(data);
+            case LOG16:
+                return new Log16(data, offset, scale);
+            case LOG8:
+                return new Log8(data, offset, scale);
+            case LOG64:
+                if (data.isDirect()) {
+                    return new MappedLog64(data);
+                }
+                double[] logs = new double[data.capacity() / 8];
+                data.asDoubleBuffer().get(logs);
+                return new Log64(logs);
+            default:
+                return new Mapped(data.asDoubleBuffer());
+        }
+    }
+
+    /**
+     * Doubles in a heap array.
+     */
+    private static final class Heap extends ProbabilityTable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] values;
+
+        Heap(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.DOUBLE;
+        }
+
+        @Override
+        public double[] array() {
+            return values;
+        }
+
+        @Override
+        void write(ModelWriter out) throws IOException {
+            out.writeInt(Precision.DOUBLE.ordinal());
+            out.writeDoubles(values);
+        }
+    }
+
+    /**
+     * Logarithms in a heap array. It is written as the encoded tables, with
+     * an offset and a scale that are not used.
+     */
+    private static final class Log64 extends ProbabilityTable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] logs;
+
+        Log64(double[] logs) {
+            this.logs = logs;
+        }
+
+        @Override
+        public double get(int index) {
+            return Math.exp(logs[index]);
+        }
+
+        @Override
+        public double getLog(int index) {
+            return logs[index];
+        }
+
+        @Override
+        public int size() {
+            return logs.length;
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.LOG64;
+        }
+
+        @Override
+        public double[] array() {
+            return logs;
+        }
+
+        @Override
+        void write(ModelWriter out) throws IOException {
+            out.writeInt(Precision.LOG64.ordinal());
+            out.writeDouble(0);
+            out.writeDouble(1);
+            out.writeDoubles(logs);
+        }
+    }
+
+    /**
+     * Base of the tables that are not in a heap array. The buffers cannot be
+     * serialized, so a heap copy of the values is.
+     */
+    private abstract static class View extends ProbabilityTable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected Object writeReplace() throws ObjectStreamException {
+            double[] copy = new double[size()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = get(i);
+            }
+            return new Heap(copy);
+        }
+    }
+
+    /**
+     * Doubles in a buffer, usually a view of a mapped file.
+     */
+    private static final class Mapped extends View {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient DoubleBuffer values;
+
+        Mapped(DoubleBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public double get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public int size() {
+            return values.capacity();
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.DOUBLE;
+        }
+
+        @Override
+        void write(ModelWriter out) throws IOException {
+            out.writeInt(Precision.DOUBLE.ordinal());
+            out.writeDoubles(values.duplicate());
+        }
+    }
+
+    /**
+     * Encoded values in a little endian byte buffer, in the heap or mapped.
+     */
+    private abstract static class Encoded extends View {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final transient ByteBuffer data;
+        protected final double offset;
+        protected final double scale;
+
+        Encoded(ByteBuffer data, double offset, double scale) {
+            this.data = data;
+            this.offset = offset;
+            this.scale = scale;
+        }
+
+        @Override
+        public int size() {
+            return data.capacity() / getPrecision().width;
+        }
+
+        @Override
+        void write(ModelWriter out) throws IOException {
+            out.writeInt(getPrecision().ordinal());
+            out.writeDouble(offset);
+            out.writeDouble(scale);
+            out.writeRaw(data.duplicate(), size(), getPrecision().width);
+        }
+
+        /**
+         * Serializes the encoded bytes, so the table keeps its precision.
+         */
+        @Override
+        protected Object writeReplace() throws ObjectStreamException {
+            byte[] bytes = new byte[data.capacity()];
+            ByteBuffer copy = data.duplicate();
+            copy.clear();
+            copy.get(bytes);
+            return new Serial(getPrecision(), bytes, offset, scale);
+        }
+    }
+
+    /**
+     * Serialized form of the encoded tables.
+     */
+    private static final class Serial implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Precision precision;
+        private final byte[] bytes;
+        private final double offset;
+        private final double scale;
+
+        Serial(Precision precision, byte[] bytes, double offset, double scale) {
+            this.precision = precision;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.scale = scale;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return decode(precision, ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), offset, scale);
+        }
+    }
+
+    private static final class Float32 extends Encoded {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient FloatBuffer values;
+
+        Float32(ByteBuffer data) {
+            super(data, 0, 1);
+            this.values = data.asFloatBuffer();
+        }
+
+        @Override
+        public double get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.FLOAT32;
+        }
+    }
+
+    private static final class MappedLog64 extends Encoded {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient DoubleBuffer logs;
+
+        MappedLog64(ByteBuffer data) {
+            super(data, 0, 1);
+            this.logs = data.asDoubleBuffer();
+        }
+
+        @Override
+        public double get(int index) {
+            return Math.exp(logs.get(index));
+        }
+
+        @Override
+        public double getLog(int index) {
+            return logs.get(index);
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.LOG64;
+        }
+    }
+
+    private static final class Log16 extends Encoded {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ShortBuffer codes;
+
+        Log16(ByteBuffer data, double offset, double scale) {
+            super(data, offset, scale);
+            this.codes = data.asShortBuffer();
+        }
+
+        @Override
+        public double get(int index) {
+            int code = codes.get(index) & 0xFFFF;
+            return (code == 0) ? 0 : Math.exp(offset + (code - 1) * scale);
+        }
+
+        @Override
+        public double getLog(int index) {
+            int code = codes.get(index) & 0xFFFF;
+            return (code == 0) ? Double.NEGATIVE_INFINITY : offset + (code - 1) * scale;
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.LOG16;
+        }
+    }
+
+    private static final class Log8 extends Encoded {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Tables with fewer values decode each code when it is read, as the
+         * values of the codes would take more space than the table.
+         */
+        private static final int DECODED_MIN_SIZE = 1 << 14;
+
+        /**
+         * Value of each code, or null for small tables.
+         */
+        private final double[] decoded;
+
+        Log8(ByteBuffer data, double offset, double scale) {
+            super(data, offset, scale);
+            if (size() >= DECODED_MIN_SIZE) {
+                decoded = new double[256];
+                for (int code = 1; code < decoded.length; code++) {
+                    decoded[code] = Math.exp(offset + (code - 1) * scale);
+                }
+            } else {
+                decoded = null;
+            }
+        }
+
+        @Override
+        public double get(int index) {
+            int code = data.get(index) & 0xFF;
+            if (decoded != null) {
+                return decoded[code];
+            }
+            return (code == 0) ? 0 : Math.exp(offset + (code - 1) * scale);
+        }
+
+        @Override
+        public double getLog(int index) {
+            int code = data.get(index) & 0xFF;
+            return (code == 0) ? Double.NEGATIVE_INFINITY : offset + (code - 1) * scale;
+        }
+
+        @Override
+        public Precision getPrecision() {
+            return Precision.LOG8;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return super.sizeInBytes() + ((decoded == null) ? 0 : 8L * decoded.length);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package weka.attributeSelection;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Vector;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.kernels.ClassKernels;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -82,6 +84,9 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 	/** for serialization */
 	static final long serialVersionUID = 5174597384392985135L;
 
+	/** Loops over the class values of the joint probabilities */
+	private static final ClassKernels KERNELS = ClassKernels.get();
+
 	
 
 	/**
@@ -131,6 +136,12 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 	/** It is set to true if IWSS.setStartSet is called */
 	protected boolean m_skipRanking = false;
 
+	/**
+	 * Bitmap index of the dataset that counts the distributions of the
+	 * discrete attributes, or null if the class has missing values
+	 */
+	transient BitmapIndex m_index = null;
+
 	/** the data structure to store the probs for each instance and attribute */
 	double[][] jointProb = null;
 	ArrayList<double[][]> lpAttributes = new ArrayList<double[][]>();
@@ -212,6 +223,7 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 
 		// preparing the folds for NUMFOLDS-cv and data structures
 		prepareFolds(instances);
+		indexDataset(instances);
 		double[] currentAcc = new double[m_IWSSfolds];
 		double[] bestAcc = new double[m_IWSSfolds];
 		double currentAvgAcc = -1.0;
@@ -274,6 +286,7 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 
 		}
 
+		m_index = null;
 		return getSelected();
 	}
 
@@ -288,6 +301,7 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 
 		// preparing the folds for NUMFOLDS-cv and data structures
 		prepareFolds(dataset);
+		indexDataset(dataset);
 		double[] currentAcc = new double[m_IWSSfolds];
 		double[] bestAcc = new double[m_IWSSfolds];
 		double[] bestItAcc = new double[m_IWSSfolds];
@@ -415,6 +429,7 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 
 		}
 
+		m_index = null;
 		return getSelected();
 
 	}
@@ -447,8 +462,8 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 		for (int i = firstOfFold[fold]; i <= lastOfFold[fold]; i++) {
 			row = dataset.instance(i);
 			max = -1000000000000.0;
+			KERNELS.addSub(newTotal[i], jointProb[i], LP[i], LPtoQuit[i]);
 			for (int c = 0; c < m_numClasses; c++) {
-				newTotal[i][c] = jointProb[i][c] + LP[i][c] - LPtoQuit[i][c];
 				if (newTotal[i][c] > max) {
 					max = newTotal[i][c];
 					maxPos = c;
@@ -564,8 +579,8 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 		for (int i = firstOfFold[fold]; i <= lastOfFold[fold]; i++) {
 			row = dataset.instance(i);
 			max = -1000000000000.0;
+			KERNELS.add(newTotal[i], jointProb[i], LP[i]);
 			for (int c = 0; c < m_numClasses; c++) {
-				newTotal[i][c] = jointProb[i][c] + LP[i][c];
 				if (Utils.gr(newTotal[i][c], max)) {
 					max = newTotal[i][c];
 					maxPos = c;
@@ -717,7 +732,24 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 			}
 		}
 
-		for (int f = 0; f < m_IWSSfolds; f++) {
+		// the small discrete distributions are counted in the index, from the
+		// instances before and after the fold
+		boolean counted = false;
+		if (pot.isDiscrete && m_index != null
+				&& BitmapIndex.isFasterThanScan(pot.numStates * m_numClasses)) {
+			int[] atts = { attIndex, m_classIndex };
+			for (int v = 0; v < pot.numStates; v++) {
+				for (int c = 0; c < m_numClasses; c++) {
+					int[] codes = { v, c };
+					dist[v][c] = m_index.count(atts, codes, 0, firstOfFold[fold])
+							+ m_index.count(atts, codes, lastOfFold[fold] + 1,
+									dataset.numInstances());
+				}
+			}
+			counted = true;
+		}
+
+		for (int f = 0; f < m_IWSSfolds && !counted; f++) {
 			if (f == fold) {
 				continue;
 			}
@@ -778,6 +810,22 @@ public class IWSSembeddedNB extends ASSearch implements OptionHandler,
 		return pot;
 	}
 
+	/**
+	 * Builds the bitmap index of the dataset, where the missing values of the
+	 * attributes have a code of their own and are not counted. The instances
+	 * with a missing class are counted by the scan as the first class, so
+	 * then there is no index.
+	 */
+	private void indexDataset(Instances dataset) {
+		m_index = null;
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			if (dataset.instance(i).classIsMissing()) {
+				return;
+			}
+		}
+		m_index = new BitmapIndex(dataset, false);
+	}
+
 	/**
 	 * Prepares train and test data for evaluation and counting how many folds
 	 * get higher accuracy than folds of evaluation with the up to now best
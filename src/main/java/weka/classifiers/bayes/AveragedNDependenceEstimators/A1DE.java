@@ -23,6 +23,13 @@
 
 package weka.classifiers.bayes.AveragedNDependenceEstimators;
 
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.kernels.ClassKernels;
+import org.albacete.simd.model.BinaryModel;
+import org.albacete.simd.model.FreezableModel;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
 import weka.classifiers.AbstractClassifier;
 import weka.core.Capabilities;
 import weka.core.Instance;
@@ -38,6 +45,7 @@ import weka.core.Capabilities.Capability;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Vector;
 
@@ -137,11 +145,14 @@ import java.util.Vector;
  */
 
 public class A1DE extends AbstractClassifier implements 
-OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
+OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler, BinaryModel, FreezableModel {
 
 	/** for serialization */
 	static final long serialVersionUID = 9197439980415113523L;
 
+	/** Loops over the class values of the rows of the tables */
+	private static final ClassKernels KERNELS = ClassKernels.get();
+
 	/** The discretization filter  */
 	protected weka.filters.supervised.attribute.Discretize m_Disc = null;
 
@@ -164,6 +175,15 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 	 */
 	private double[] m_2vCondiCountsOpp;
 
+	/**
+	 * Probabilities of m_2vCondiCounts and m_2vCondiCountsOpp once they are
+	 * calculated, which may be stored with less precision (see freeze).
+	 * Used only in non-incremental version, where they replace the arrays
+	 */
+	private ProbabilityTable m_2vCondiTable;
+
+	private ProbabilityTable m_2vCondiTableOpp;
+
 	/** The frequency of each attribute value occuring for each class */
 	private double[] m_1vCondiCounts;
 
@@ -438,9 +458,11 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 			m_2vCondiCountsNoClass = new double[nextIndex];
 		}
 
-		// calculate the counts
-		for(int k = 0; k < m_NumInstances; k++) {
-			addToCounts(m_Instances.instance(k));
+		// calculate the counts, from a bitmap index if it is faster
+		if (!addIndexCounts()) {
+			for(int k = 0; k < m_NumInstances; k++) {
+				addToCounts(m_Instances.instance(k));
+			}
 		}
 
 		// allocate memory for mutual information between attribute and class
@@ -513,6 +535,14 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 
 			m_ClassProbabilities = new double[m_NumClasses];
 			calcConditionalProbs();
+
+			m_2vCondiTable = ProbabilityTable.of(m_2vCondiCounts);
+			m_2vCondiTableOpp = ProbabilityTable.of(m_2vCondiCountsOpp);
+			m_2vCondiCounts = null;
+			m_2vCondiCountsOpp = null;
+		} else {
+			m_2vCondiTable = null;
+			m_2vCondiTableOpp = null;
 		}
 
 		// free up some space
@@ -743,6 +773,77 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 
 	}
 
+	/**
+	 * Fills the counts of all the training instances as addToCounts, but a
+	 * table at a time from the bitmaps of the values (see BitmapIndex).
+	 *
+	 * @return false if the counts were not filled, because the instances are
+	 *         weighted or the tables of two attributes are too large to beat
+	 *         the scan of the instances
+	 */
+	private boolean addIndexCounts() {
+		int maxCodes = 0;
+		for (int i = 0; i < m_NumAttributes; i++) {
+			if (i != m_ClassIndex) {
+				maxCodes = Math.max(maxCodes, m_NumAttValues[i] + 1);
+			}
+		}
+		if (!BitmapIndex.isFasterThanScan((long) maxCodes * maxCodes * m_NumClasses)) {
+			return false;
+		}
+		for (int k = 0; k < m_NumInstances; k++) {
+			if (m_Instances.instance(k).weight() != 1) {
+				return false;
+			}
+		}
+
+		// the missing values have the code numValues, as in attIndex
+		BitmapIndex index = new BitmapIndex(m_Instances, false);
+		int[] none = new int[0];
+		index.addCounts(none, -1, m_ClassCounts, 0);
+		m_SumInstances += m_NumInstances;
+
+		for (int Att1 = m_NumAttributes - 1; Att1 >= 0; Att1--) {
+			if (Att1 == m_ClassIndex)
+				continue;
+			int start1 = m_StartAttIndex[Att1];
+			int codes1 = m_NumAttValues[Att1] + 1;
+
+			index.addCounts(none, Att1, m_1vCondiCounts, start1 * m_NumClasses);
+			for (int v1 = 0; v1 < codes1; v1++) {
+				for (int c = 0; c < m_NumClasses; c++) {
+					double count = m_1vCondiCounts[((start1 + v1) * m_NumClasses) + c];
+					m_Frequencies[start1 + v1] += count;
+					if (v1 < m_NumAttValues[Att1]) {
+						m_SumForCounts[c][Att1] += count;
+					}
+				}
+			}
+
+			// the rows of C(x2,x1) are not contiguous, so each table is
+			// counted apart and copied
+			int[] parent = { Att1 };
+			for (int Att2 = Att1 - 1; Att2 >= 0; Att2--) {
+				if (Att2 == m_ClassIndex)
+					continue;
+				int rowLength = (m_NumAttValues[Att2] + 1) * m_NumClasses;
+				double[] table = new double[codes1 * rowLength];
+				index.addCounts(parent, Att2, table, 0);
+				for (int v1 = 0; v1 < codes1; v1++) {
+					int offset = m_2vOffsets[start1 + v1] + m_StartAttIndex[Att2];
+					System.arraycopy(table, v1 * rowLength, m_2vCondiCounts,
+							offset * m_NumClasses, rowLength);
+					if (m_SubsumptionResolution) {
+						for (int i = 0; i < rowLength; i++) {
+							m_2vCondiCountsNoClass[offset + i / m_NumClasses] += table[v1 * rowLength + i];
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Calculates the class membership probabilities for the given test
 	 * instance.
@@ -909,52 +1010,49 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 					continue;
 
 				comboIndex = (pOffset + childIndex) * m_NumClasses;
-				double missingForParent = 0, missingForChild = 0, countForAttOpp = 0, countForAtt = 0;
-
-				for (int classVal = 0; classVal < m_NumClasses; classVal++) {			
+				if (!m_Incremental) {
+					/* 
+					 * No need to compute probabilities from counts.
+					 * The probability P(xc|xp) is stored in m_2vCondiTableOpp, and
+					 * the probability P(xp|xc) is stored in m_2vCondiTable
+					 */
+					KERNELS.mulRow(spodeProbs[child], m_2vCondiTable, comboIndex);
+					KERNELS.mulRow(spodeProbs[parent], m_2vCondiTableOpp, comboIndex);
+					continue;
+				}
 
-					if (m_Incremental) {
-						// Get the count C(x1,x2) from m_2vCondiCounts array
-						countForAtt = m_2vCondiCounts[comboIndex + classVal];
+				double missingForParent = 0, missingForChild = 0, countForAtt = 0;
 
-						/* 
-						 * Compute probability
-						 * 
-						 *              C(xp,xc) + m/|xp|
-						 * P(xp|xc) = ---------------------
-						 *              {#(xc) - ?xp} + m
-						 */
-						missingForParent = m_2vCondiCounts[((m_2vOffsets[m_StartAttIndex[parent] + 
-						                                                 m_NumAttValues[parent]] + 
-						                                                 childIndex) * m_NumClasses) + 
-						                                                 classVal];
-						spodeProbs[child][classVal] *= (countForAtt + m_Weight/m_NumAttValues[parent]) / 
-								((classParentsFreq[child][classVal] - missingForParent) + m_Weight);	
+				for (int classVal = 0; classVal < m_NumClasses; classVal++) {			
 
-						/* 
-						 * Compute probability
-						 *  
-						 *              C(xp,xc) + m/|xc|
-						 *  P(xc|xp) = --------------------
-						 *              {C(xp) - ?xc} + m
-						 */
-						missingForChild = m_2vCondiCounts[((m_2vOffsets[pIndex] + m_StartAttIndex[child] + 
-								m_NumAttValues[child]) * m_NumClasses) + classVal];
-						spodeProbs[parent][classVal] *= (countForAtt + m_Weight/m_NumAttValues[child]) / 
-								((classParentsFreq[parent][classVal] - missingForChild) + m_Weight);
+					// Get the count C(x1,x2) from m_2vCondiCounts array
+					countForAtt = m_2vCondiCounts[comboIndex + classVal];
 
-					} else {
-						/* 
-						 * No need to compute probabilities from counts.
-						 * The probability P(xc|xp) is stored in m_2vCondiCountsOpp, and
-						 * the probability P(xp|xc) is stored in m_2vCondiCounts
-						 */
-						countForAtt = m_2vCondiCounts[comboIndex + classVal];						
-						spodeProbs[child][classVal] *= countForAtt;
-
-						countForAttOpp = m_2vCondiCountsOpp[comboIndex + classVal];
-						spodeProbs[parent][classVal] *= countForAttOpp;
-					}
+					/* 
+					 * Compute probability
+					 * 
+					 *              C(xp,xc) + m/|xp|
+					 * P(xp|xc) = ---------------------
+					 *              {#(xc) - ?xp} + m
+					 */
+					missingForParent = m_2vCondiCounts[((m_2vOffsets[m_StartAttIndex[parent] + 
+					                                                 m_NumAttValues[parent]] + 
+					                                                 childIndex) * m_NumClasses) + 
+					                                                 classVal];
+					spodeProbs[child][classVal] *= (countForAtt + m_Weight/m_NumAttValues[parent]) / 
+							((classParentsFreq[child][classVal] - missingForParent) + m_Weight);	
+
+					/* 
+					 * Compute probability
+					 *  
+					 *              C(xp,xc) + m/|xc|
+					 *  P(xc|xp) = --------------------
+					 *              {C(xp) - ?xc} + m
+					 */
+					missingForChild = m_2vCondiCounts[((m_2vOffsets[pIndex] + m_StartAttIndex[child] + 
+							m_NumAttValues[child]) * m_NumClasses) + classVal];
+					spodeProbs[parent][classVal] *= (countForAtt + m_Weight/m_NumAttValues[child]) / 
+							((classParentsFreq[parent][classVal] - missingForChild) + m_Weight);
 				}
 			}
 		}
@@ -1103,6 +1201,149 @@ OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
 			return Math.log(x/y)/Math.log(2);
 	}
 
+	/**
+	 * Writes the options, the discretizer, the attribute references and the
+	 * probability tables (see ModelIO). Tables that are not allocated are
+	 * written as null.
+	 *
+	 * @param out writer of the model file
+	 * @throws IOException if the model is not trained or cannot be written
+	 */
+	@Override
+	public void writeModel(ModelWriter out) throws IOException {
+		if (m_2vOffsets == null) {
+			throw new IOException("The A1DE is not trained");
+		}
+
+		// options
+		out.writeInt(m_Limit);
+		out.writeDouble(m_Weight);
+		out.writeBoolean(m_SubsumptionResolution);
+		out.writeInt(m_Critical);
+		out.writeBoolean(m_WeightedAODE);
+		out.writeBoolean(m_Incremental);
+		out.writeBoolean(m_UseDiscretization);
+
+		// header, discretizer and attribute references
+		out.writeHeader(m_Instances);
+		out.writeDiscretizer(m_Disc);
+		out.writeInt(m_NumClasses);
+		out.writeInt(m_NumAttributes);
+		out.writeInt(m_NumInstances);
+		out.writeInt(m_ClassIndex);
+		out.writeInt(m_TotalAttValues);
+		out.writeInts(m_StartAttIndex);
+		out.writeInts(m_NumAttValues);
+		out.writeInts(m_2vOffsets);
+
+		// counts and probabilities
+		out.writeDouble(m_SumInstances);
+		out.writeDouble(probInitializer);
+		out.writeDouble(probInitializerAODE);
+		out.writeDoubles(m_ClassCounts);
+		out.writeDoubles(m_ClassProbabilities);
+		out.writeDoubleMatrix(m_SumForCounts);
+		out.writeDoubles(m_Frequencies);
+		out.writeDoubles(m_mutualInformation);
+		out.writeDoubles(m_1vCondiCounts);
+		out.writeDoubles(m_1vCondiCountsNB);
+		if (m_Incremental) {
+			out.writeDoubles(m_2vCondiCounts);
+			out.writeDoubles(m_2vCondiCountsOpp);
+		} else {
+			out.writeTable(m_2vCondiTable);
+			out.writeTable(m_2vCondiTableOpp);
+		}
+		out.writeDoubles(m_2vCondiCountsNoClass);
+	}
+
+	/**
+	 * Reads a model written by writeModel. The model must have been trained
+	 * in the same incremental or non-incremental mode of this class.
+	 *
+	 * @param in reader of the model file
+	 * @throws IOException if the model is not valid
+	 */
+	@Override
+	public void readModel(ModelReader in) throws IOException {
+		m_Limit = in.readInt();
+		m_Weight = in.readDouble();
+		m_SubsumptionResolution = in.readBoolean();
+		m_Critical = in.readInt();
+		m_WeightedAODE = in.readBoolean();
+		if (in.readBoolean() != m_Incremental || in.readBoolean() != m_UseDiscretization) {
+			throw new IOException("The A1DE was saved with different incremental or discretization modes");
+		}
+
+		m_Instances = in.readHeader();
+		m_Disc = in.readDiscretizer();
+		m_NumClasses = in.readInt();
+		m_NumAttributes = in.readInt();
+		m_NumInstances = in.readInt();
+		m_ClassIndex = in.readInt();
+		m_TotalAttValues = in.readInt();
+		m_StartAttIndex = in.readInts();
+		m_NumAttValues = in.readInts();
+		m_2vOffsets = in.readInts();
+
+		m_SumInstances = in.readDouble();
+		probInitializer = in.readDouble();
+		probInitializerAODE = in.readDouble();
+		m_ClassCounts = in.readDoubles();
+		m_ClassProbabilities = in.readDoubles();
+		m_SumForCounts = in.readDoubleMatrix();
+		m_Frequencies = in.readDoubles();
+		m_mutualInformation = in.readDoubles();
+		m_1vCondiCounts = in.readDoubles();
+		m_1vCondiCountsNB = in.readDoubles();
+		if (m_Incremental) {
+			m_2vCondiCounts = in.readDoubles();
+			m_2vCondiCountsOpp = in.readDoubles();
+			m_2vCondiTable = null;
+			m_2vCondiTableOpp = null;
+		} else {
+			// the version 1 wrote the tables as arrays, readTable handles both
+			m_2vCondiTable = in.readTable();
+			m_2vCondiTableOpp = in.readTable();
+			m_2vCondiCounts = null;
+			m_2vCondiCountsOpp = null;
+		}
+		m_2vCondiCountsNoClass = in.readDoubles();
+	}
+
+	/**
+	 * Stores the tables of two attribute-values with less precision. Only
+	 * the non-incremental version can be frozen, as the incremental one keeps
+	 * counts that are updated.
+	 *
+	 * @param precision storage precision of the tables
+	 * @throws IllegalStateException if the model is not trained or is
+	 * incremental
+	 */
+	@Override
+	public void freeze(ProbabilityTable.Precision precision) {
+		if (m_Incremental) {
+			throw new IllegalStateException("An incremental A1DE cannot be frozen");
+		}
+		if (m_2vCondiTable == null) {
+			throw new IllegalStateException("The A1DE is not trained");
+		}
+		m_2vCondiTable = ProbabilityTable.encode(m_2vCondiTable, precision);
+		m_2vCondiTableOpp = ProbabilityTable.encode(m_2vCondiTableOpp, precision);
+	}
+
+	/**
+	 * @return the bytes used by the tables of two attribute-values
+	 */
+	@Override
+	public long getTableBytes() {
+		if (m_Incremental) {
+			return (m_2vCondiCounts == null) ? 0 : 8L * m_2vCondiCounts.length;
+		}
+		return (m_2vCondiTable == null) ? 0 
+				: m_2vCondiTable.sizeInBytes() + m_2vCondiTableOpp.sizeInBytes();
+	}
+
 	/**
 	 * Returns an enumeration describing the available options
 	 *
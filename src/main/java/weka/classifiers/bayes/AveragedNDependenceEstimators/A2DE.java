@@ -22,8 +22,15 @@
  */
 package weka.classifiers.bayes.AveragedNDependenceEstimators;
 
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Vector;
+import org.albacete.simd.data.BitmapIndex;
+import org.albacete.simd.model.BinaryModel;
+import org.albacete.simd.model.FreezableModel;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
+import org.albacete.simd.model.ProbabilityTable;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.UpdateableClassifier;
 import weka.core.Instance;
@@ -136,7 +143,7 @@ import weka.core.TechnicalInformation.Type;
  */
 
 public class A2DE extends AbstractClassifier 
-implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler {
+implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler, BinaryModel, FreezableModel {
 
 	/** for serialization */
 	static final long serialVersionUID = 9197439980415113523L;
@@ -171,6 +178,18 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 	 */
 	private double[] m_3vCondiCountsP2;
 
+	/**
+	 * Probabilities of m_3vCondiCounts, m_3vCondiCountsP1 and m_3vCondiCountsP2
+	 * once they are calculated, which may be stored with less precision (see
+	 * freeze). Used only in non-incremental version, where they replace the
+	 * arrays
+	 */
+	private ProbabilityTable m_3vCondiTable;
+
+	private ProbabilityTable m_3vCondiTableP1;
+
+	private ProbabilityTable m_3vCondiTableP2;
+
 	/**
 	 * The frequency of two attribute-values occurring together for each class.
 	 * Only unique combinations are stored.
@@ -489,9 +508,11 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 		m_Frequencies2p = new double[m_TotalAttValues][m_TotalAttValues];
 
 
-		// calculate the counts
-		for(int k = 0; k < m_NumInstances; k++) {
-			addToCounts(m_Instances.instance(k));
+		// calculate the counts, from a bitmap index if it is faster
+		if (!addIndexCounts()) {
+			for(int k = 0; k < m_NumInstances; k++) {
+				addToCounts(m_Instances.instance(k));
+			}
 		}
 
 		// allocate memory for mutual information between attribute and class
@@ -596,6 +617,17 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 			m_ClassProbabilities = new double[m_NumClasses];
 
 			calcConditionalProbs();
+
+			m_3vCondiTable = ProbabilityTable.of(m_3vCondiCounts);
+			m_3vCondiTableP1 = ProbabilityTable.of(m_3vCondiCountsP1);
+			m_3vCondiTableP2 = ProbabilityTable.of(m_3vCondiCountsP2);
+			m_3vCondiCounts = null;
+			m_3vCondiCountsP1 = null;
+			m_3vCondiCountsP2 = null;
+		} else {
+			m_3vCondiTable = null;
+			m_3vCondiTableP1 = null;
+			m_3vCondiTableP2 = null;
 		}
 
 		// Free up some space
@@ -996,6 +1028,94 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 		} // end Att1
 	}
 
+	/**
+	 * Fills the counts of all the training instances as addToCounts, but a
+	 * table at a time from the bitmaps of the values (see BitmapIndex).
+	 *
+	 * @return false if the counts were not filled, because the instances are
+	 *         weighted or the tables of three attributes are too large to
+	 *         beat the scan of the instances
+	 */
+	private boolean addIndexCounts() {
+		int maxCodes = 0;
+		for (int i = 0; i < m_NumAttributes; i++) {
+			if (i != m_ClassIndex) {
+				maxCodes = Math.max(maxCodes, m_NumAttValues[i] + 1);
+			}
+		}
+		if (!BitmapIndex.isFasterThanScan((long) maxCodes * maxCodes * maxCodes * m_NumClasses)) {
+			return false;
+		}
+		for (int k = 0; k < m_NumInstances; k++) {
+			if (m_Instances.instance(k).weight() != 1) {
+				return false;
+			}
+		}
+
+		// the missing values have the code numValues, as in attIndex, and the
+		// instances with a missing class are not counted
+		BitmapIndex index = new BitmapIndex(m_Instances, false);
+		int[] none = new int[0];
+		index.addCounts(none, -1, m_ClassCounts, 0);
+		m_SumInstances += Utils.sum(m_ClassCounts);
+
+		for (int Att1 = m_NumAttributes - 1; Att1 >= 0; Att1--) {
+			if (Att1 == m_ClassIndex)
+				continue;
+			int start1 = m_StartAttIndex[Att1];
+			int codes1 = m_NumAttValues[Att1] + 1;
+
+			index.addCounts(none, Att1, m_1vCondiCounts, start1 * m_NumClasses);
+			for (int v1 = 0; v1 < codes1; v1++) {
+				for (int c = 0; c < m_NumClasses; c++) {
+					double count = m_1vCondiCounts[((start1 + v1) * m_NumClasses) + c];
+					m_Frequencies[start1 + v1] += count;
+					if (v1 < m_NumAttValues[Att1]) {
+						m_SumForCounts[c][Att1] += count;
+					}
+				}
+			}
+
+			// the rows of C(x2,x1) and C(x3,x2,x1) are not contiguous, so each
+			// table is counted apart and copied
+			for (int Att2 = Att1 - 1; Att2 >= 0; Att2--) {
+				if (Att2 == m_ClassIndex)
+					continue;
+				int start2 = m_StartAttIndex[Att2];
+				int codes2 = m_NumAttValues[Att2] + 1;
+				int rowLength = codes2 * m_NumClasses;
+				double[] table = new double[codes1 * rowLength];
+				index.addCounts(new int[] { Att1 }, Att2, table, 0);
+				for (int v1 = 0; v1 < codes1; v1++) {
+					int offset = m_2vOffsets[start1 + v1] + start2;
+					System.arraycopy(table, v1 * rowLength, m_2vCondiCounts,
+							offset * m_NumClasses, rowLength);
+					for (int i = 0; i < rowLength; i++) {
+						m_Frequencies2p[start1 + v1][start2 + i / m_NumClasses] += table[v1 * rowLength + i];
+					}
+				}
+
+				int[] parents = { Att1, Att2 };
+				for (int Att3 = Att2 - 1; Att3 >= 0; Att3--) {
+					if (Att3 == m_ClassIndex)
+						continue;
+					int start3 = m_StartAttIndex[Att3];
+					rowLength = (m_NumAttValues[Att3] + 1) * m_NumClasses;
+					table = new double[codes1 * codes2 * rowLength];
+					index.addCounts(parents, Att3, table, 0);
+					for (int v1 = 0; v1 < codes1; v1++) {
+						for (int v2 = 0; v2 < codes2; v2++) {
+							int offset = m_3vOffsets[start1 + v1] + m_2vOffsets[start2 + v2] + start3;
+							System.arraycopy(table, (v1 * codes2 + v2) * rowLength,
+									m_3vCondiCounts, offset * m_NumClasses, rowLength);
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Add count in m_1vCondiCount, m_2vCondiCount or m_3vCondiCount.
 	 * 
@@ -1255,9 +1375,10 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 							spodeProbs[classVal][p1AttIndex] *= p2CondProb;
 
 						} else {
-							spodeProbs[classVal][p1p2Index] *= m_3vCondiCounts[(m_3vOffsets[p1Index] + m_2vOffsets[p2Index] + childIndex) * m_NumClasses + classVal];
-							spodeProbs[classVal][p2AttIndex] *= m_3vCondiCountsP1[(m_3vOffsets[p1Index] + m_2vOffsets[p2Index] + childIndex) * m_NumClasses + classVal];
-							spodeProbs[classVal][p1AttIndex] *= m_3vCondiCountsP2[(m_3vOffsets[p1Index] + m_2vOffsets[p2Index] + childIndex) * m_NumClasses + classVal];
+							int comboIndex = (m_3vOffsets[p1Index] + m_2vOffsets[p2Index] + childIndex) * m_NumClasses + classVal;
+							spodeProbs[classVal][p1p2Index] *= m_3vCondiTable.get(comboIndex);
+							spodeProbs[classVal][p2AttIndex] *= m_3vCondiTableP1.get(comboIndex);
+							spodeProbs[classVal][p1AttIndex] *= m_3vCondiTableP2.get(comboIndex);
 						}
 					} // ends classVal	
 				} // ends child
@@ -1472,6 +1593,166 @@ implements OptionHandler, WeightedInstancesHandler, TechnicalInformationHandler
 		return mEsti;
 	}
 
+	/**
+	 * Writes the options, the discretizer, the attribute references and the
+	 * probability tables (see ModelIO). Tables that are not allocated are
+	 * written as null.
+	 *
+	 * @param out writer of the model file
+	 * @throws IOException if the model is not trained or cannot be written
+	 */
+	@Override
+	public void writeModel(ModelWriter out) throws IOException {
+		if (m_3vOffsets == null) {
+			throw new IOException("The A2DE is not trained");
+		}
+
+		// options
+		out.writeInt(m_Limit);
+		out.writeDouble(m_Weight);
+		out.writeBoolean(m_SubsumptionResolution);
+		out.writeInt(m_Critical);
+		out.writeBoolean(m_WeightedA2DE);
+		out.writeBoolean(m_Incremental);
+		out.writeBoolean(m_UseDiscretization);
+
+		// header, discretizer and attribute references
+		out.writeHeader(m_Instances);
+		out.writeDiscretizer(m_Disc);
+		out.writeInt(m_NumClasses);
+		out.writeInt(m_NumAttributes);
+		out.writeInt(m_NumInstances);
+		out.writeInt(m_ClassIndex);
+		out.writeInt(m_TotalAttValues);
+		out.writeInts(m_StartAttIndex);
+		out.writeInts(m_NumAttValues);
+		out.writeInts(m_2vOffsets);
+		out.writeInts(m_3vOffsets);
+
+		// counts and probabilities
+		out.writeInt(m_SumInstances);
+		out.writeDouble(probInitializer);
+		out.writeDouble(probInitializerAODE);
+		out.writeDouble(probInitializerA2DE);
+		out.writeDoubles(m_ClassCounts);
+		out.writeDoubles(m_ClassProbabilities);
+		out.writeDoubleMatrix(m_SumForCounts);
+		out.writeDoubles(m_Frequencies);
+		out.writeDoubleMatrix(m_Frequencies2p);
+		out.writeDoubleMatrix(m_mutualInformation);
+		out.writeDoubles(m_1vCondiCounts);
+		out.writeDoubles(m_1vCondiCountsNB);
+		out.writeDoubles(m_2vCondiCounts);
+		out.writeDoubles(m_2vCondiCountsOpp);
+		out.writeDoubles(m_2vCondiCountsJoint);
+		if (m_Incremental) {
+			out.writeDoubles(m_3vCondiCounts);
+			out.writeDoubles(m_3vCondiCountsP1);
+			out.writeDoubles(m_3vCondiCountsP2);
+		} else {
+			out.writeTable(m_3vCondiTable);
+			out.writeTable(m_3vCondiTableP1);
+			out.writeTable(m_3vCondiTableP2);
+		}
+	}
+
+	/**
+	 * Reads a model written by writeModel. The model must have been trained
+	 * in the same incremental or non-incremental mode of this class.
+	 *
+	 * @param in reader of the model file
+	 * @throws IOException if the model is not valid
+	 */
+	@Override
+	public void readModel(ModelReader in) throws IOException {
+		m_Limit = in.readInt();
+		m_Weight = in.readDouble();
+		m_SubsumptionResolution = in.readBoolean();
+		m_Critical = in.readInt();
+		m_WeightedA2DE = in.readBoolean();
+		if (in.readBoolean() != m_Incremental || in.readBoolean() != m_UseDiscretization) {
+			throw new IOException("The A2DE was saved with different incremental or discretization modes");
+		}
+
+		m_Instances = in.readHeader();
+		m_Disc = in.readDiscretizer();
+		m_NumClasses = in.readInt();
+		m_NumAttributes = in.readInt();
+		m_NumInstances = in.readInt();
+		m_ClassIndex = in.readInt();
+		m_TotalAttValues = in.readInt();
+		m_StartAttIndex = in.readInts();
+		m_NumAttValues = in.readInts();
+		m_2vOffsets = in.readInts();
+		m_3vOffsets = in.readInts();
+
+		m_SumInstances = in.readInt();
+		probInitializer = in.readDouble();
+		probInitializerAODE = in.readDouble();
+		probInitializerA2DE = in.readDouble();
+		m_ClassCounts = in.readDoubles();
+		m_ClassProbabilities = in.readDoubles();
+		m_SumForCounts = in.readDoubleMatrix();
+		m_Frequencies = in.readDoubles();
+		m_Frequencies2p = in.readDoubleMatrix();
+		m_mutualInformation = in.readDoubleMatrix();
+		m_1vCondiCounts = in.readDoubles();
+		m_1vCondiCountsNB = in.readDoubles();
+		m_2vCondiCounts = in.readDoubles();
+		m_2vCondiCountsOpp = in.readDoubles();
+		m_2vCondiCountsJoint = in.readDoubles();
+		if (m_Incremental) {
+			m_3vCondiCounts = in.readDoubles();
+			m_3vCondiCountsP1 = in.readDoubles();
+			m_3vCondiCountsP2 = in.readDoubles();
+			m_3vCondiTable = null;
+			m_3vCondiTableP1 = null;
+			m_3vCondiTableP2 = null;
+		} else {
+			// the version 1 wrote the tables as arrays, readTable handles both
+			m_3vCondiTable = in.readTable();
+			m_3vCondiTableP1 = in.readTable();
+			m_3vCondiTableP2 = in.readTable();
+			m_3vCondiCounts = null;
+			m_3vCondiCountsP1 = null;
+			m_3vCondiCountsP2 = null;
+		}
+	}
+
+	/**
+	 * Stores the tables of three attribute-values with less precision. Only
+	 * the non-incremental version can be frozen, as the incremental one keeps
+	 * counts that are updated.
+	 *
+	 * @param precision storage precision of the tables
+	 * @throws IllegalStateException if the model is not trained or is
+	 * incremental
+	 */
+	@Override
+	public void freeze(ProbabilityTable.Precision precision) {
+		if (m_Incremental) {
+			throw new IllegalStateException("An incremental A2DE cannot be frozen");
+		}
+		if (m_3vCondiTable == null) {
+			throw new IllegalStateException("The A2DE is not trained");
+		}
+		m_3vCondiTable = ProbabilityTable.encode(m_3vCondiTable, precision);
+		m_3vCondiTableP1 = ProbabilityTable.encode(m_3vCondiTableP1, precision);
+		m_3vCondiTableP2 = ProbabilityTable.encode(m_3vCondiTableP2, precision);
+	}
+
+	/**
+	 * @return the bytes used by the tables of three attribute-values
+	 */
+	@Override
+	public long getTableBytes() {
+		if (m_Incremental) {
+			return (m_3vCondiCounts == null) ? 0 : 8L * m_3vCondiCounts.length;
+		}
+		return (m_3vCondiTable == null) ? 0 : m_3vCondiTable.sizeInBytes() 
+				+ m_3vCondiTableP1.sizeInBytes() + m_3vCondiTableP2.sizeInBytes();
+	}
+
 	/**
 	 * Returns an enumeration describing the available options
 	 *
@@ -21,10 +21,18 @@
 
 package weka.classifiers.bayes;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Vector;
 
+import org.albacete.simd.model.BinaryModel;
+import org.albacete.simd.model.ModelReader;
+import org.albacete.simd.model.ModelWriter;
 import weka.classifiers.AbstractClassifier;
 import static weka.classifiers.AbstractClassifier.runClassifier;
 import weka.core.*;
@@ -97,7 +105,7 @@ import weka.estimators.NormalEstimator;
  */
 public class NaiveBayes extends AbstractClassifier implements OptionHandler,
   WeightedInstancesHandler, WeightedAttributesHandler, TechnicalInformationHandler,
-  Aggregateable<NaiveBayes> {
+  Aggregateable<NaiveBayes>, BinaryModel {
 
   /** for serialization */
   static final long serialVersionUID = 5995231201785697655L;
@@ -1010,6 +1018,126 @@ public class NaiveBayes extends AbstractClassifier implements OptionHandler,
     // nothing to do
   }
 
+  /**
+   * Writes the options, the header, the discretizer and the estimators (see
+   * ModelIO). The discrete estimators are written as a flat array of counts,
+   * and the numeric ones (normal or kernel) as Java serialized objects.
+   * 
+   * @param out writer of the model file
+   * @throws IOException if the model is not trained or cannot be written
+   */
+  @Override
+  public void writeModel(ModelWriter out) throws IOException {
+    if (m_Distributions == null) {
+      throw new IOException("The Naive Bayes is not trained");
+    }
+
+    // number of symbols of each attribute (-1 if numeric), and of the class
+    int numAttributes = m_Distributions.length;
+    int[] numSymbols = new int[numAttributes + 1];
+    int total = 0;
+    for (int i = 0; i <= numAttributes; i++) {
+      Estimator estimator = (i == numAttributes) ? m_ClassDistribution
+        : m_Distributions[i][0];
+      if (estimator instanceof DiscreteEstimator) {
+        numSymbols[i] = ((DiscreteEstimator) estimator).getNumSymbols();
+        total += (i == numAttributes) ? numSymbols[i] : numSymbols[i]
+          * m_NumClasses;
+      } else {
+        numSymbols[i] = -1;
+      }
+    }
+
+    // counts of each discrete attribute and class, and then of the class
+    double[] counts = new double[total];
+    int index = 0;
+    for (int i = 0; i < numAttributes; i++) {
+      for (int j = 0; j < m_NumClasses && numSymbols[i] >= 0; j++) {
+        DiscreteEstimator estimator = (DiscreteEstimator) m_Distributions[i][j];
+        for (int v = 0; v < numSymbols[i]; v++) {
+          counts[index++] = estimator.getCount(v);
+        }
+      }
+    }
+    for (int v = 0; v < numSymbols[numAttributes]; v++) {
+      counts[index++] = ((DiscreteEstimator) m_ClassDistribution).getCount(v);
+    }
+
+    out.writeBoolean(m_UseKernelEstimator);
+    out.writeBoolean(m_UseDiscretization);
+    out.writeBoolean(m_displayModelInOldFormat);
+    out.writeInt(m_NumClasses);
+    out.writeHeader(m_Instances);
+    out.writeDiscretizer(m_Disc);
+    out.writeInts(numSymbols);
+    out.writeDoubles(counts);
+    for (int i = 0; i < numAttributes; i++) {
+      if (numSymbols[i] < 0) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+          stream.writeObject(m_Distributions[i]);
+        }
+        out.writeBytes(bytes.toByteArray());
+      }
+    }
+  }
+
+  /**
+   * Reads a model written by writeModel.
+   * 
+   * @param in reader of the model file
+   * @throws IOException if the model is not valid
+   */
+  @Override
+  public void readModel(ModelReader in) throws IOException {
+    m_UseKernelEstimator = in.readBoolean();
+    m_UseDiscretization = in.readBoolean();
+    m_displayModelInOldFormat = in.readBoolean();
+    m_NumClasses = in.readInt();
+    m_Instances = in.readHeader();
+    m_Disc = in.readDiscretizer();
+    int[] numSymbols = in.readInts();
+    double[] counts = in.readDoubles();
+
+    int numAttributes = numSymbols.length - 1;
+    int index = 0;
+    m_Distributions = new Estimator[numAttributes][];
+    for (int i = 0; i < numAttributes; i++) {
+      if (numSymbols[i] >= 0) {
+        m_Distributions[i] = new Estimator[m_NumClasses];
+        for (int j = 0; j < m_NumClasses; j++) {
+          m_Distributions[i][j] = readEstimator(numSymbols[i], counts, index);
+          index += numSymbols[i];
+        }
+      }
+    }
+    m_ClassDistribution = readEstimator(numSymbols[numAttributes], counts,
+      index);
+
+    for (int i = 0; i < numAttributes; i++) {
+      if (numSymbols[i] < 0) {
+        try (ObjectInputStream stream = new ObjectInputStream(
+          new ByteArrayInputStream(in.readBytes()))) {
+          m_Distributions[i] = (Estimator[]) stream.readObject();
+        } catch (ClassNotFoundException ex) {
+          throw new IOException("Invalid estimator of the attribute " + i, ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuilds a discrete estimator from its counts.
+   */
+  private static DiscreteEstimator readEstimator(int numSymbols,
+    double[] counts, int index) {
+    DiscreteEstimator estimator = new DiscreteEstimator(numSymbols, false);
+    for (int v = 0; v < numSymbols; v++) {
+      estimator.addValue(v, counts[index + v]);
+    }
+    return estimator;
+  }
+
   /**
    * Main method for testing this class.
    * 
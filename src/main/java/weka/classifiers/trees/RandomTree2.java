@@ -31,8 +31,10 @@
 
 package weka.classifiers.trees;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import org.albacete.simd.mAnDE.Node;
 import org.albacete.simd.mAnDE.mSP1DE;
@@ -100,7 +102,39 @@ public class RandomTree2 extends RandomTree {
     }*/
     
     
+    /**
+     * Gets the edges between the attributes of the tree, in the order in which
+     * toSP1DE adds them.
+     *
+     * @return an array with the {parent, child} pairs of attributes.
+     */
+    public int[][] getEdges() {
+        List<int[]> edges = new ArrayList<>();
+        LinkedList<Tree> tbExplored = new LinkedList<>();
+        tbExplored.add(m_Tree);
+
+        while (!tbExplored.isEmpty()) {
+            Tree node = tbExplored.poll();
+            if (node.m_Attribute == -1 || node.m_Successors == null) {
+                continue;
+            }
+            for (Tree m_Successor : node.m_Successors) {
+                if (m_Successor.m_Attribute != -1) {
+                    edges.add(new int[]{node.m_Attribute, m_Successor.m_Attribute});
+                    tbExplored.add(m_Successor);
+                }
+            }
+        }
+        return edges.toArray(new int[0][]);
+    }
+    
+    
     public void toSP1DE(ConcurrentHashMap<Integer, mSPnDE> mSPnDEs) {
+        // A tree that is a single leaf has no edges
+        if (m_Tree.m_Attribute == -1) {
+            return;
+        }
+        
         // Trees to be explored
         LinkedList<Tree> tbExplored = new LinkedList();
         tbExplored.add(m_Tree);
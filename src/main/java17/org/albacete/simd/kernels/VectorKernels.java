@@ -0,0 +1,127 @@
+/*
+ *  The MIT License (MIT)
+ *
+ *  Copyright (c) 2022 Universidad de Castilla-La Mancha, España
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+/**
+ *    VectorKernels.java
+ *    Copyright (C) 2023 Universidad de Castilla-La Mancha, España
+ *
+ * @author Pablo Torrijos Arenas
+ *
+ */
+package org.albacete.simd.kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Loops with the Vector API of JDK 17, in the widest registers of the host
+ * (see ClassKernels). The rows shorter than a register, and the tails, are
+ * done with scalar loops.
+ */
+final class VectorKernels extends ClassKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorKernels() {
+        // Fails here, and not while scoring, if the module is not available
+        DoubleVector.zero(SPECIES);
+    }
+
+    @Override
+    public String getName() {
+        return "vector" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void mulRow(double[] acc, double[] table, int start) {
+        int c = 0;
+        for (int bound = SPECIES.loopBound(acc.length); c < bound; c += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, acc, c)
+                    .mul(DoubleVector.fromArray(SPECIES, table, start + c))
+                    .intoArray(acc, c);
+        }
+        for (; c < acc.length; c++) {
+            acc[c] *= table[start + c];
+        }
+    }
+
+    @Override
+    public void addRow(double[] acc, double[] table, int start) {
+        int c = 0;
+        for (int bound = SPECIES.loopBound(acc.length); c < bound; c += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, acc, c)
+                    .add(DoubleVector.fromArray(SPECIES, table, start + c))
+                    .intoArray(acc, c);
+        }
+        for (; c < acc.length; c++) {
+            acc[c] += table[start + c];
+        }
+    }
+
+    @Override
+    public double sum(double[] table, int[] index, int count) {
+        int k = 0;
+        double sum = 0;
+        int bound = SPECIES.loopBound(count);
+        if (bound > 0) {
+            DoubleVector partial = DoubleVector.zero(SPECIES);
+            for (; k < bound; k += SPECIES.length()) {
+                partial = partial.add(DoubleVector.fromArray(SPECIES, table, 0, index, k));
+            }
+            sum = partial.reduceLanes(VectorOperators.ADD);
+        }
+        for (; k < count; k++) {
+            sum += table[index[k]];
+        }
+        return sum;
+    }
+
+    @Override
+    public void add(double[] out, double[] a, double[] b) {
+        int c = 0;
+        for (int bound = SPECIES.loopBound(out.length); c < bound; c += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, c)
+                    .add(DoubleVector.fromArray(SPECIES, b, c))
+                    .intoArray(out, c);
+        }
+        for (; c < out.length; c++) {
+            out[c] = a[c] + b[c];
+        }
+    }
+
+    @Override
+    public void addSub(double[] out, double[] a, double[] b, double[] d) {
+        int c = 0;
+        for (int bound = SPECIES.loopBound(out.length); c < bound; c += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, c)
+                    .add(DoubleVector.fromArray(SPECIES, b, c))
+                    .sub(DoubleVector.fromArray(SPECIES, d, c))
+                    .intoArray(out, c);
+        }
+        for (; c < out.length; c++) {
+            out[c] = a[c] + b[c] - d[c];
+        }
+    }
+}